@@ -0,0 +1,94 @@
+package cs4620.ray2.bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Parser;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RayTracer.ScenePath;
+import cs4620.ray2.Scene;
+import cs4620.ray2.accel.AccelStruct;
+import cs4620.ray2.surface.Surface;
+
+/**
+ * Measures ray throughput of acceleration structures on the geometry of a
+ * scene file. Camera rays through uniformly random image positions are
+ * generated from a fixed seed, so every structure is timed on the same rays.
+ *
+ * Usage: java cs4620.ray2.bench.AccelBenchmark scene.xml [rays] [struct1 struct2 ...]
+ * where each struct is a class name in cs4620.ray2.accel (default: NaiveAccelStruct FlatBvh).
+ * NaiveAccelStruct tests every surface, so it is the reference the others
+ * are compared with.
+ */
+public class AccelBenchmark {
+
+	/** Seed for the ray set */
+	private static final long SEED = 4620;
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: java cs4620.ray2.bench.AccelBenchmark scene.xml [rays] [struct1 struct2 ...]");
+			return;
+		}
+		int numRays = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		ArrayList<String> structs = new ArrayList<String>();
+		for (int i = 2; i < args.length; i++)
+			structs.add(args[i]);
+		if (structs.isEmpty()) {
+			structs.add("NaiveAccelStruct");
+			structs.add("FlatBvh");
+		}
+
+		// Load the scene and collect its renderable surfaces
+		Scene scene = (Scene) new Parser().parse(new ScenePath(null, args[0]), Scene.class);
+		scene.setTransform();
+		ArrayList<Surface> renderableSurfaces = new ArrayList<Surface>();
+		for (Surface s : scene.getSurfaces())
+			s.appendRenderableSurfaces(renderableSurfaces);
+		Surface[] surfaceArray = new Surface[renderableSurfaces.size()];
+		renderableSurfaces.toArray(surfaceArray);
+
+		// Generate the ray set
+		scene.getCamera().initView();
+		Random random = new Random(SEED);
+		Ray[] rays = new Ray[numRays];
+		for (int i = 0; i < numRays; i++) {
+			rays[i] = new Ray();
+			scene.getCamera().getRay(rays[i], random.nextDouble(), random.nextDouble());
+		}
+
+		System.out.println(surfaceArray.length + " surfaces, " + numRays + " rays");
+		for (String name : structs) {
+			AccelStruct accel;
+			try {
+				accel = (AccelStruct) Class.forName(AccelStruct.class.getPackage().getName() + "." + name).getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				System.err.println("Could not create acceleration structure " + name + ": " + e);
+				continue;
+			}
+
+			long buildStart = System.nanoTime();
+			accel.build(surfaceArray.clone());
+			double buildTime = (System.nanoTime() - buildStart) / 1e9;
+
+			// One untimed pass to let the JIT compile the traversal
+			IntersectionRecord record = new IntersectionRecord();
+			trace(accel, rays, record);
+
+			long start = System.nanoTime();
+			int hits = trace(accel, rays, record);
+			double time = (System.nanoTime() - start) / 1e9;
+
+			System.out.printf("%-12s build %8.3f s   %12.0f rays/s   %d hits%n", name, buildTime, numRays / time, hits);
+		}
+	}
+
+	private static int trace(AccelStruct accel, Ray[] rays, IntersectionRecord record) {
+		int hits = 0;
+		for (Ray ray : rays)
+			if (accel.intersect(record, ray, false))
+				hits++;
+		return hits;
+	}
+}
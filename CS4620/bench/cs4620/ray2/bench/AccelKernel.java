@@ -0,0 +1,92 @@
+package cs4620.ray2.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RayPacket;
+import cs4620.ray2.RayTracer;
+import cs4620.ray2.Scene;
+import cs4620.ray2.SceneContext;
+import cs4620.ray2.accel.FlatBvh;
+import cs4620.ray2.surface.Mesh;
+
+/**
+ * Scene intersection against one mesh, through the scene's acceleration
+ * structure and the mesh's own tree, as the renderer does it. Camera rays are
+ * traced one at a time for the first hit, one at a time for any hit, as
+ * shadow rays are, or in packets.
+ */
+class AccelKernel extends Kernel {
+
+	enum Mode { FIRST, ANY, PACKET }
+
+	private final String file;
+	private final SceneContext context;
+	private final Mode mode;
+	private final int count;
+	private final IntersectionRecord record = new IntersectionRecord();
+	private final RayPacket packet = new RayPacket();
+	private Scene scene;
+	private Ray[] rays;
+
+	/**
+	 * @param file the absolute path of the mesh
+	 * @param context the cache the mesh is loaded through, shared by the kernels
+	 */
+	AccelKernel(String file, SceneContext context, Mode mode, int count) {
+		super("AccelStruct." + mode.name().toLowerCase() + "." + new File(file).getName().replaceFirst("\\.obj$", ""));
+		this.file = file;
+		this.context = context;
+		this.mode = mode;
+		this.count = count;
+	}
+
+	@Override
+	public void setUp() throws FileNotFoundException {
+		// Report a missing file as such, rather than as an error of Mesh.setData
+		if (!new File(file).isFile())
+			throw new FileNotFoundException(file);
+		Mesh mesh = new Mesh();
+		mesh.setSceneContext(context);
+		mesh.setData(file);
+
+		scene = new Scene();
+		scene.addSurface(mesh);
+		scene.setAccelStruct(new FlatBvh());
+		scene.setTransform();
+		RayTracer.build(scene);
+		rays = Rays.view(mesh.getMinBound(), mesh.getMaxBound(), count);
+	}
+
+	@Override
+	public int run() {
+		double t = 0;
+		switch (mode) {
+		case FIRST:
+			for (Ray ray : rays)
+				if (scene.getFirstIntersection(record, ray))
+					t += record.t;
+			break;
+		case ANY:
+			for (Ray ray : rays)
+				if (scene.getAnyIntersection(ray))
+					t++;
+			break;
+		case PACKET:
+			for (int i = 0; i < rays.length; i += RayPacket.MAX_SIZE) {
+				packet.clear();
+				for (int j = i; j < Math.min(rays.length, i + RayPacket.MAX_SIZE); j++)
+					packet.add(rays[j]);
+				scene.getFirstIntersection(packet);
+				for (int j = 0; j < packet.size; j++)
+					if (packet.hit[j])
+						t += packet.records[j].t;
+			}
+			break;
+		}
+		consume(t);
+		return rays.length;
+	}
+}
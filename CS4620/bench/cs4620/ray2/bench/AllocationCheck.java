@@ -0,0 +1,84 @@
+package cs4620.ray2.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import cs4620.ray2.ResourceCache;
+import cs4620.ray2.SceneContext;
+
+/**
+ * Checks that the render loop does not allocate: every kernel of
+ * KernelBenchmark, from the surface intersections to a whole rendered block,
+ * is warmed up and then run while the heap allocated by this thread is
+ * counted, and the check fails if any of them allocated a single byte in each
+ * of ATTEMPTS measurements. Unlike a comparison with a baseline, this also
+ * catches a kernel that allocated already when the baseline was taken.
+ *
+ * Usage: java cs4620.ray2.bench.AllocationCheck [-p root] [pattern]
+ * where root is the workspace holding data/ and pattern is a regular
+ * expression picking kernels by name. The exit status is 1 if a kernel
+ * allocated, and 2 if the JVM cannot count allocations.
+ */
+public class AllocationCheck {
+
+	/** Number of times a kernel is measured before it is taken to allocate */
+	private static final int ATTEMPTS = 3;
+
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+
+		String root = ".";
+		Pattern pattern = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-p") && i + 1 < args.length)
+				root = args[++i];
+			else if (!args[i].startsWith("-"))
+				pattern = Pattern.compile(args[i]);
+			else {
+				System.out.println("Usage: java cs4620.ray2.bench.AllocationCheck [-p root] [pattern]");
+				return;
+			}
+		}
+
+		SceneContext context = new SceneContext(null, new ResourceCache());
+		List<Kernel> kernels = KernelBenchmark.kernels(root, context, null, 1 << 12);
+
+		// Enough warm-up for the JIT to compile the kernels and drop its own allocations
+		Harness harness = new Harness(5, 3, 200);
+		int failures = 0;
+		System.out.println(Harness.header());
+		for (Kernel kernel : kernels) {
+			if (pattern != null && !pattern.matcher(kernel.getName()).find())
+				continue;
+			try {
+				kernel.setUp();
+			}
+			catch (Exception e) {
+				System.out.println(kernel.getName() + ": skipped, " + e);
+				continue;
+			}
+			// An allocation in the kernel shows up in every measurement; a deoptimization,
+			// which puts scalar-replaced objects back on the heap, only in one
+			Harness.Result result = null;
+			for (int attempt = 0; attempt < ATTEMPTS && (result == null || result.bytesPerOp > 0); attempt++) {
+				result = harness.measure(kernel);
+				if (Double.isNaN(result.bytesPerOp)) {
+					System.out.println("This JVM does not count allocated bytes");
+					System.exit(2);
+				}
+			}
+			boolean allocates = result.bytesPerOp > 0;
+			System.out.println(Harness.format(result)
+					+ (allocates ? String.format(Locale.ROOT, "  ALLOCATES %.4f B/op", result.bytesPerOp) : ""));
+			if (allocates)
+				failures++;
+		}
+
+		if (failures > 0) {
+			System.out.println(failures + " kernel(s) allocate");
+			System.exit(1);
+		}
+	}
+}
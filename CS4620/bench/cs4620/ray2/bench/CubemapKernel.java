@@ -0,0 +1,68 @@
+package cs4620.ray2.bench;
+
+import java.util.Random;
+
+import cs4620.ray2.Cubemap;
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+
+/**
+ * Environment map lookups: Cubemap.evaluate in random directions, or
+ * Cubemap.generate and pdf, the sampling done for environment lighting.
+ */
+class CubemapKernel extends Kernel {
+
+	private final Cubemap cubemap;
+	private final boolean sample;
+	private final int count;
+	private final Colord color = new Colord();
+	private final Vector2d seed = new Vector2d();
+	private final Vector3d direction = new Vector3d();
+	private double[] values;
+
+	/**
+	 * @param sample true to time generate and pdf, false to time evaluate
+	 */
+	CubemapKernel(Cubemap cubemap, boolean sample, int count) {
+		super(sample ? "Cubemap.generate" : "Cubemap.evaluate");
+		this.cubemap = cubemap;
+		this.sample = sample;
+		this.count = count;
+	}
+
+	@Override
+	public void setUp() {
+		// Three coordinates of a direction per lookup, or the two numbers of a seed
+		Random random = new Random(Rays.SEED);
+		values = new double[3 * count];
+		for (int i = 0; i < count; i++) {
+			if (sample)
+				direction.set(random.nextDouble(), random.nextDouble(), 0);
+			else
+				Rays.randomDirection(random, direction);
+			values[3 * i] = direction.x;
+			values[3 * i + 1] = direction.y;
+			values[3 * i + 2] = direction.z;
+		}
+	}
+
+	@Override
+	public int run() {
+		double sum = 0;
+		for (int i = 0; i < count; i++) {
+			if (sample) {
+				seed.set(values[3 * i], values[3 * i + 1]);
+				cubemap.generate(seed, direction);
+				sum += cubemap.pdf(direction);
+			}
+			else {
+				direction.set(values[3 * i], values[3 * i + 1], values[3 * i + 2]);
+				cubemap.evaluate(direction, color);
+				sum += color.x + color.y + color.z;
+			}
+		}
+		consume(sum);
+		return count;
+	}
+}
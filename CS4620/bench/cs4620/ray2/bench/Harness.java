@@ -0,0 +1,153 @@
+package cs4620.ray2.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Times kernels the way a microbenchmark harness does: warm-up iterations
+ * first, so the JIT has compiled the kernel, then measured iterations of at
+ * least a fixed length, each giving a rate in operations per second. The heap
+ * allocated by the measuring thread is counted as well, where the JVM can tell
+ * (HotSpot's ThreadMXBean can), since the render loop is meant not to allocate
+ * at all.
+ */
+public class Harness {
+
+	/**
+	 * What one kernel measured. The score is the mean rate over the measured
+	 * iterations and the error their standard deviation.
+	 */
+	public static class Result {
+		public final String name;
+		public final double score, error;
+		/** Bytes allocated per operation, or NaN if the JVM does not count them */
+		public final double bytesPerOp;
+
+		public Result(String name, double score, double error, double bytesPerOp) {
+			this.name = name;
+			this.score = score;
+			this.error = error;
+			this.bytesPerOp = bytesPerOp;
+		}
+	}
+
+	private final int warmups, iterations;
+	private final long iterationNanos;
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * @param warmups the number of untimed iterations
+	 * @param iterations the number of timed iterations
+	 * @param iterationMillis the least length of an iteration
+	 */
+	public Harness(int warmups, int iterations, long iterationMillis) {
+		this.warmups = warmups;
+		this.iterations = Math.max(1, iterations);
+		this.iterationNanos = iterationMillis * 1000000L;
+	}
+
+	public Result measure(Kernel kernel) {
+		for (int i = 0; i < warmups; i++)
+			iterate(kernel);
+
+		double[] rates = new double[iterations];
+		long operations = 0;
+		long allocatedBefore = allocatedBytes();
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			long count = iterate(kernel);
+			rates[i] = count / ((System.nanoTime() - start) / 1e9);
+			operations += count;
+		}
+		long allocatedAfter = allocatedBytes();
+
+		double mean = 0;
+		for (double rate : rates)
+			mean += rate;
+		mean /= iterations;
+		double variance = 0;
+		for (double rate : rates)
+			variance += (rate - mean) * (rate - mean);
+		double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+		double bytesPerOp = allocatedBefore < 0 ? Double.NaN : (double) (allocatedAfter - allocatedBefore) / operations;
+		return new Result(kernel.getName(), mean, error, bytesPerOp);
+	}
+
+	/**
+	 * Run a kernel until an iteration's worth of time has passed.
+	 *
+	 * @return the number of operations done
+	 */
+	private long iterate(Kernel kernel) {
+		long start = System.nanoTime(), count = 0;
+		do {
+			count += kernel.run();
+		} while (System.nanoTime() - start < iterationNanos);
+		return count;
+	}
+
+	/**
+	 * @return the bytes allocated so far by the calling thread, or -1 if the JVM does not count them
+	 */
+	private long allocatedBytes() {
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+		if (!counter.isThreadAllocatedMemorySupported())
+			return -1;
+		if (!counter.isThreadAllocatedMemoryEnabled())
+			counter.setThreadAllocatedMemoryEnabled(true);
+		return counter.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * @return the heading of the lines of format
+	 */
+	public static String header() {
+		return String.format(Locale.ROOT, "%-40s %14s    %12s %10s", "Kernel", "ops/s", "error", "B/op");
+	}
+
+	public static String format(Result result) {
+		return String.format(Locale.ROOT, "%-40s %14.0f +- %12.0f %10.1f",
+				result.name, result.score, result.error, result.bytesPerOp);
+	}
+
+	/**
+	 * Write results as CSV, one kernel per line, for a later run to compare against.
+	 */
+	public static void writeCsv(List<Result> results, String fileName) throws IOException {
+		try (PrintWriter out = new PrintWriter(fileName, "UTF-8")) {
+			out.println("kernel,ops_per_s,error,bytes_per_op");
+			for (Result result : results)
+				out.printf(Locale.ROOT, "%s,%.1f,%.1f,%.3f%n", result.name, result.score, result.error, result.bytesPerOp);
+		}
+	}
+
+	/**
+	 * Read results written by writeCsv.
+	 *
+	 * @return the results by kernel name
+	 */
+	public static Map<String, Result> readCsv(String fileName) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+			in.readLine();
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				String[] fields = line.split(",");
+				if (fields.length < 4)
+					continue;
+				results.put(fields[0], new Result(fields[0], Double.parseDouble(fields[1]),
+						Double.parseDouble(fields[2]), Double.parseDouble(fields[3])));
+			}
+		}
+		return results;
+	}
+}
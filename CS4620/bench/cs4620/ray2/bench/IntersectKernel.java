@@ -0,0 +1,46 @@
+package cs4620.ray2.bench;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.surface.Surface;
+import egl.math.Vector3d;
+
+/**
+ * Surface.intersect of one surface, over rays fired at it from all around.
+ */
+class IntersectKernel extends Kernel {
+
+	private final Surface surface;
+	private final Vector3d min, max;
+	private final int count;
+	private final IntersectionRecord record = new IntersectionRecord();
+	private Ray[] rays;
+
+	/**
+	 * @param min the least corner of the surface's bounds
+	 * @param max the greatest corner of the surface's bounds
+	 * @param count the number of rays
+	 */
+	IntersectKernel(String name, Surface surface, Vector3d min, Vector3d max, int count) {
+		super(name);
+		this.surface = surface;
+		this.min = min;
+		this.max = max;
+		this.count = count;
+	}
+
+	@Override
+	public void setUp() {
+		rays = Rays.around(min, max, count);
+	}
+
+	@Override
+	public int run() {
+		double t = 0;
+		for (Ray ray : rays)
+			if (surface.intersect(record, ray))
+				t += record.t;
+		consume(t);
+		return rays.length;
+	}
+}
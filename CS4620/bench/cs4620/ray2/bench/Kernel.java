@@ -0,0 +1,46 @@
+package cs4620.ray2.bench;
+
+/**
+ * A piece of the renderer to be timed. setUp builds whatever the kernel works
+ * on and is not timed; every call of run then does the same fixed amount of
+ * work and returns how many operations (rays intersected, points shaded,
+ * lookups) that was, so kernels of very different cost are compared as rates.
+ */
+public abstract class Kernel {
+
+	/** Results are folded in here, so the JIT cannot tell that they are never used. */
+	private static volatile long sink;
+
+	private final String name;
+
+	protected Kernel(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Prepare the inputs of the kernel. Called once, just before it is measured.
+	 *
+	 * @throws Exception if the kernel cannot run here, for instance because a
+	 * file it needs is missing; it is then skipped
+	 */
+	public void setUp() throws Exception { }
+
+	/**
+	 * Do one round of work.
+	 *
+	 * @return the number of operations done
+	 */
+	public abstract int run();
+
+	/**
+	 * Keep a result alive. Call this once per run with something computed
+	 * from every operation, not once per operation.
+	 */
+	protected static void consume(double value) {
+		sink += Double.doubleToRawLongBits(value);
+	}
+}
@@ -0,0 +1,319 @@
+package cs4620.ray2.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.lwjgl.BufferUtils;
+
+import cs4620.mesh.MeshData;
+import cs4620.ray2.Cubemap;
+import cs4620.ray2.ResourceCache;
+import cs4620.ray2.SceneContext;
+import cs4620.ray2.shader.CookTorrance;
+import cs4620.ray2.shader.Glass;
+import cs4620.ray2.shader.Glazed;
+import cs4620.ray2.shader.Lambertian;
+import cs4620.ray2.shader.Phong;
+import cs4620.ray2.surface.Box;
+import cs4620.ray2.surface.Cylinder;
+import cs4620.ray2.surface.Mesh;
+import cs4620.ray2.surface.Sphere;
+import cs4620.ray2.surface.Surface;
+import cs4620.ray2.surface.Triangle;
+import egl.math.Colord;
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
+import egl.math.Vector3i;
+
+/**
+ * Measures the throughput and allocation of the hot kernels of the ray
+ * tracer: the intersection routines of the surfaces and of the tree, scene
+ * intersection against the bundled meshes, the shaders, and environment map
+ * lookups. Every kernel works on a fixed ray set drawn from a seed, so numbers
+ * from two versions of the code can be compared directly; with -baseline the
+ * comparison is made here, and a kernel that got slower or started to allocate
+ * makes the run fail. AllocationCheck runs the same kernels and fails if any
+ * of them allocates at all. Kernels that cannot be measured here, because a
+ * mesh is missing or the code under them is still an assignment stub, are
+ * reported as skipped and left out of the results.
+ *
+ * Usage: java cs4620.ray2.bench.KernelBenchmark [options] [pattern]
+ * where pattern is a regular expression picking kernels by name; see usage()
+ * for the options.
+ */
+public class KernelBenchmark {
+
+	/** The meshes scene intersection and shading are measured on, relative to the workspace */
+	private static final String[] MESHES = {
+		"data/meshes/ray2/bunny10k_norms.obj",
+		"data/meshes/ray2/buddha100k_norms.obj",
+		"data/meshes/ray2/horse_norms.obj",
+	};
+
+	/** Face size of the generated environment map */
+	private static final int SKY_SIZE = 256;
+
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+
+		String root = ".", cubemapFile = null, csvFile = null, baselineFile = null;
+		int warmups = 3, iterations = 5, iterationMillis = 1000, rays = 1 << 16;
+		double tolerance = 10;
+		Pattern pattern = null;
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("-")) {
+				pattern = Pattern.compile(args[i]);
+				continue;
+			}
+			if (i + 1 == args.length) {
+				usage();
+				return;
+			}
+			switch (args[i].toLowerCase()) {
+			case "-p":
+				root = args[++i];
+				break;
+			case "-w":
+				warmups = Integer.parseInt(args[++i]);
+				break;
+			case "-i":
+				iterations = Integer.parseInt(args[++i]);
+				break;
+			case "-t":
+				iterationMillis = Integer.parseInt(args[++i]);
+				break;
+			case "-rays":
+				rays = Integer.parseInt(args[++i]);
+				break;
+			case "-cubemap":
+				cubemapFile = args[++i];
+				break;
+			case "-csv":
+				csvFile = args[++i];
+				break;
+			case "-baseline":
+				baselineFile = args[++i];
+				break;
+			case "-tolerance":
+				tolerance = Double.parseDouble(args[++i]);
+				break;
+			default:
+				usage();
+				return;
+			}
+		}
+
+		SceneContext context = new SceneContext(null, new ResourceCache());
+		List<Kernel> kernels = kernels(root, context, cubemapFile, rays);
+
+		Harness harness = new Harness(warmups, iterations, iterationMillis);
+		List<Harness.Result> results = new ArrayList<Harness.Result>();
+		System.out.println(Harness.header());
+		for (Kernel kernel : kernels) {
+			if (pattern != null && !pattern.matcher(kernel.getName()).find())
+				continue;
+			try {
+				kernel.setUp();
+			}
+			catch (Exception e) {
+				System.out.println(kernel.getName() + ": skipped, " + e);
+				continue;
+			}
+			Harness.Result result = harness.measure(kernel);
+			results.add(result);
+			System.out.println(Harness.format(result));
+		}
+
+		if (csvFile != null)
+			Harness.writeCsv(results, csvFile);
+		if (baselineFile != null && regressions(results, Harness.readCsv(baselineFile), tolerance) > 0)
+			System.exit(1);
+	}
+
+	private static void usage() {
+		System.out.println("Usage: java cs4620.ray2.bench.KernelBenchmark [options] [pattern]");
+		System.out.println("  -p root          workspace holding data/ (default .)");
+		System.out.println("  -w n             warm-up iterations (default 3)");
+		System.out.println("  -i n             measured iterations (default 5)");
+		System.out.println("  -t ms            least length of an iteration (default 1000)");
+		System.out.println("  -rays n          rays in each ray set (default 65536)");
+		System.out.println("  -cubemap file    PFM environment map (default: a generated sky)");
+		System.out.println("  -csv file        write the results to file");
+		System.out.println("  -baseline file   compare with results written by -csv, failing on a regression");
+		System.out.println("  -tolerance pct   slowdown counted as a regression (default 10)");
+		System.out.println("  pattern          run only the kernels whose name matches this regular expression");
+	}
+
+	/**
+	 * Every kernel, in the order they are run. Only the environment map is
+	 * loaded here; meshes are read when a kernel that needs them is set up,
+	 * so kernels left out by the pattern cost nothing.
+	 */
+	static List<Kernel> kernels(String root, SceneContext context, String cubemapFile, int rays) throws IOException {
+		List<Kernel> kernels = new ArrayList<Kernel>();
+		Vector3d unitMin = new Vector3d(-1, -1, -1), unitMax = new Vector3d(1, 1, 1);
+
+		Sphere sphere = new Sphere();
+		sphere.setRadius(1);
+		kernels.add(new IntersectKernel("Sphere.intersect", identity(sphere), unitMin, unitMax, rays));
+
+		Mesh triangleMesh = new Mesh(triangle());
+		identity(triangleMesh);
+		kernels.add(new IntersectKernel("Triangle.intersect", new Triangle(triangleMesh, new Vector3i(0, 1, 2), null),
+				new Vector3d(-1, -1, 0), new Vector3d(1, 1, 0), rays));
+
+		Cylinder cylinder = new Cylinder();
+		cylinder.setRadius(1);
+		cylinder.setHeight(2);
+		kernels.add(new IntersectKernel("Cylinder.intersect", identity(cylinder), unitMin, unitMax, rays));
+
+		// A box is intersected as the mesh it turns into when the scene is built
+		Box box = new Box();
+		box.setMinPt(unitMin);
+		box.setMaxPt(unitMax);
+		ArrayList<Surface> boxSurfaces = new ArrayList<Surface>();
+		identity(box).appendRenderableSurfaces(boxSurfaces);
+		kernels.add(new IntersectKernel("Box.intersect", boxSurfaces.get(0), unitMin, unitMax, rays));
+
+		kernels.add(new NodeKernel(rays));
+
+		for (String mesh : MESHES)
+			for (AccelKernel.Mode mode : AccelKernel.Mode.values())
+				kernels.add(new AccelKernel(resolve(root, mesh), context, mode, rays));
+		for (String mesh : MESHES) {
+			kernels.add(new LeafKernel(resolve(root, mesh), context, false, rays));
+			kernels.add(new LeafKernel(resolve(root, mesh), context, true, rays));
+			kernels.add(new WideKernel(resolve(root, mesh), context, 4, rays));
+			kernels.add(new WideKernel(resolve(root, mesh), context, 8, rays));
+		}
+
+		Cubemap sky = new Cubemap();
+		sky.setSceneContext(context);
+		if (cubemapFile == null) {
+			File generated = File.createTempFile("sky", ".pfm");
+			generated.deleteOnExit();
+			writeSky(generated, SKY_SIZE);
+			cubemapFile = generated.getPath();
+		}
+		else if (!new File(cubemapFile).isFile())
+			throw new FileNotFoundException(cubemapFile);
+		sky.setFilename(cubemapFile);
+
+		ShadingPoints points = new ShadingPoints(resolve(root, MESHES[0]), context, rays);
+		Lambertian lambertian = new Lambertian();
+		lambertian.setDiffuseColor(new Colord(0.6, 0.5, 0.4));
+		Phong phong = new Phong();
+		phong.setDiffuseColor(new Colord(0.4, 0.3, 0.2));
+		phong.setSpecularColor(new Colord(0.3, 0.3, 0.3));
+		phong.setExponent(50);
+		CookTorrance cookTorrance = new CookTorrance();
+		cookTorrance.setDiffuseColor(new Colord(0.3, 0.3, 0.3));
+		cookTorrance.setSpecularColor(new Colord(0.2, 0.2, 0.2));
+		cookTorrance.setRoughness(0.8);
+		cookTorrance.setRefractiveIndex(1.5);
+		Glass glass = new Glass();
+		glass.setRefractiveIndex(1.5);
+		Glazed glazed = new Glazed();
+		glazed.setRefractiveIndex(1.5);
+		glazed.setSubstrate(cookTorrance);
+		kernels.add(new ShadeKernel("Lambertian.shade", lambertian, points));
+		kernels.add(new ShadeKernel("Phong.shade", phong, points));
+		kernels.add(new ShadeKernel("CookTorrance.shade", cookTorrance, points));
+		kernels.add(new ShadeKernel("Glass.shade", glass, points));
+		kernels.add(new ShadeKernel("Glazed.shade", glazed, points));
+		kernels.add(new ShadeKernel("Lambertian.shade.environment", lambertian, points, sky, 4));
+		kernels.add(new ShadeKernel("Phong.shade.environment", phong, points, sky, 4));
+		kernels.add(new RenderKernel(points));
+
+		kernels.add(new CubemapKernel(sky, false, rays));
+		kernels.add(new CubemapKernel(sky, true, rays));
+		return kernels;
+	}
+
+	/**
+	 * Print how each result compares with the baseline.
+	 *
+	 * @return the number of kernels that lost more than tolerance percent of
+	 * their rate, or allocate where they did not before
+	 */
+	private static int regressions(List<Harness.Result> results, Map<String, Harness.Result> baseline, double tolerance) {
+		int regressions = 0;
+		System.out.println();
+		System.out.printf("%-40s %10s %10s%n", "Kernel", "change", "B/op was");
+		for (Harness.Result result : results) {
+			Harness.Result before = baseline.get(result.name);
+			if (before == null)
+				continue;
+			double change = 100 * (result.score / before.score - 1);
+			boolean slower = change < -tolerance;
+			// Stray bytes spread over millions of operations are noise; a whole object per operation is not
+			boolean allocates = result.bytesPerOp >= 1 && !(before.bytesPerOp >= 1);
+			String verdict = slower ? "  SLOWER" : allocates ? "  ALLOCATES" : "";
+			System.out.printf("%-40s %+9.1f%% %10.1f%s%n", result.name, change, before.bytesPerOp, verdict);
+			if (slower || allocates)
+				regressions++;
+		}
+		if (regressions > 0)
+			System.out.println(regressions + " kernel(s) regressed");
+		return regressions;
+	}
+
+	private static <T extends Surface> T identity(T surface) {
+		Matrix4d identity = new Matrix4d();
+		surface.setTransformation(identity, identity, identity);
+		return surface;
+	}
+
+	private static String resolve(String root, String file) {
+		return new File(root, file).getAbsolutePath();
+	}
+
+	/**
+	 * @return a mesh of a single triangle spanning the square from -1 to 1 in z = 0
+	 */
+	private static MeshData triangle() {
+		MeshData data = new MeshData();
+		data.vertexCount = 3;
+		data.indexCount = 3;
+		data.positions = BufferUtils.createFloatBuffer(9);
+		data.positions.put(new float[] { -1, -1, 0, 1, -1, 0, 0, 1, 0 });
+		data.indices = BufferUtils.createIntBuffer(3);
+		data.indices.put(new int[] { 0, 1, 2 });
+		return data;
+	}
+
+	/**
+	 * Write a cube map of a sky as a PFM cross: a soft gradient from the
+	 * horizon up, and a small bright sun, so importance sampling has something
+	 * to find.
+	 */
+	private static void writeSky(File file, int size) throws IOException {
+		int width = 3 * size, height = 4 * size;
+		ByteBuffer row = ByteBuffer.allocate(12 * width).order(ByteOrder.LITTLE_ENDIAN);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeBytes("PF\n" + width + " " + height + "\n-1.0\n");
+			for (int y = 0; y < height; y++) {
+				row.clear();
+				for (int x = 0; x < width; x++) {
+					// Brighter towards the top of the cross (+y), with the sun in the middle of that face
+					float sky = 0.1f + 0.9f * y / height;
+					boolean sun = y / size == 3 && x / size == 1
+							&& Math.abs(x % size - size / 2) < size / 32 + 1 && Math.abs(y % size - size / 2) < size / 32 + 1;
+					float value = sun ? 1000 : sky;
+					row.putFloat(value).putFloat(value).putFloat(sun ? value : 1.2f * value);
+				}
+				out.write(row.array());
+			}
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package cs4620.ray2.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.SceneContext;
+import cs4620.ray2.accel.FlatBvh;
+import cs4620.ray2.surface.Mesh;
+
+/**
+ * First hits of camera rays on the tree over a mesh's triangles, with the
+ * leaves tested by PackedTriangles or one triangle at a time, so the two leaf
+ * loops can be compared on the same tree and rays.
+ */
+class LeafKernel extends Kernel {
+
+	private final String file;
+	private final SceneContext context;
+	private final boolean packed;
+	private final int count;
+	private final IntersectionRecord record = new IntersectionRecord();
+	private FlatBvh tree;
+	private Ray[] rays;
+
+	/**
+	 * @param file the absolute path of the mesh
+	 * @param context the cache the mesh is loaded through, shared by the kernels
+	 * @param packed whether leaves are tested with PackedTriangles first
+	 */
+	LeafKernel(String file, SceneContext context, boolean packed, int count) {
+		super("FlatBvh.leaves." + (packed ? "packed." : "single.") + new File(file).getName().replaceFirst("\\.obj$", ""));
+		this.file = file;
+		this.context = context;
+		this.packed = packed;
+		this.count = count;
+	}
+
+	@Override
+	public void setUp() throws FileNotFoundException {
+		// Report a missing file as such, rather than as an error of Mesh.setData
+		if (!new File(file).isFile())
+			throw new FileNotFoundException(file);
+		Mesh mesh = new Mesh();
+		mesh.setSceneContext(context);
+		mesh.setData(file);
+		mesh.computeBoundingBox();
+
+		// A tree of its own; building it reorders only this mesh's triangles
+		tree = new FlatBvh();
+		tree.setPacked(packed);
+		tree.build(mesh);
+		rays = Rays.view(mesh.getMinBound(), mesh.getMaxBound(), count);
+	}
+
+	@Override
+	public int run() {
+		double t = 0;
+		for (Ray ray : rays)
+			if (tree.intersect(record, ray, false))
+				t += record.t;
+		consume(t);
+		return rays.length;
+	}
+}
@@ -0,0 +1,45 @@
+package cs4620.ray2.bench;
+
+import cs4620.ray2.Ray;
+import cs4620.ray2.accel.BvhNode;
+import egl.math.Vector3d;
+
+/**
+ * BvhNode.intersects, the ray-box test of the tree, on a unit box. Skipped
+ * while the test is the stub that accepts every ray.
+ */
+class NodeKernel extends Kernel {
+
+	private final int count;
+	private BvhNode node;
+	private Ray[] rays;
+
+	NodeKernel(int count) {
+		super("BvhNode.intersects");
+		this.count = count;
+	}
+
+	@Override
+	public void setUp() {
+		Vector3d min = new Vector3d(-1, -1, -1), max = new Vector3d(1, 1, 1);
+		node = new BvhNode(min, max, null, null, 0, 0);
+		rays = Rays.around(min, max, count);
+
+		// A ray leaving the box in the opposite direction cannot hit it
+		Ray away = new Ray(new Vector3d(0, 0, 2), new Vector3d(0, 0, 1));
+		away.start = Ray.EPSILON;
+		away.end = Double.POSITIVE_INFINITY;
+		if (node.intersects(away))
+			throw new UnsupportedOperationException("BvhNode.intersects accepts a ray that misses the box; it is not implemented");
+	}
+
+	@Override
+	public int run() {
+		int hits = 0;
+		for (Ray ray : rays)
+			if (node.intersects(ray))
+				hits++;
+		consume(hits);
+		return rays.length;
+	}
+}
@@ -0,0 +1,105 @@
+package cs4620.ray2.bench;
+
+import java.util.Random;
+
+import cs4620.ray2.Ray;
+import egl.math.Vector3d;
+
+/**
+ * The fixed sets of rays the kernels work on. They are drawn from a seeded
+ * generator, so every run, and every version of the code, is timed on the
+ * same rays.
+ */
+final class Rays {
+
+	/** Seed of every ray set */
+	static final long SEED = 4620;
+
+	private Rays() { }
+
+	/**
+	 * Rays from random points on a sphere around a box, each aimed at a random
+	 * point of the box grown by a fifth on every side, so that some rays miss
+	 * and the rest hit at all sorts of angles.
+	 *
+	 * @param min the least corner of the box
+	 * @param max the greatest corner of the box
+	 * @param count the number of rays
+	 * @return the rays, normalized, from Ray.EPSILON to infinity
+	 */
+	static Ray[] around(Vector3d min, Vector3d max, int count) {
+		Random random = new Random(SEED);
+		Vector3d center = new Vector3d(min).add(max).mul(0.5);
+		Vector3d size = new Vector3d(max).sub(min);
+		double radius = 2 * size.len();
+
+		Ray[] rays = new Ray[count];
+		Vector3d origin = new Vector3d(), target = new Vector3d();
+		for (int i = 0; i < count; i++) {
+			randomDirection(random, origin).mul(radius).add(center);
+			target.set(
+					min.x + size.x * (1.4 * random.nextDouble() - 0.2),
+					min.y + size.y * (1.4 * random.nextDouble() - 0.2),
+					min.z + size.z * (1.4 * random.nextDouble() - 0.2));
+			rays[i] = new Ray(origin, target.sub(origin).normalize());
+			rays[i].start = Ray.EPSILON;
+			rays[i].end = Double.POSITIVE_INFINITY;
+		}
+		return rays;
+	}
+
+	/**
+	 * Camera rays looking at a box from a fixed corner, through random points
+	 * of the pixels of a square image that just covers it. Pixels come in 8x8
+	 * tiles, as the renderer traces them, so neighbouring rays are coherent.
+	 *
+	 * @param min the least corner of the box
+	 * @param max the greatest corner of the box
+	 * @param count the number of rays, rounded down to whole tiles
+	 * @return the rays, normalized, from Ray.EPSILON to infinity
+	 */
+	static Ray[] view(Vector3d min, Vector3d max, int count) {
+		Random random = new Random(SEED);
+		Vector3d center = new Vector3d(min).add(max).mul(0.5);
+		double extent = new Vector3d(max).sub(min).len();
+
+		// An orthonormal frame looking at the center from distance 2 * extent
+		Vector3d w = new Vector3d(0.3, 0.4, 1).normalize();
+		Vector3d u = new Vector3d(0, 1, 0).cross(w).normalize();
+		Vector3d v = new Vector3d(w).cross(u);
+		Vector3d origin = new Vector3d(w).mul(2 * extent).add(center);
+
+		int tiles = Math.max(1, (int) Math.sqrt(count / 64));
+		int size = 8 * tiles;
+		Ray[] rays = new Ray[64 * tiles * tiles];
+		Vector3d direction = new Vector3d();
+		int i = 0;
+		for (int ty = 0; ty < tiles; ty++) {
+			for (int tx = 0; tx < tiles; tx++) {
+				for (int y = 8 * ty; y < 8 * ty + 8; y++) {
+					for (int x = 8 * tx; x < 8 * tx + 8; x++) {
+						// The image spans [-0.5, 0.5] at distance 1, which covers the box seen from 2 * extent
+						double s = (x + random.nextDouble()) / size - 0.5;
+						double t = (y + random.nextDouble()) / size - 0.5;
+						direction.set(u).mul(s).add(v.x * t, v.y * t, v.z * t).sub(w).normalize();
+						rays[i] = new Ray(origin, direction);
+						rays[i].start = Ray.EPSILON;
+						rays[i].end = Double.POSITIVE_INFINITY;
+						i++;
+					}
+				}
+			}
+		}
+		return rays;
+	}
+
+	/**
+	 * @return outDirection, set to a direction drawn uniformly over the sphere
+	 */
+	static Vector3d randomDirection(Random random, Vector3d outDirection) {
+		double z = 2 * random.nextDouble() - 1;
+		double phi = 2 * Math.PI * random.nextDouble();
+		double r = Math.sqrt(1 - z * z);
+		return outDirection.set(r * Math.cos(phi), r * Math.sin(phi), z);
+	}
+}
@@ -0,0 +1,59 @@
+package cs4620.ray2.bench;
+
+import java.io.FileNotFoundException;
+
+import cs4620.ray2.Image;
+import cs4620.ray2.RayTracer;
+import cs4620.ray2.RenderContext;
+import cs4620.ray2.camera.PerspectiveCamera;
+import egl.math.Colord;
+import egl.math.Vector3d;
+
+/**
+ * RayTracer.renderBlock over a whole small image of the mesh of a set of
+ * ShadingPoints, seen from where its camera rays come from: camera rays,
+ * packet intersection, shading and shadow rays, as the render loop runs them.
+ */
+class RenderKernel extends Kernel {
+
+	/** Width and height of the image */
+	private static final int SIZE = 64;
+
+	private final ShadingPoints points;
+	private final Colord color = new Colord();
+	private Image image;
+
+	RenderKernel(ShadingPoints points) {
+		super("RayTracer.renderBlock");
+		this.points = points;
+	}
+
+	@Override
+	public void setUp() throws FileNotFoundException {
+		points.prepare();
+		points.scene.setCubemap(null);
+
+		// The view of Rays.view: from 2 * extent along (0.3, 0.4, 1), an image of width 1 at distance 1
+		Vector3d min = points.scene.getSurfaces().get(0).getMinBound();
+		Vector3d max = points.scene.getSurfaces().get(0).getMaxBound();
+		Vector3d center = new Vector3d(min).add(max).mul(0.5);
+		Vector3d w = new Vector3d(0.3, 0.4, 1).normalize();
+		PerspectiveCamera camera = new PerspectiveCamera();
+		camera.setViewPoint(new Vector3d(w).mul(2 * new Vector3d(max).sub(min).len()).add(center));
+		camera.setViewDir(new Vector3d(w).negate());
+		camera.setViewUp(new Vector3d(0, 1, 0));
+		camera.setViewWidth(1);
+		camera.setViewHeight(1);
+		camera.initView();
+		points.scene.setCamera(camera);
+		image = new Image(SIZE, SIZE);
+	}
+
+	@Override
+	public int run() {
+		RayTracer.renderBlock(RenderContext.current(), points.scene, image, 0, 0, SIZE, SIZE);
+		image.getPixelColor(color, SIZE / 2, SIZE / 2);
+		consume(color.x + color.y + color.z);
+		return SIZE * SIZE;
+	}
+}
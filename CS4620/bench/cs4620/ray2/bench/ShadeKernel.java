@@ -0,0 +1,72 @@
+package cs4620.ray2.bench;
+
+import java.io.FileNotFoundException;
+
+import cs4620.ray2.Cubemap;
+import cs4620.ray2.RenderContext;
+import cs4620.ray2.shader.Shader;
+import egl.math.Colord;
+
+/**
+ * Shader.shade of one shader at every point of a set of ShadingPoints, shadow
+ * rays included, optionally with an environment map lighting the surface.
+ * A shader that is still an empty stub, or an environment map that does not
+ * light surfaces, is skipped rather than timed.
+ */
+class ShadeKernel extends Kernel {
+
+	private final Shader shader;
+	private final ShadingPoints points;
+	private final Cubemap environment;
+	private final int lightSamples;
+	private final Colord color = new Colord();
+
+	/**
+	 * @param environment a map to light the surface with, or null
+	 * @param lightSamples the number of samples of the map per point
+	 */
+	ShadeKernel(String name, Shader shader, ShadingPoints points, Cubemap environment, int lightSamples) {
+		super(name);
+		this.shader = shader;
+		this.points = points;
+		this.environment = environment;
+		this.lightSamples = lightSamples;
+	}
+
+	ShadeKernel(String name, Shader shader, ShadingPoints points) {
+		this(name, shader, points, null, 0);
+	}
+
+	@Override
+	public void setUp() throws FileNotFoundException {
+		points.prepare();
+		points.scene.setCubemap(environment);
+		if (environment != null) {
+			environment.setLightSamples(lightSamples);
+			if (environment.getLightSamples() == 0)
+				throw new UnsupportedOperationException("the environment map does not light surfaces");
+		}
+
+		// Every implemented shader sets its output, if only to black
+		RenderContext context = RenderContext.current();
+		for (int i = 0; i < Math.min(64, points.rays.length); i++) {
+			color.set(Double.NaN, Double.NaN, Double.NaN);
+			shader.shade(context, color, points.scene, points.rays[i], points.records[i], 1);
+			if (!Double.isNaN(color.x))
+				return;
+		}
+		throw new UnsupportedOperationException("shade does not set a color; the shader is not implemented");
+	}
+
+	@Override
+	public int run() {
+		RenderContext context = RenderContext.current();
+		double sum = 0;
+		for (int i = 0; i < points.rays.length; i++) {
+			shader.shade(context, color, points.scene, points.rays[i], points.records[i], 1);
+			sum += color.x + color.y + color.z;
+		}
+		consume(sum);
+		return points.rays.length;
+	}
+}
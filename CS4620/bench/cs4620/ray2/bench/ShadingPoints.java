@@ -0,0 +1,84 @@
+package cs4620.ray2.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.PointLight;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RayTracer;
+import cs4620.ray2.Scene;
+import cs4620.ray2.SceneContext;
+import cs4620.ray2.accel.FlatBvh;
+import cs4620.ray2.surface.Mesh;
+import egl.math.Colord;
+import egl.math.Vector3d;
+
+/**
+ * The hits the shading kernels shade: camera rays that hit a mesh lit by two
+ * point lights, with their intersection records. The mesh also casts the
+ * shadows the shaders test for. Everything is made the first time a kernel
+ * asks for it, and then shared by every shading kernel.
+ */
+class ShadingPoints {
+
+	private final String file;
+	private final SceneContext context;
+	private final int count;
+
+	Scene scene;
+	Ray[] rays;
+	IntersectionRecord[] records;
+
+	/**
+	 * @param file the absolute path of the mesh
+	 * @param count the number of camera rays; only those that hit are kept
+	 */
+	ShadingPoints(String file, SceneContext context, int count) {
+		this.file = file;
+		this.context = context;
+		this.count = count;
+	}
+
+	void prepare() throws FileNotFoundException {
+		if (scene != null)
+			return;
+		if (!new File(file).isFile())
+			throw new FileNotFoundException(file);
+		Mesh mesh = new Mesh();
+		mesh.setSceneContext(context);
+		mesh.setData(file);
+
+		Scene scene = new Scene();
+		scene.addSurface(mesh);
+		scene.setAccelStruct(new FlatBvh());
+		scene.setTransform();
+		RayTracer.build(scene);
+
+		// Lights above the mesh on either side, far enough to light all of it
+		Vector3d min = mesh.getMinBound(), max = mesh.getMaxBound();
+		double extent = new Vector3d(max).sub(min).len();
+		Vector3d center = new Vector3d(min).add(max).mul(0.5);
+		for (int side = -1; side <= 1; side += 2) {
+			PointLight light = new PointLight();
+			light.setPosition(new Vector3d(side, 2, 1).mul(extent).add(center));
+			double power = 4 * extent * extent;
+			light.setIntensity(new Colord(power, power, power));
+			scene.addLight(light);
+		}
+
+		ArrayList<Ray> hitRays = new ArrayList<Ray>();
+		ArrayList<IntersectionRecord> hitRecords = new ArrayList<IntersectionRecord>();
+		for (Ray ray : Rays.view(min, max, count)) {
+			IntersectionRecord record = new IntersectionRecord();
+			if (scene.getFirstIntersection(record, ray)) {
+				hitRays.add(ray);
+				hitRecords.add(record);
+			}
+		}
+		rays = hitRays.toArray(new Ray[hitRays.size()]);
+		records = hitRecords.toArray(new IntersectionRecord[hitRecords.size()]);
+		this.scene = scene;
+	}
+}
@@ -0,0 +1,65 @@
+package cs4620.ray2.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.SceneContext;
+import cs4620.ray2.accel.WideBvh;
+import cs4620.ray2.surface.Mesh;
+
+/**
+ * First hits of camera rays on a WideBvh over a mesh's triangles, for
+ * comparison with FlatBvh.leaves.single on the same rays.
+ */
+class WideKernel extends Kernel {
+
+	private final String file;
+	private final SceneContext context;
+	private final int width;
+	private final int count;
+	private final IntersectionRecord record = new IntersectionRecord();
+	private WideBvh tree;
+	private Ray[] rays;
+
+	/**
+	 * @param file the absolute path of the mesh
+	 * @param context the cache the mesh is loaded through, shared by the kernels
+	 * @param width the number of children of each node
+	 */
+	WideKernel(String file, SceneContext context, int width, int count) {
+		super("WideBvh." + width + "." + new File(file).getName().replaceFirst("\\.obj$", ""));
+		this.file = file;
+		this.context = context;
+		this.width = width;
+		this.count = count;
+	}
+
+	@Override
+	public void setUp() throws FileNotFoundException {
+		// Report a missing file as such, rather than as an error of Mesh.setData
+		if (!new File(file).isFile())
+			throw new FileNotFoundException(file);
+		Mesh mesh = new Mesh();
+		mesh.setSceneContext(context);
+		mesh.setData(file);
+		mesh.computeBoundingBox();
+
+		// A tree of its own; building it reorders only this mesh's triangles
+		tree = new WideBvh();
+		tree.setWidth(width);
+		tree.build(mesh);
+		rays = Rays.view(mesh.getMinBound(), mesh.getMaxBound(), count);
+	}
+
+	@Override
+	public int run() {
+		double t = 0;
+		for (Ray ray : rays)
+			if (tree.intersect(record, ray, false))
+				t += record.t;
+		consume(t);
+		return rays.length;
+	}
+}
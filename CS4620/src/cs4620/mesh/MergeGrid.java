@@ -0,0 +1,172 @@
+package cs4620.mesh;
+
+import java.util.Arrays;
+
+/**
+ * A Hash Grid Of Float Tuples (Positions, Normals Or Texture Coordinates) That
+ * Finds An Earlier Tuple Within A Merge Tolerance In Expected Constant Time
+ *
+ * Tuples Are Bucketed Into Cells As Wide As The Merge Radius, So Any Match
+ * Lies In The Same Cell Or In One Of Its Neighbors. Among Several Matches The
+ * Earliest Tuple Is Returned, Exactly Like A Linear Scan Would.
+ */
+final class MergeGrid {
+	/**
+	 * Tuples Match If Their Squared Distance Is At Most The Tolerance
+	 */
+	static final int DISTANCE = 0;
+	/**
+	 * Tuples Match If Their Dot Product Is At Least The Tolerance (For Normals)
+	 * Normals Are Bucketed By Direction, Assuming They Are Close To Unit Length
+	 */
+	static final int DOT = 1;
+
+	private final int dim, mode;
+	private final float tolerance;
+	private final boolean merging;
+	private final double inverseCell;
+
+	/**
+	 * The Tuples, dim Floats Each
+	 */
+	private float[] values;
+	private int count;
+
+	/**
+	 * Hash Buckets Holding The Last Tuple Added To Them, And For Each Tuple The
+	 * Previous One In The Same Bucket (-1 Ends A Chain)
+	 */
+	private int[] heads;
+	private int[] next;
+
+	/**
+	 * @param dim Number Of Components (2 Or 3)
+	 * @param mode DISTANCE Or DOT
+	 * @param tolerance Merge Tolerance; A Negative Squared Distance Or A Dot Above 1 Disables Merging
+	 */
+	MergeGrid(int dim, int mode, float tolerance) {
+		this.dim = dim;
+		this.mode = mode;
+		this.tolerance = tolerance;
+
+		double radius;
+		if(mode == DOT) {
+			merging = tolerance <= 1;
+			radius = Math.min(2, Math.sqrt(Math.max(0, 2 * (1 - tolerance))));
+		}
+		else {
+			merging = tolerance >= 0;
+			radius = Math.sqrt(Math.max(0, tolerance));
+		}
+		inverseCell = radius > 0 ? 1 / radius : 1;
+
+		values = new float[dim * 1024];
+		if(merging) {
+			heads = new int[2048];
+			Arrays.fill(heads, -1);
+			next = new int[1024];
+		}
+	}
+
+	/**
+	 * @return Number Of Distinct Tuples
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return Component c Of Tuple i
+	 */
+	float get(int i, int c) {
+		return values[dim * i + c];
+	}
+
+	/**
+	 * Finds The First Tuple That Matches (x, y, z), Adding It If There Is None
+	 * @param z Must Be 0 For 2D Tuples
+	 * @return Index Of The Matching Or New Tuple
+	 */
+	int add(float x, float y, float z) {
+		if(merging) {
+			int found = find(x, y, z);
+			if(found >= 0) return found;
+		}
+
+		if(values.length < dim * (count + 1)) values = Arrays.copyOf(values, 2 * values.length);
+		values[dim * count] = x;
+		values[dim * count + 1] = y;
+		if(dim > 2) values[dim * count + 2] = z;
+
+		if(merging) {
+			if(next.length <= count) next = Arrays.copyOf(next, 2 * next.length);
+			if(4 * (count + 1) > 3 * heads.length) rehash(2 * heads.length);
+			insert(count);
+		}
+		return count++;
+	}
+
+	private int find(float x, float y, float z) {
+		double s = scale(x, y, z);
+		long cx = cell(x, s), cy = cell(y, s), cz = cell(z, s);
+		int dz = dim > 2 ? 1 : 0;
+
+		int best = -1;
+		for(long i = cx - 1;i <= cx + 1;i++) {
+			for(long j = cy - 1;j <= cy + 1;j++) {
+				for(long k = cz - dz;k <= cz + dz;k++) {
+					for(int e = heads[bucket(i, j, k)];e >= 0;e = next[e]) {
+						if((best < 0 || e < best) && matches(e, x, y, z)) best = e;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	private boolean matches(int e, float x, float y, float z) {
+		int o = dim * e;
+		if(mode == DOT) {
+			float d = values[o] * x + values[o + 1] * y;
+			if(dim > 2) d += values[o + 2] * z;
+			return d >= tolerance;
+		}
+		float dx = values[o] - x, dy = values[o + 1] - y;
+		float d = dx * dx + dy * dy;
+		if(dim > 2) d += (values[o + 2] - z) * (values[o + 2] - z);
+		return d <= tolerance;
+	}
+
+	/**
+	 * @return The Factor From A Component To Cell Units; Normals Are Bucketed By Direction
+	 */
+	private double scale(float x, float y, float z) {
+		if(mode != DOT) return inverseCell;
+		double len = Math.sqrt((double)x * x + (double)y * y + (double)z * z);
+		return len > 0 ? inverseCell / len : inverseCell;
+	}
+
+	private static long cell(float v, double scale) {
+		return (long)Math.floor(v * scale);
+	}
+
+	private int bucket(long i, long j, long k) {
+		long h = i * 0x9E3779B97F4A7C15L + j * 0xC2B2AE3D27D4EB4FL + k * 0x165667B19E3779F9L;
+		h ^= h >>> 29;
+		return (int)h & (heads.length - 1);
+	}
+
+	private void insert(int e) {
+		float x = values[dim * e], y = values[dim * e + 1], z = dim > 2 ? values[dim * e + 2] : 0;
+		double s = scale(x, y, z);
+		int b = bucket(cell(x, s), cell(y, s), cell(z, s));
+		next[e] = heads[b];
+		heads[b] = e;
+	}
+
+	private void rehash(int buckets) {
+		heads = new int[buckets];
+		Arrays.fill(heads, -1);
+		for(int e = 0;e < count;e++) insert(e);
+	}
+}
@@ -0,0 +1,189 @@
+package cs4620.mesh;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A Binary Copy Of A Mesh Stored Next To Its Source File
+ *
+ * The Cache Holds A Header And Then The Positions, Normals, Texture Coordinates
+ * And Indices Exactly As They Are Laid Out In A MeshData, Followed By An
+ * Optional Opaque Block (Such As A Prebuilt Acceleration Structure). Loading It
+ * Maps The File And Hands Out Buffer Views, So Nothing Is Parsed. A Cache Is
+ * Only Used While The Size And Modification Time Of Its Source Are Unchanged.
+ *
+ * All Values Are Little-Endian:
+ * <pre>
+ *  0  Magic "CSMB"           4  Version
+ *  8  Source Size           16  Source Modification Time (ms)
+ * 24  Vertex Count          28  Index Count
+ * 32  Flags (1 = Normals, 2 = UVs)
+ * 36  Extra Block Size In Bytes (0 If None)
+ * 40  Positions, Normals, UVs, Indices, Extra Block
+ * </pre>
+ */
+public class MeshCache {
+	/**
+	 * Appended To The Source File Name To Name Its Cache
+	 */
+	public static final String EXTENSION = ".mesh";
+
+	private static final int MAGIC = 'C' | 'S' << 8 | 'M' << 16 | 'B' << 24;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 40;
+	private static final int FLAG_NORMALS = 1, FLAG_UVS = 2;
+
+	private final MeshData data;
+	private final ByteBuffer extra;
+
+	private MeshCache(MeshData data, ByteBuffer extra) {
+		this.data = data;
+		this.extra = extra;
+	}
+
+	/**
+	 * @return The Cached Mesh, Backed By The Mapped File
+	 */
+	public MeshData getMeshData() {
+		return data;
+	}
+	/**
+	 * @return The Extra Block As A Little-Endian Buffer, Or Null If There Is None
+	 */
+	public ByteBuffer getExtra() {
+		return extra == null ? null : extra.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @param source Source Mesh File
+	 * @return The Cache File Belonging To It
+	 */
+	public static File cacheFile(String source) {
+		return new File(source + EXTENSION);
+	}
+
+	/**
+	 * Maps The Cache Of A Source File
+	 * @param source Source Mesh File
+	 * @return The Cache, Or Null If There Is None Or It Is Out Of Date
+	 * @throws IOException If The Cache Exists But Cannot Be Read
+	 */
+	public static MeshCache open(String source) throws IOException {
+		File src = new File(source), file = cacheFile(source);
+		if(!file.isFile() || !src.isFile()) return null;
+
+		MappedByteBuffer buf;
+		try (FileInputStream in = new FileInputStream(file)) {
+			FileChannel channel = in.getChannel();
+			if(channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) return null;
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+
+		if(buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) return null;
+		if(buf.getLong(8) != src.length() || buf.getLong(16) != src.lastModified()) return null;
+
+		MeshData data = new MeshData();
+		data.vertexCount = buf.getInt(24);
+		data.indexCount = buf.getInt(28);
+		int flags = buf.getInt(32);
+		int extraSize = buf.getInt(36);
+
+		long size = HEADER_SIZE + 4L * (3L * data.vertexCount + data.indexCount) + extraSize;
+		if((flags & FLAG_NORMALS) != 0) size += 4L * 3 * data.vertexCount;
+		if((flags & FLAG_UVS) != 0) size += 4L * 2 * data.vertexCount;
+		if(data.vertexCount < 0 || data.indexCount < 0 || extraSize < 0 || size != buf.capacity()) return null;
+
+		int offset = HEADER_SIZE;
+		data.positions = section(buf, offset, 3 * data.vertexCount).asFloatBuffer();
+		offset += 4 * 3 * data.vertexCount;
+		if((flags & FLAG_NORMALS) != 0) {
+			data.normals = section(buf, offset, 3 * data.vertexCount).asFloatBuffer();
+			offset += 4 * 3 * data.vertexCount;
+		}
+		if((flags & FLAG_UVS) != 0) {
+			data.uvs = section(buf, offset, 2 * data.vertexCount).asFloatBuffer();
+			offset += 4 * 2 * data.vertexCount;
+		}
+		data.indices = section(buf, offset, data.indexCount).asIntBuffer();
+		offset += 4 * data.indexCount;
+
+		ByteBuffer extra = extraSize == 0 ? null : section(buf, offset, extraSize / 4).asReadOnlyBuffer();
+		return new MeshCache(data, extra);
+	}
+
+	/**
+	 * @return A Little-Endian View Of count 4-Byte Values Starting At offset
+	 */
+	private static ByteBuffer section(ByteBuffer buf, int offset, int count) {
+		ByteBuffer view = buf.duplicate();
+		view.position(offset);
+		view.limit(offset + 4 * count);
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Writes The Cache Of A Source File, Replacing Any Older One
+	 * @param source Source Mesh File
+	 * @param data Mesh To Store (Buffers Are Read From Index 0 Without Changing Their Positions)
+	 * @param extra Optional Block To Store After The Mesh, From Its Position To Its Limit; Its Size Must Be A Multiple Of 4
+	 * @throws IOException If The Cache Cannot Be Written
+	 */
+	public static void write(String source, MeshData data, ByteBuffer extra) throws IOException {
+		File src = new File(source), file = cacheFile(source);
+		int extraSize = extra == null ? 0 : extra.remaining();
+		if(extraSize % 4 != 0) throw new IOException("Extra block size " + extraSize + " is not a multiple of 4");
+
+		boolean normals = data.hasNormals(), uvs = data.hasUVs();
+		int v = data.vertexCount;
+		long size = HEADER_SIZE + 4L * (3L * v + data.indexCount) + extraSize;
+		if(normals) size += 4L * 3 * v;
+		if(uvs) size += 4L * 2 * v;
+		if(size > Integer.MAX_VALUE) throw new IOException("Mesh too large to cache");
+
+		ByteBuffer buf = ByteBuffer.allocateDirect((int)size).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(MAGIC).putInt(VERSION);
+		buf.putLong(src.length()).putLong(src.lastModified());
+		buf.putInt(v).putInt(data.indexCount);
+		buf.putInt((normals ? FLAG_NORMALS : 0) | (uvs ? FLAG_UVS : 0));
+		buf.putInt(extraSize);
+		put(buf, data.positions, 3 * v);
+		if(normals) put(buf, data.normals, 3 * v);
+		if(uvs) put(buf, data.uvs, 2 * v);
+		IntBuffer indices = data.indices.duplicate();
+		indices.clear().limit(data.indexCount);
+		buf.asIntBuffer().put(indices);
+		buf.position(buf.position() + 4 * data.indexCount);
+		if(extra != null) buf.put(extra.duplicate());
+		buf.flip();
+
+		// Write Beside The Target And Rename, So A Cache Is Never Seen Half-Written
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+				FileChannel channel = out.getChannel();
+				while(buf.hasRemaining()) channel.write(buf);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+	private static void put(ByteBuffer buf, FloatBuffer values, int count) {
+		FloatBuffer src = values.duplicate();
+		src.clear().limit(count);
+		buf.asFloatBuffer().put(src);
+		buf.position(buf.position() + 4 * count);
+	}
+}
@@ -0,0 +1,448 @@
+package cs4620.mesh;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Reads An OBJ File Straight Into A MeshData
+ *
+ * The File Is Memory-Mapped And Scanned Byte By Byte With A Hand-Written
+ * Number Tokenizer, So No Line Strings Or Vector Objects Are Created. Shared
+ * Positions, Texture Coordinates And Normals Are Found With Hash Grids, And
+ * Vertices And Indices Are Kept In Primitive Arrays. The Resulting MeshData Is
+ * Backed By Direct Buffers, So Files Bigger Than The Java Heap Can Be Read.
+ *
+ * Polygons With More Than 3 Vertices Are Split Into Triangle Fans, And Negative
+ * (Relative) Indices Are Supported.
+ */
+public class OBJReader {
+	/**
+	 * Largest Part Of The File That Is Mapped At Once
+	 */
+	private static final long WINDOW = 1L << 30;
+	/**
+	 * Longest Line That May Straddle The End Of A Mapped Window
+	 */
+	private static final int MAX_LINE = 1 << 16;
+
+	/**
+	 * Reads In An OBJ Mesh
+	 * @param file OBJ File
+	 * @return A Mesh
+	 * @throws IOException If The File Cannot Be Read Or Is Malformed
+	 */
+	public static MeshData read(String file) throws IOException {
+		return read(file, false, false, -1, -1, Float.MAX_VALUE);
+	}
+	/**
+	 * Reads In An OBJ Mesh, Merging Data Within The Default Tolerances
+	 * @param file OBJ File
+	 * @return A Mesh
+	 * @throws IOException If The File Cannot Be Read Or Is Malformed
+	 */
+	public static MeshData readWithMerging(String file) throws IOException {
+		return read(file, false, false, OBJParser.TOLERANCE_POSITION, OBJParser.TOLERANCE_UV, OBJParser.TOLERANCE_NORMAL);
+	}
+	/**
+	 * Reads In An OBJ Mesh With Possibility To Discard Certain Information
+	 * @param file OBJ File
+	 * @param discardTexCoords True If Mesh Should Not Contain Texture Coordinates
+	 * @param discardNormals True If Mesh Should Not Contain Normals
+	 * @param tPosSq Tolerance For Squared Distance Between Positions (Negative To Disable)
+	 * @param tUVSq Tolerance For Squared Distance Between Texture Coordinates (Negative To Disable)
+	 * @param tNormDot Tolerance For Dot Product Between Normals (Above 1 To Disable)
+	 * @return A Mesh
+	 * @throws IOException If The File Cannot Be Read Or Is Malformed
+	 */
+	public static MeshData read(String file, boolean discardTexCoords, boolean discardNormals, float tPosSq, float tUVSq, float tNormDot) throws IOException {
+		OBJReader r = new OBJReader(file, discardTexCoords, discardNormals, tPosSq, tUVSq, tNormDot);
+		try (FileInputStream in = new FileInputStream(file)) {
+			r.scan(in.getChannel());
+		}
+		return r.toMeshData();
+	}
+
+	private final String file;
+	private final boolean discardTexCoords, discardNormals;
+
+	/**
+	 * The Current Mapped Window And The Read Position In It
+	 */
+	private MappedByteBuffer buf;
+	private int pos, limit;
+	private long lineNumber;
+
+	/**
+	 * Merged Attributes, And For Each Attribute In The File Its Merged Index
+	 */
+	private final MergeGrid positions, uvs, normals;
+	private int[] posMap = new int[1024], uvMap = new int[1024], normMap = new int[1024];
+	private int posCount, uvCount, normCount;
+
+	/**
+	 * Distinct (Position, UV, Normal) Triples, -1 Where An Attribute Is Missing,
+	 * And An Open-Addressing Table Of Vertex Index + 1 (0 Is Empty)
+	 */
+	private int[] vertices = new int[3 * 1024];
+	private int vertexCount;
+	private int[] vertexTable = new int[2048];
+
+	/**
+	 * Triangle Indices, Grown As Needed
+	 */
+	private IntBuffer indices = BufferUtils.createIntBuffer(3 * 1024);
+
+	/**
+	 * Vertex Indices Of The Face Being Read
+	 */
+	private int[] face = new int[16];
+
+	/**
+	 * Token Scratch Space For Numbers The Fast Path Can't Handle
+	 */
+	private final StringBuilder token = new StringBuilder();
+
+	private OBJReader(String file, boolean discardTexCoords, boolean discardNormals, float tPosSq, float tUVSq, float tNormDot) {
+		this.file = file;
+		this.discardTexCoords = discardTexCoords;
+		this.discardNormals = discardNormals;
+		positions = new MergeGrid(3, MergeGrid.DISTANCE, tPosSq);
+		uvs = new MergeGrid(2, MergeGrid.DISTANCE, tUVSq);
+		normals = new MergeGrid(3, MergeGrid.DOT, tNormDot);
+	}
+
+	/**
+	 * Maps The File Window By Window, Starting Each New Window At A Line Start
+	 */
+	private void scan(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long base = 0;
+		while(base < size) {
+			long length = Math.min(WINDOW, size - base);
+			boolean last = base + length == size;
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+			limit = (int)length;
+			pos = 0;
+
+			int stop = last ? limit : limit - MAX_LINE;
+			while(pos < stop) {
+				lineNumber++;
+				readLine();
+				if(!last && pos >= limit) throw error("Line longer than " + MAX_LINE + " bytes");
+			}
+			base += pos;
+		}
+		buf = null;
+	}
+
+	private void readLine() throws IOException {
+		skipSpaces();
+		int c0 = peek(0), c1 = peek(1);
+		if(c0 == 'v') {
+			if(isSpace(c1)) {
+				pos += 1;
+				readPosition();
+			}
+			else if(c1 == 'n' && isSpace(peek(2))) {
+				pos += 2;
+				if(!discardNormals) readNormal();
+			}
+			else if(c1 == 't' && isSpace(peek(2))) {
+				pos += 2;
+				if(!discardTexCoords) readUV();
+			}
+		}
+		else if(c0 == 'f' && isSpace(c1)) {
+			pos += 1;
+			readFace();
+		}
+		skipLine();
+	}
+
+	private void readPosition() throws IOException {
+		if(!hasToken()) return;
+		float x = readFloat();
+		if(!hasToken()) return;
+		float y = readFloat();
+		if(!hasToken()) return;
+		float z = readFloat();
+		if(posCount == posMap.length) posMap = Arrays.copyOf(posMap, 2 * posCount);
+		posMap[posCount++] = positions.add(x, y, z);
+	}
+	private void readNormal() throws IOException {
+		if(!hasToken()) return;
+		float x = readFloat();
+		if(!hasToken()) return;
+		float y = readFloat();
+		if(!hasToken()) return;
+		float z = readFloat();
+		if(normCount == normMap.length) normMap = Arrays.copyOf(normMap, 2 * normCount);
+		normMap[normCount++] = normals.add(x, y, z);
+	}
+	private void readUV() throws IOException {
+		if(!hasToken()) return;
+		float u = readFloat();
+		if(!hasToken()) return;
+		float v = readFloat();
+		if(uvCount == uvMap.length) uvMap = Arrays.copyOf(uvMap, 2 * uvCount);
+		uvMap[uvCount++] = uvs.add(u, v, 0);
+	}
+
+	/**
+	 * Reads The Vertices Of A Face And Adds It As A Fan Of Triangles
+	 */
+	private void readFace() throws IOException {
+		int n = 0;
+		while(hasToken()) {
+			int p = resolve(readInt(), posMap, posCount);
+			int t = -1, nrm = -1;
+			if(peek(0) == '/') {
+				pos++;
+				if(peek(0) != '/' && hasDigits()) {
+					int i = readInt();
+					if(!discardTexCoords) t = resolve(i, uvMap, uvCount);
+				}
+				if(peek(0) == '/') {
+					pos++;
+					if(hasDigits()) {
+						int i = readInt();
+						if(!discardNormals) nrm = resolve(i, normMap, normCount);
+					}
+				}
+			}
+
+			if(n == face.length) face = Arrays.copyOf(face, 2 * n);
+			face[n++] = vertexIndex(p, t, nrm);
+		}
+
+		for(int i = 1;i + 1 < n;i++) {
+			if(indices.remaining() < 3) {
+				IntBuffer grown = BufferUtils.createIntBuffer(2 * indices.capacity());
+				indices.flip();
+				grown.put(indices);
+				indices = grown;
+			}
+			indices.put(face[0]).put(face[i]).put(face[i + 1]);
+		}
+	}
+
+	/**
+	 * Converts A One-Based Or Negative (Relative) OBJ Index Into A Merged Index
+	 */
+	private int resolve(int index, int[] map, int count) throws IOException {
+		int i = index < 0 ? count + index : index - 1;
+		if(i < 0 || i >= count) throw error("Index " + index + " out of range");
+		return map[i];
+	}
+
+	/**
+	 * Finds Or Adds The Vertex With The Given Merged Attribute Indices
+	 */
+	private int vertexIndex(int p, int t, int n) {
+		int mask = vertexTable.length - 1;
+		int slot = hash(p, t, n) & mask;
+		for(int e;(e = vertexTable[slot]) != 0;slot = (slot + 1) & mask) {
+			int o = 3 * (e - 1);
+			if(vertices[o] == p && vertices[o + 1] == t && vertices[o + 2] == n) return e - 1;
+		}
+
+		if(vertices.length < 3 * (vertexCount + 1)) vertices = Arrays.copyOf(vertices, 2 * vertices.length);
+		vertices[3 * vertexCount] = p;
+		vertices[3 * vertexCount + 1] = t;
+		vertices[3 * vertexCount + 2] = n;
+		vertexTable[slot] = ++vertexCount;
+		if(2 * vertexCount > vertexTable.length) rehashVertices();
+		return vertexCount - 1;
+	}
+	private void rehashVertices() {
+		vertexTable = new int[2 * vertexTable.length];
+		int mask = vertexTable.length - 1;
+		for(int v = 0;v < vertexCount;v++) {
+			int slot = hash(vertices[3 * v], vertices[3 * v + 1], vertices[3 * v + 2]) & mask;
+			while(vertexTable[slot] != 0) slot = (slot + 1) & mask;
+			vertexTable[slot] = v + 1;
+		}
+	}
+	private static int hash(int p, int t, int n) {
+		int h = p * 0x9E3779B1 + t * 0x85EBCA77 + n * 0xC2B2AE3D;
+		return h ^ (h >>> 15);
+	}
+
+	/**
+	 * Gathers The Attributes Of Every Vertex Into Direct Buffers
+	 * Vertices Missing A Texture Coordinate Or Normal Get Zeros
+	 */
+	private MeshData toMeshData() {
+		MeshData data = new MeshData();
+		data.vertexCount = vertexCount;
+		data.indexCount = indices.position();
+
+		data.indices = indices;
+		data.indices.flip();
+
+		data.positions = BufferUtils.createFloatBuffer(3 * vertexCount);
+		for(int v = 0;v < vertexCount;v++) {
+			int p = vertices[3 * v];
+			data.positions.put(positions.get(p, 0)).put(positions.get(p, 1)).put(positions.get(p, 2));
+		}
+		data.positions.flip();
+
+		if(uvs.size() > 0) {
+			data.uvs = BufferUtils.createFloatBuffer(2 * vertexCount);
+			for(int v = 0;v < vertexCount;v++) {
+				int t = vertices[3 * v + 1];
+				if(t < 0) data.uvs.put(0).put(0);
+				else data.uvs.put(uvs.get(t, 0)).put(uvs.get(t, 1));
+			}
+			data.uvs.flip();
+		}
+
+		if(normals.size() > 0) {
+			data.normals = BufferUtils.createFloatBuffer(3 * vertexCount);
+			for(int v = 0;v < vertexCount;v++) {
+				int n = vertices[3 * v + 2];
+				if(n < 0) data.normals.put(0).put(0).put(0);
+				else data.normals.put(normals.get(n, 0)).put(normals.get(n, 1)).put(normals.get(n, 2));
+			}
+			data.normals.flip();
+		}
+
+		return data;
+	}
+
+	private int peek(int offset) {
+		return pos + offset < limit ? buf.get(pos + offset) : '\n';
+	}
+	private int advance() {
+		pos++;
+		return peek(0);
+	}
+	private static boolean isSpace(int c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+	private void skipSpaces() {
+		while(pos < limit) {
+			int c = buf.get(pos);
+			if(c != ' ' && c != '\t' && c != '\r') break;
+			pos++;
+		}
+	}
+	/**
+	 * Moves Past The Next Line Break
+	 */
+	private void skipLine() {
+		while(pos < limit && buf.get(pos++) != '\n');
+	}
+	/**
+	 * Skips Spaces And Checks For Another Token On This Line (Stopping At Comments)
+	 */
+	private boolean hasToken() {
+		skipSpaces();
+		int c = peek(0);
+		return c != '\n' && c != '#';
+	}
+	private boolean hasDigits() {
+		int c = peek(0);
+		return isDigit(c) || c == '-' || c == '+';
+	}
+
+	private int readInt() throws IOException {
+		int c = peek(0);
+		boolean negative = c == '-';
+		if(negative || c == '+') c = advance();
+
+		if(!isDigit(c)) throw error("Expected an integer");
+		long value = 0;
+		while(isDigit(c = peek(0))) {
+			value = 10 * value + (c - '0');
+			if(value > Integer.MAX_VALUE) throw error("Integer out of range");
+			pos++;
+		}
+		return (int)(negative ? -value : value);
+	}
+
+	/**
+	 * Reads A Decimal Float Directly When Its Significant Digits Fit A Long And
+	 * Its Exponent Makes The Scaling Exact, Otherwise Falls Back To Float.parseFloat
+	 */
+	private float readFloat() throws IOException {
+		int start = pos;
+		int c = peek(0);
+		boolean negative = c == '-';
+		if(negative || c == '+') c = advance();
+
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean any = false, exact = true;
+		for(;isDigit(c);c = advance()) {
+			any = true;
+			if(digits < 18) {
+				mantissa = 10 * mantissa + (c - '0');
+				if(mantissa != 0) digits++;
+			}
+			else {
+				exponent++;
+				exact = false;
+			}
+		}
+		if(c == '.') {
+			for(c = advance();isDigit(c);c = advance()) {
+				any = true;
+				if(digits < 18) {
+					mantissa = 10 * mantissa + (c - '0');
+					if(mantissa != 0) digits++;
+					exponent--;
+				}
+				else exact = false;
+			}
+		}
+		if(any && (c == 'e' || c == 'E')) {
+			c = advance();
+			boolean negativeExponent = c == '-';
+			if(negativeExponent || c == '+') c = advance();
+			if(!isDigit(c)) exact = false;
+			int e = 0;
+			for(;isDigit(c);c = advance()) {
+				if(e < 10000) e = 10 * e + (c - '0');
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+
+		if(any && exact && (isSpace(c) || c == '#')) {
+			if(mantissa == 0) return negative ? -0f : 0f;
+			if(mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+				double v = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+				return (float)(negative ? -v : v);
+			}
+		}
+
+		// Slow Path: Let The Library Handle Long Mantissas, Big Exponents And Odd Tokens
+		while(!isSpace(peek(0)) && peek(0) != '#') pos++;
+		token.setLength(0);
+		for(int i = start;i < pos;i++) token.append((char)buf.get(i));
+		try {
+			return Float.parseFloat(token.toString());
+		}
+		catch(NumberFormatException e) {
+			throw error("Bad number \"" + token + "\"");
+		}
+	}
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for(int i = 1;i < POWERS_OF_TEN.length;i++) POWERS_OF_TEN[i] = 10 * POWERS_OF_TEN[i - 1];
+	}
+
+	private IOException error(String message) {
+		return new IOException(file + ":" + lineNumber + ": " + message);
+	}
+}
@@ -0,0 +1,39 @@
+package cs4620.ray2;
+
+/**
+ * Settings for adaptive supersampling. Every pixel starts with a small
+ * stratified set of samples; more samples are then added one at a time only
+ * to the pixels whose estimated noise is still above the threshold, until the
+ * sample count of the scene is reached. Flat regions such as the background
+ * stop after the first few samples, and edges and glossy highlights get the
+ * rest.
+ *
+ * Enable it from a scene file with, for example,
+ * &lt;adaptive&gt;&lt;threshold&gt;0.02&lt;/threshold&gt;&lt;/adaptive&gt;; the
+ * &lt;samples&gt; of the scene then become the cap per pixel. The number of
+ * samples each pixel received is written next to the image as a heatmap.
+ */
+public class Adaptive {
+
+	/**
+	 * Relative standard error of the luminance of a pixel (see
+	 * PixelStats.getRelativeError) below which it gets no more samples.
+	 */
+	protected double threshold = 0.02;
+	public void setThreshold(double threshold) { this.threshold = Math.max(0, threshold); }
+	public double getThreshold() { return threshold; }
+
+	/**
+	 * Relative difference between the mean luminance of neighbouring pixels
+	 * above which both are treated as lying on an edge and get the full number
+	 * of samples, even if their own samples all agree.
+	 */
+	protected double contrast = 0.1;
+	public void setContrast(double contrast) { this.contrast = Math.max(0, contrast); }
+	public double getContrast() { return contrast; }
+
+	/** Side of the stratified grid of samples every pixel starts with. */
+	protected int initialSamples = 2;
+	public void setInitialSamples(int n) { initialSamples = Math.max(1, (int) Math.round(Math.sqrt(n))); }
+	public int getInitialSamples() { return initialSamples; }
+}
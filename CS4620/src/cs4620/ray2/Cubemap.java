@@ -1,96 +1,320 @@
 package cs4620.ray2;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import egl.math.Vector2d;
 import egl.math.Vector3d;
 import egl.math.Colord;
 
-public class Cubemap {
+public class Cubemap implements SceneResource {
 
 	// Parameters
 	String filename;
 	double scaleFactor = 1.0;
 
 	int width, height, blockSz;
-	int mapBits; // 2^(mapBits-1) < width*height <= 2^mapBits
-	float[] imageData;
-	float[] cumProb;
-
-	Vector2d faceUV = new Vector2d();
+	/**
+	 * The pixels, RGB, read in place from the memory-mapped file. Pixel k of
+	 * the cross, counting rows from the bottom as PFM stores them, starts at
+	 * pixelOffset(k).
+	 */
+	FloatBuffer imageData;
+	/** True if the file stores the six faces one after another rather than as a cross */
+	boolean tiled;
+	/**
+	 * The sampling table, over the 6 * blockSz rows of the faces (row iv of
+	 * face f being row f * blockSz + iv). rowCdf[r] is the probability that
+	 * generate picks a row before row r; pixelCdf[r * blockSz + i] is the
+	 * probability, once row r is picked, of picking one of its pixels up to
+	 * and including i. Floats are precise enough within a row, and keep the
+	 * table at a quarter of the size of the map's pixels.
+	 */
+	double[] rowCdf;
+	float[] pixelCdf;
+
+	/** Number of directions the environment is sampled in per shading point when it lights surfaces; 0 if it does not */
+	int lightSamples = 0;
+
+	/** Rows of the faces whose sampling weights are summed by one task */
+	private static final int CDF_ROWS_PER_TASK = 16;
+
+	/** Which face is at each position in the 3x4 grid of the map */
+	private static final int[][] LOC_FACE = { {-1, 4, -1}, { -1, 3, -1}, {1, 5, 0}, {-1, 2, -1} };
+
+	/** Inverse of LOC_FACE: the column and row of each face */
+	private static final int[] FACE_COLUMN = { 2, 0, 1, 1, 1, 1 };
+	private static final int[] FACE_ROW = { 2, 2, 3, 1, 0, 2 };
+
+	/** Where the scene this map belongs to was loaded from, or null if it was made in code. */
+	SceneContext context;
 
 	public Cubemap() { }
 
+	@Override
+	public void setSceneContext(SceneContext context) {
+		this.context = context;
+	}
+
+	/**
+	 * Load the map from a PFM file, named relative to the working directory.
+	 * Maps of one resource cache that name the same file share its pixels and
+	 * sampling table.
+	 */
 	public void setFilename(String filename) {
 		this.filename = filename;
 
+		SceneContext scene = context != null ? context : SceneContext.local();
+		Cubemap loaded;
+		try {
+			loaded = scene.getResources().get("cubemap", scene.allow(new File(filename).getAbsolutePath()), Cubemap.class,
+					new ResourceCache.Loader<Cubemap>() {
+				@Override
+				public Cubemap load(String path) throws IOException {
+					Cubemap map = new Cubemap();
+					map.load(path);
+					return map;
+				}
+			});
+		} catch (IOException e) {
+			System.err.println("Error loading cube map: " + e);
+			return;
+		}
+
+		width = loaded.width;
+		height = loaded.height;
+		blockSz = loaded.blockSz;
+		imageData = loaded.imageData;
+		tiled = loaded.tiled;
+		rowCdf = loaded.rowCdf;
+		pixelCdf = loaded.pixelCdf;
+	}
+
+	private void load(String filename) throws IOException {
 		PNMHeaderInfo hdr = new PNMHeaderInfo();
 		imageData = readPFM(new File(filename), hdr);
+		if (imageData == null)
+			throw new IOException("Could not read " + filename);
+
+		tiled = hdr.tiled;
+		if (tiled) {
+			blockSz = hdr.width;
+			width = 3 * blockSz;
+			height = 4 * blockSz;
+		}
+		else {
+			width = hdr.width;
+			height = hdr.height;
+			blockSz = width / 3;
+		}
+
+		buildCdf();
+	}
 
-		width = hdr.width;
-		height = hdr.height;
-		blockSz = width / 3;
+	/**
+	 * Fill in the sampling table. Bands of rows are weighted and normalized in
+	 * parallel, in one pass over the map; only the row sums are then added up
+	 * in order.
+	 */
+	private void buildCdf() {
+		int rows = 6 * blockSz;
+		rowCdf = new double[rows + 1];
+		pixelCdf = new float[rows * blockSz];
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			// Each row's sum is left in rowCdf[row + 1]
+			pool.invoke(new CdfTask(0, rows));
+		}
+		finally {
+			pool.shutdown();
+		}
+		for (int r = 0; r < rows; r++)
+			rowCdf[r + 1] += rowCdf[r];
+		double total = rowCdf[rows];
+		for (int r = 1; r <= rows; r++)
+			rowCdf[r] /= total;
+	}
 
-		for (mapBits = 0; (1 << mapBits) < width*height; mapBits++);
+	/**
+	 * Fills in the conditional table of the face rows [start, end) and leaves
+	 * the total weight of each row r in rowCdf[r + 1].
+	 */
+	private class CdfTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
 
-		cumProb = new float[width*height+1];
-		cumProb[0] = 0;
+		private final int start, end;
 
-		for (int k = 1; k <= width*height; k++)
-			cumProb[k] = cumProb[k-1] + calcPixelProb(k-1);
+		CdfTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
 
-		for (int k = 1; k <= width*height; k++)
-			cumProb[k] /= cumProb[width*height];
+		@Override
+		protected void compute() {
+			if (end - start > CDF_ROWS_PER_TASK) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new CdfTask(start, mid), new CdfTask(mid, end));
+				return;
+			}
+			double[] sums = new double[blockSz];
+			for (int r = start; r < end; r++) {
+				int iFace = r / blockSz, iv = r % blockSz;
+				int k = (FACE_ROW[iFace] * blockSz + iv) * width + FACE_COLUMN[iFace] * blockSz;
+				double sum = 0;
+				for (int i = 0; i < blockSz; i++) {
+					sum += calcPixelProb(k + i);
+					sums[i] = sum;
+				}
+				// A row with nothing in it is never picked; keep its table valid anyway
+				for (int i = 0; i < blockSz; i++)
+					pixelCdf[r * blockSz + i] = sum > 0 ? (float) (sums[i] / sum) : (float) (i + 1) / blockSz;
+				pixelCdf[r * blockSz + blockSz - 1] = 1;
+				rowCdf[r + 1] = sum;
+			}
+		}
 	}
 
 	public void setScaleFactor(double scaleFactor) {
 		this.scaleFactor = scaleFactor;
 	}
 
+	/**
+	 * Light surfaces by the environment, taking this many directions per
+	 * shading point from the map and as many from the material. By default
+	 * the environment is only seen in reflections and by rays that miss.
+	 */
+	public void setLightSamples(int lightSamples) {
+		this.lightSamples = Math.max(0, lightSamples);
+	}
 
+	/**
+	 * @return the number of directions to sample per shading point, or 0 if
+	 * the environment does not light surfaces
+	 */
+	public int getLightSamples() {
+		return rowCdf == null ? 0 : lightSamples;
+	}
+
+	/**
+	 * Set outRadiance to the radiance of the map seen in a direction: the
+	 * pixel of the face the direction points at, read in place from the
+	 * mapped file and scaled by scaleFactor. A map that failed to load is
+	 * black. May be called from several threads at once.
+	 *
+	 * @param dir a direction, of any length
+	 * @param outRadiance set to the radiance
+	 */
 	public void evaluate(Vector3d dir, Colord outRadiance) {
-		//TODO#A7 Look up for the radiance of the environment mapping in a given direction
-		//don't forget to multiply the outRadiance by scaleFactor
-		
+		if (imageData == null) {
+			outRadiance.setZero();
+			return;
+		}
+		int offset = pixelOffset(dirToIndex(dir));
+		outRadiance.set(imageData.get(offset), imageData.get(offset + 1), imageData.get(offset + 2)).mul(scaleFactor);
 	}
-	
+
+	/**
+	 * Pick a direction with probability proportional to the brightness of the
+	 * map in that direction. May be called from several threads at once.
+	 *
+	 * @param seed two numbers in [0, 1); x is changed
+	 * @param outDirection set to the unit direction picked
+	 */
 	public void generate(Vector2d seed, Vector3d outDirection) {
 
-		// choose a pixel
-		double searchProb = seed.x;
-		int k = 0;
+		// choose a row of a face, then a pixel in it
+		double searchProb = Math.max(seed.x, Double.MIN_VALUE);
+		int rows = 6 * blockSz;
+		int lo = 0, hi = rows - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (rowCdf[mid] < searchProb) lo = mid;
+			else hi = mid - 1;
+		}
+		int row = lo;
+		searchProb = Math.max((searchProb - rowCdf[row]) / (rowCdf[row + 1] - rowCdf[row]), Double.MIN_VALUE);
+
+		int base = row * blockSz;
+		lo = 0;
+		hi = blockSz - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (pixelCdf[base + mid - 1] < searchProb) lo = mid;
+			else hi = mid - 1;
+		}
+		double before = lo == 0 ? 0 : pixelCdf[base + lo - 1];
+		seed.x = (searchProb - before) / (pixelCdf[base + lo] - before);
 
-		for (int p = mapBits-1; p >= 0; p--)
-			if (searchProb > cumProb[k + (1 << p)])
-				k += (1 << p);
+		// choose u and v randomly in that pixel
+		double u = 2 * (lo + seed.x) / blockSz - 1;
+		double v = 2 * (row % blockSz + seed.y) / blockSz - 1;
 
-		double pixelProb = cumProb[k + 1] - cumProb[k];
-		seed.x = (searchProb - cumProb[k]) / pixelProb;
+		// choose the direction based on face index and (u,v)
+		faceToDir(row / blockSz, u, v, outDirection);
+	}
 
-		// choose u and v randomly in that pixel.  faceUV is the pixel center.
-		int iFace = indexToFace(k, faceUV);
-		faceUV.x += (2 * seed.x - 1) / blockSz;
-		faceUV.y += (2 * seed.y - 1) / blockSz;
+	/**
+	 * @param dir a direction, of any length
+	 * @return the probability density per unit solid angle of generate picking dir
+	 */
+	public double pdf(Vector3d dir) {
+		int k = dirToIndex(dir);
+		int ix = k % width, iy = k / width;
+		int row = LOC_FACE[iy / blockSz][ix / blockSz] * blockSz + iy % blockSz, i = ix % blockSz;
+		double before = i == 0 ? 0 : pixelCdf[row * blockSz + i - 1];
+		double prob = (rowCdf[row + 1] - rowCdf[row]) * (pixelCdf[row * blockSz + i] - before);
+		// Uniform over the pixel's area on the face, 4/blockSz^2, which is seen from
+		// the center at distance sqrt(d) and at angle acos(1/sqrt(d)): d^1.5 per unit area
+		double major = Math.max(Math.abs(dir.x), Math.max(Math.abs(dir.y), Math.abs(dir.z)));
+		double sqrtD = dir.len() / major;
+		return prob * blockSz * blockSz / 4 * sqrtD * sqrtD * sqrtD;
+	}
 
-		// choose the direction based on face index and (u,v)
-		faceToDir(iFace, faceUV, outDirection);
+	/**
+	 * @param dir a direction, of any length
+	 * @return the index of the pixel of the map seen in that direction
+	 */
+	int dirToIndex(Vector3d dir) {
+		double ax = Math.abs(dir.x), ay = Math.abs(dir.y), az = Math.abs(dir.z);
+		int iFace;
+		double u, v;
+		// Inverse of faceToDir: divide by the major component
+		if (ax >= ay && ax >= az) {
+			iFace = dir.x > 0 ? 0 : 1;
+			u = (dir.x > 0 ? dir.z : -dir.z) / ax;
+			v = dir.y / ax;
+		}
+		else if (ay >= az) {
+			iFace = dir.y > 0 ? 2 : 3;
+			u = dir.x / ay;
+			v = (dir.y > 0 ? dir.z : -dir.z) / ay;
+		}
+		else {
+			iFace = dir.z > 0 ? 4 : 5;
+			u = dir.x / az;
+			v = (dir.z > 0 ? -dir.y : dir.y) / az;
+		}
+		int iu = Math.min(blockSz - 1, Math.max(0, (int) ((u + 1) / 2 * blockSz)));
+		int iv = Math.min(blockSz - 1, Math.max(0, (int) ((v + 1) / 2 * blockSz)));
+		return (FACE_ROW[iFace] * blockSz + iv) * width + FACE_COLUMN[iFace] * blockSz + iu;
 	}
 
 	protected int indexToFace(int index, Vector2d outFaceUV) {
 		
-		// Table of which face is at each position in the 3x4 grid of the map
-		final int[][] locFace = { {-1, 4, -1}, { -1, 3, -1}, {1, 5, 0}, {-1, 2, -1} };
-
 		// (ix, iy) are the pixel coords in the whole map
 		int ix = index % width;
 		int iy = index / width;
-		int iFace = locFace[iy / blockSz][ix / blockSz];
+		int iFace = LOC_FACE[iy / blockSz][ix / blockSz];
 
 		// (iu, iv) are the pixel coords within a face
 		int iu = ix % blockSz;
@@ -102,9 +326,10 @@ public class Cubemap {
 	}
 
 	protected void faceToDir(int iFace, Vector2d faceUV, Vector3d outDir) {
-		double u = faceUV.x;
-		double v = faceUV.y;
+		faceToDir(iFace, faceUV.x, faceUV.y, outDir);
+	}
 
+	private static void faceToDir(int iFace, double u, double v, Vector3d outDir) {
 		switch (iFace) {
 		case 0:
 			outDir.set(1, v, u);
@@ -129,48 +354,101 @@ public class Cubemap {
 		outDir.normalize();
 	}
 
+	/**
+	 * @return the weight of pixel k in the sampling table: its largest component
+	 * times the solid angle it covers. Safe to call from several threads.
+	 */
 	protected float calcPixelProb(int k) {
-		if (indexToFace(k, faceUV) == -1) return 0;
+		int ix = k % width;
+		int iy = k / width;
+		int offset = pixelOffset(k);
+		if (offset == -1) return 0;
+
+		float r = imageData.get(offset);
+		float g = imageData.get(offset + 1);
+		float b = imageData.get(offset + 2);
 
-		float r = imageData[0 + 3*k];
-		float g = imageData[1 + 3*k];
-		float b = imageData[2 + 3*k];
+		double u = 2 * (ix % blockSz + 0.5) / blockSz - 1;
+		double v = 2 * (iy % blockSz + 0.5) / blockSz - 1;
+		double d = 1 + u*u + v*v;
 
-		double u = faceUV.x;
-		double v = faceUV.y;
+		return (float) (Math.max(Math.max(r, g), b) / (d * Math.sqrt(d)));
+	}
 
-		return Math.max(Math.max(r, g), b) / (float) Math.pow(1 + u*u + v*v, 1.5);
+	/**
+	 * @param k the index of a pixel of the cross
+	 * @return the index in imageData of its red component, or -1 if the pixel
+	 * is not on any face
+	 */
+	int pixelOffset(int k) {
+		int ix = k % width;
+		int iy = k / width;
+		int iFace = LOC_FACE[iy / blockSz][ix / blockSz];
+		if (iFace == -1) return -1;
+		if (!tiled) return 3 * k;
+		return 3 * ((iFace * blockSz + iy % blockSz) * blockSz + ix % blockSz);
+	}
+
+	/**
+	 * Write the map in the tiled layout readPFM accepts: the header
+	 * "PT\n&lt;size&gt; &lt;6 * size&gt;\n-1\n" followed by the six faces in order, each
+	 * size x size little-endian RGB floats with rows from the bottom. Half of a
+	 * cross is empty, so this is half the size, and each face is contiguous.
+	 */
+	public void writeTiled(String filename) throws IOException {
+		byte[] header = ("PT\n" + blockSz + " " + 6 * blockSz + "\n-1\n").getBytes("US-ASCII");
+		ByteBuffer face = ByteBuffer.allocateDirect(12 * blockSz * blockSz).order(ByteOrder.LITTLE_ENDIAN);
+		try (FileChannel out = FileChannel.open(new File(filename).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			out.write(ByteBuffer.wrap(header));
+			for (int iFace = 0; iFace < 6; iFace++) {
+				face.clear();
+				for (int iv = 0; iv < blockSz; iv++) {
+					for (int iu = 0; iu < blockSz; iu++) {
+						int offset = pixelOffset((FACE_ROW[iFace] * blockSz + iv) * width + FACE_COLUMN[iFace] * blockSz + iu);
+						face.putFloat(imageData.get(offset)).putFloat(imageData.get(offset + 1)).putFloat(imageData.get(offset + 2));
+					}
+				}
+				face.flip();
+				while (face.hasRemaining())
+					out.write(face);
+			}
+		}
 	}
 
 	public static class PNMHeaderInfo { 
 		int width, height, bands;
 		float maxval; 
+		/** True for the tiled layout written by writeTiled */
+		boolean tiled;
 	}
 
-	public float[] readPFM(File pfmFile, PNMHeaderInfo hdr) {
+	/**
+	 * Map a PFM file into memory and return its pixels in place, without
+	 * copying them onto the heap. The byte order follows the sign of the
+	 * scale in the header, negative meaning little-endian.
+	 *
+	 * @return the pixels, or null if the file could not be read
+	 */
+	public FloatBuffer readPFM(File pfmFile, PNMHeaderInfo hdr) {
 		
-		try {
-			FileInputStream inf = new FileInputStream(pfmFile);
-			DataInputStream inSt = new DataInputStream(inf);
-			FileChannel inCh = inf.getChannel();
+		try (FileChannel channel = FileChannel.open(pfmFile.toPath(), StandardOpenOption.READ)) {
+			// The mapping stays valid once the channel is closed
+			ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
 
-			int imageSize = readPPMHeader(inSt, hdr);
+			int imageSize = readPPMHeader(file, hdr);
 
 			if (imageSize == -1) return null;
-
-			//System.err.println("reading FP image: " + hdr.width + "x" + hdr.height + "x" + hdr.bands);
-
-			ByteBuffer imageBuffer = ByteBuffer.allocate(imageSize * 4);
-			imageBuffer.order(ByteOrder.LITTLE_ENDIAN);
-			imageBuffer.clear();
-			inCh.read(imageBuffer);
-
-			float[] imageData = new float[imageSize];
-			imageBuffer.flip();
-			imageBuffer.asFloatBuffer().get(imageData);
-
-			return imageData;
-		} catch (FileNotFoundException e) {
+			if (file.remaining() < 4L * imageSize) {
+				System.err.println("readPFM: file is truncated: " + pfmFile.getName());
+				return null;
+			}
+
+			ByteBuffer pixels = file.slice();
+			pixels.limit(4 * imageSize);
+			pixels.order(hdr.maxval < 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+			return pixels.asFloatBuffer();
+		} catch (NoSuchFileException e) {
 			System.err.println("readPFM: file not found: " + pfmFile.getName());
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -179,48 +457,61 @@ public class Cubemap {
 		return null;
 	}
 
-	public static int readPPMHeader(DataInputStream in, PNMHeaderInfo info) throws IOException {
+	/**
+	 * Read a header of the form 'P[F|T]\n&lt;width&gt; &lt;height&gt;\n&lt;scale&gt;\n', leaving
+	 * the buffer at the first pixel.
+	 *
+	 * @return the number of floats of pixel data, or -1 if the header is not understood
+	 */
+	public static int readPPMHeader(ByteBuffer in, PNMHeaderInfo info) {
 		
-		// Read PNM header of the form 'P[F]\n<width> <height>\n<maxval>\n'
-		if (in.readByte() != 'P') {
-			System.err.println("readPFM: not a PNM file");
-			return -1;
-		}
-
-		byte magic = in.readByte();
-		int bands;
-
-		if (magic == 'F') bands = 3;
-		else {
-			System.err.println("readPFM: Unsupported PNM variant 'P" + magic + "'");
+		try {
+			if (in.get() != 'P') {
+				System.err.println("readPFM: not a PNM file");
+				return -1;
+			}
+
+			byte magic = in.get();
+			int bands = 3;
+
+			if (magic != 'F' && magic != 'T') {
+				System.err.println("readPFM: Unsupported PNM variant 'P" + (char) magic + "'");
+				return -1;
+			}
+
+			int width = Integer.parseInt(readWord(in));
+			int height = Integer.parseInt(readWord(in));
+			int imageSize = width * height * bands;
+			float maxval = Float.parseFloat(readWord(in));
+
+			if (info != null) {
+				info.width = width;
+				info.height = height;
+				info.bands = bands;
+				info.maxval = maxval;
+				info.tiled = magic == 'T';
+			}
+
+			return imageSize;
+		} catch (BufferUnderflowException | NumberFormatException e) {
+			System.err.println("readPFM: bad header: " + e);
 			return -1;
 		}
-
-		int width = Integer.parseInt(readWord(in));
-		int height = Integer.parseInt(readWord(in));
-		int imageSize = width * height * bands;
-		float maxval = Float.parseFloat(readWord(in));
-
-		if (info != null) {
-			info.width = width;
-			info.height = height;
-			info.bands = bands;
-			info.maxval = maxval;
-		}
-
-		return imageSize;
 	}
 
-	static String readWord(DataInputStream in) throws IOException {
+	/**
+	 * Read one whitespace-separated word, and the single whitespace character after it.
+	 */
+	static String readWord(ByteBuffer in) {
+		StringBuilder word = new StringBuilder();
 		char c;
-		String s = "";
 
-		while (Character.isWhitespace(c = (char) in.readByte()))
+		while (Character.isWhitespace(c = (char) in.get()))
 			;
-		s += c;
-		while (!Character.isWhitespace(c = (char) in.readByte()))
-			s += c;
+		word.append(c);
+		while (!Character.isWhitespace(c = (char) in.get()))
+			word.append(c);
 
-		return s;
+		return word.toString();
 	}
 }
@@ -17,9 +17,9 @@ public class DirectionalLight extends Light {
 	public final Vector3d direction = new Vector3d();
 	public void setDirection(Vector3d direction) { this.direction.set(direction); }
 
-	/** Get direction from light to shaded point. */
-	public Vector3d getDirection(Vector3d point) {
-		return direction;
+	/** Get direction from shaded point to light. */
+	public void getDirection(Vector3d point, Vector3d outDirection) {
+		outDirection.set(direction);
 	}
 	
 	/**Get radius square from light to shaded point. */
@@ -1,12 +1,13 @@
 package cs4620.ray2;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.file.Files;
-
-import javax.imageio.ImageIO;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import edu.cornell.graphics.exr.Channel;
 import edu.cornell.graphics.exr.ChannelList;
@@ -19,22 +20,56 @@ import egl.math.Color;
 import egl.math.Colord;
 
 /**
- * Basic image class, containing a 2D array of Colords. Simple functionality for
- * setting pixel colors and writing to a PNG file is provided.
+ * Basic image class. The pixels are kept in one flat buffer of floats, three
+ * per pixel (red, green, blue), row by row with the top row first, which is
+ * the order in which they are written out. Pixel (0, 0) is the bottom left
+ * corner, as for the camera.
+ *
+ * The buffer is a direct little-endian buffer, so it can be handed to the EXR
+ * writer as it is. Writes to different pixels touch different parts of the
+ * buffer, so several render workers may fill disjoint tiles at once.
+ *
+ * Besides the color, an image can carry extra channels (AOVs) such as depth,
+ * normals or the number of samples per pixel, laid out the same way.
  *
  * @author eschweic, nsavva
  */
 public class Image {
-	
+
+	/** Distance along the camera ray to the first hit; infinity where nothing was hit. */
+	public static final String AOV_DEPTH = "depth";
+
+	/** World-space surface normal at the first hit; zero where nothing was hit. */
+	public static final String AOV_NORMAL = "normal";
+
+	/** Number of samples taken in the pixel. */
+	public static final String AOV_SAMPLES = "samples";
+
+	/**
+	 * What the pixel cost to render, summed over its samples: the components
+	 * are COST_TIME, COST_RAYS, COST_NODES and COST_DEPTH. The packet of camera
+	 * rays is traced at once, so its cost is shared evenly between its pixels.
+	 */
+	public static final String AOV_COST = "cost";
+
+	/** Components of AOV_COST: nanoseconds, rays traced, tree nodes visited, and the deepest recursion reached */
+	public static final int COST_TIME = 0, COST_RAYS = 1, COST_NODES = 2, COST_DEPTH = 3;
+	private static final String[] COST_CHANNELS = { ".time", ".rays", ".nodes", ".depth" };
+
 	/** Image width * */
 	protected int width;
-	
+
 	/** Image height * */
 	protected int height;
-	
-	/** Data array* */
-	protected Colord[][] data;
-	
+
+	/** Color data, three floats per pixel, top row first * */
+	protected ByteBuffer bytes;
+	protected FloatBuffer data;
+
+	/** Extra channels by name, in the order they were added, and float views of them * */
+	protected final Map<String, ByteBuffer> aovs = new LinkedHashMap<String, ByteBuffer>();
+	protected final Map<String, FloatBuffer> aovData = new HashMap<String, FloatBuffer>();
+
 	/**
 	 * Create an empty image
 	 *
@@ -44,7 +79,7 @@ public class Image {
 	public Image(int inW, int inH) {
 		setSize(inW, inH);
 	}
-	
+
 	/**
 	 * Copy constructor
 	 *
@@ -52,54 +87,70 @@ public class Image {
 	 */
 	public Image(Image oldImage) {
 		setSize(oldImage.getWidth(), oldImage.getHeight());
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j].set(oldImage.data[i][j]);
-			}
+		data.put(oldImage.data.duplicate());
+		data.clear();
+		for (String name : oldImage.aovs.keySet()) {
+			addAov(name, oldImage.getAovComponents(name));
+			getAov(name).put(oldImage.getAov(name));
 		}
 	}
-	
+
 	/**
-	 * Set the image to black
+	 * Set the image and its extra channels to zero
 	 */
 	public void clear() {
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j] = new Colord();
-			}
+		for (int i = 0; i < data.capacity(); i++)
+			data.put(i, 0);
+		for (String name : aovs.keySet()) {
+			FloatBuffer aov = getAov(name);
+			for (int i = 0; i < aov.capacity(); i++)
+				aov.put(i, 0);
 		}
 	}
-	
+
 	/**
 	 * @return the width of the image
 	 */
 	public int getWidth() {
 		return width;
 	}
-	
+
 	/**
 	 * @return the height of the image
 	 */
 	public int getHeight() {
 		return height;
 	}
-	
+
 	/**
-	 * Set the size of the image by recreating it.  Destroys all current image data.
+	 * Set the size of the image by recreating it.  Destroys all current image
+	 * data, including the extra channels.
 	 * @param newWidth width
 	 * @param newHeight height
 	 */
 	public void setSize(int newWidth, int newHeight) {
 		width = newWidth;
 		height = newHeight;
-		data = new Colord[width][height];
-		for (int i=0; i<width; i++) {
-			for (int j=0; j<height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		bytes = allocate(3 * width * height);
+		data = bytes.asFloatBuffer();
+		aovs.clear();
+		aovData.clear();
+	}
+
+	private static ByteBuffer allocate(int floats) {
+		return ByteBuffer.allocateDirect(4 * floats).order(ByteOrder.LITTLE_ENDIAN);
 	}
-	
+
+	/**
+	 * @return the index of pixel (inX, inY) in the buffers, counted in pixels
+	 * (multiply by the number of components to get the index of a float)
+	 */
+	public int pixelIndex(int inX, int inY) {
+		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
+			throw new IndexOutOfBoundsException();
+		return (height - 1 - inY) * width + inX;
+	}
+
 	/**
 	 * Get the color of a pixel.
 	 *
@@ -108,11 +159,10 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Color outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = 3 * pixelIndex(inX, inY);
+		outPixel.set(toByte(data.get(i)), toByte(data.get(i+1)), toByte(data.get(i+2)));
 	}
-	
+
 	/**
 	 * Get the color of a pixel.
 	 *
@@ -121,11 +171,10 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Colord outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = 3 * pixelIndex(inX, inY);
+		outPixel.set(data.get(i), data.get(i+1), data.get(i+2));
 	}
-	
+
 	/**
 	 * Set the color of a pixel.
 	 * @param inPixel Color value of pixel (inX,inY)
@@ -133,11 +182,12 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void setPixelColor(Color inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		int i = 3 * pixelIndex(inX, inY);
+		data.put(i, inPixel.r() / 255f);
+		data.put(i+1, inPixel.g() / 255f);
+		data.put(i+2, inPixel.b() / 255f);
 	}
-	
+
 	/**
 	 * Set the color of a pixel.
 	 * @param inPixel Colord value of pixel (inX, inY)
@@ -145,31 +195,155 @@ public class Image {
 	 * @param inY inY coordinate
 	 */
 	public void setPixelColor(Colord inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		int i = 3 * pixelIndex(inX, inY);
+		data.put(i, (float) inPixel.x);
+		data.put(i+1, (float) inPixel.y);
+		data.put(i+2, (float) inPixel.z);
 	}
-	
+
 	/**
-	 * Write this image to the filename.  The output is always written as a PNG regardless
-	 * of the extension on the filename given.
-	 * @param fileName the output filename
+	 * Copy the colors of a rectangle of pixels out of the image.
+	 * @param outColors receives three floats per pixel, a row at a time from
+	 * the top row of the rectangle down, starting at offset
+	 * @param offset the index in outColors to start at
 	 */
-	public void write(String fileName) {
-		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		
-		Colord pixelColor= new Colord();
+	public void getTile(int inX, int inY, int sizeX, int sizeY, float[] outColors, int offset) {
+		FloatBuffer view = data.duplicate();
+		for (int y = inY + sizeY - 1; y >= inY; y--, offset += 3 * sizeX) {
+			view.position(3 * pixelIndex(inX, y));
+			view.get(outColors, offset, 3 * sizeX);
+		}
+	}
+
+	/**
+	 * Copy the colors of a rectangle of pixels into the image.
+	 * @param inColors three floats per pixel, laid out as by getTile
+	 * @param offset the index in inColors to start at
+	 */
+	public void setTile(int inX, int inY, int sizeX, int sizeY, float[] inColors, int offset) {
+		FloatBuffer view = data.duplicate();
+		for (int y = inY + sizeY - 1; y >= inY; y--, offset += 3 * sizeX) {
+			view.position(3 * pixelIndex(inX, y));
+			view.put(inColors, offset, 3 * sizeX);
+		}
+	}
+
+	/**
+	 * @return the color buffer itself, three floats per pixel in the order given
+	 * by pixelIndex; writes to it change the image
+	 */
+	public FloatBuffer getData() {
+		return data.duplicate();
+	}
+
+	/**
+	 * Add an extra channel, initially zero, unless one of that name exists.
+	 * @param name the name of the channel, such as AOV_DEPTH
+	 * @param components the number of floats per pixel
+	 */
+	public void addAov(String name, int components) {
+		if (!aovs.containsKey(name)) {
+			ByteBuffer aov = allocate(components * width * height);
+			aovs.put(name, aov);
+			aovData.put(name, aov.asFloatBuffer());
+		}
+	}
+
+	/**
+	 * @return true if the image has an extra channel of that name
+	 */
+	public boolean hasAov(String name) {
+		return aovData.containsKey(name);
+	}
+
+	/**
+	 * Set one component of an extra channel at a pixel; does nothing if the
+	 * image has no channel of that name.
+	 */
+	public void setAov(String name, int inX, int inY, int component, float value) {
+		FloatBuffer aov = aovData.get(name);
+		if (aov != null)
+			aov.put(getAovComponents(name) * pixelIndex(inX, inY) + component, value);
+	}
+
+	/**
+	 * @return one component of an extra channel at a pixel
+	 */
+	public float getAov(String name, int inX, int inY, int component) {
+		return aovData.get(name).get(getAovComponents(name) * pixelIndex(inX, inY) + component);
+	}
+
+	/**
+	 * @return the floats of an extra channel, in the order given by pixelIndex,
+	 * or null if the image has no channel of that name; writes to it change the image
+	 */
+	public FloatBuffer getAov(String name) {
+		FloatBuffer aov = aovData.get(name);
+		return aov == null ? null : aov.duplicate();
+	}
+
+	/**
+	 * Make a heatmap of one component of an extra channel, running from blue
+	 * for zero through green to red. Red stands for the 99th percentile of the
+	 * values, so that a few outliers do not wash out the rest.
+	 *
+	 * @return the heatmap, or null if the image has no channel of that name
+	 */
+	public Image heatmap(String name, int component) {
+		FloatBuffer aov = aovData.get(name);
+		if (aov == null)
+			return null;
+		int components = getAovComponents(name);
+		float[] values = new float[width * height];
+		for (int i = 0; i < values.length; i++)
+			values[i] = aov.get(components * i + component);
+		float[] sorted = values.clone();
+		Arrays.sort(sorted);
+		double scale = 1 / Math.max(sorted[(int) (0.99 * (sorted.length - 1))], Float.MIN_NORMAL);
+
+		Image image = new Image(width, height);
+		Colord color = new Colord();
 		for (int y = 0; y < height; y++) {
 			for (int x = 0; x < width; x++) {
-				this.getPixelColor(pixelColor, x, y);
-				pixelColor.gammaCorrect(2.2);
-				Color c = pixelColor.toColor();
-				bufferedImage.setRGB(x, (height - 1 - y), c.toIntRGB());
+				PixelStats.heatColor(values[pixelIndex(x, y)] * scale, color);
+				image.setPixelColor(color, x, y);
 			}
 		}
-		
+		return image;
+	}
+
+	/**
+	 * @return the number of floats per pixel of an extra channel of this image
+	 */
+	public int getAovComponents(String name) {
+		return aovData.get(name).capacity() / (width * height);
+	}
+
+	/**
+	 * @return the number of floats per pixel of a known extra channel
+	 */
+	public static int aovComponents(String name) {
+		switch (name) {
+		case AOV_DEPTH:
+		case AOV_SAMPLES:
+			return 1;
+		case AOV_NORMAL:
+			return 3;
+		case AOV_COST:
+			return 4;
+		default:
+			throw new IllegalArgumentException("Unknown AOV: " + name);
+		}
+	}
+
+	/**
+	 * Write this image to the filename.  The output is always written as a PNG regardless
+	 * of the extension on the filename given.
+	 * @param fileName the output filename
+	 */
+	public void write(String fileName) {
 		try {
-			ImageIO.write(bufferedImage, "PNG", new File(fileName));
+			PngEncoder.write(this, fileName, null);
 		}
 		catch (Exception e) {
 			System.out.println("Error occured while attempting to write file: "+fileName);
@@ -177,68 +351,119 @@ public class Image {
 			e.printStackTrace();
 		}
 	}
-	
+
 	/**
-	 * A quick openEXR-JNI write test
-	 * Write this image to the filename.  The output is always written as HDR regardless
-	 * of the extension on the filename given.
+	 * Gamma correct a linear color with gamma 2.2 and pack it as 0xRRGGBB.
+	 */
+	public static int toIntRGB(float r, float g, float b) {
+		return gammaByte(r) << 16 | gammaByte(g) << 8 | gammaByte(b);
+	}
+
+	/** Number of equal steps [0, 1] is cut into to look up gamma corrected values * */
+	private static final int GAMMA_TABLE_SIZE = 4096;
+
+	/** Gamma corrected byte value at the start of each step * */
+	private static final byte[] GAMMA_TABLE = new byte[GAMMA_TABLE_SIZE];
+
+	/** Smallest linear value that gamma corrects to each byte value * */
+	private static final float[] GAMMA_STEPS = new float[257];
+
+	static {
+		for (int k = 1; k < 256; k++) {
+			// Bisect on the bit patterns, which are ordered like the positive floats they encode
+			int lo = 0, hi = Float.floatToIntBits(1);
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (toByte(gamma(Float.intBitsToFloat(mid))) >= k)
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+			GAMMA_STEPS[k] = Float.intBitsToFloat(lo);
+		}
+		GAMMA_STEPS[256] = Float.POSITIVE_INFINITY;
+		for (int i = 0; i < GAMMA_TABLE_SIZE; i++)
+			GAMMA_TABLE[i] = (byte) toByte(gamma((float) i / GAMMA_TABLE_SIZE));
+	}
+
+	/**
+	 * Gamma correct a linear color component with gamma 2.2, clamp it and round
+	 * it to [0, 255]. This gives exactly what Colord.gammaCorrect followed by
+	 * toColor does, but with a table lookup instead of a pow per component.
+	 */
+	public static int gammaByte(float c) {
+		if (!(c > 0))
+			return 0;
+		if (c >= 1)
+			return 255;
+		int k = GAMMA_TABLE[(int) (c * GAMMA_TABLE_SIZE)] & 0xff;
+		while (c >= GAMMA_STEPS[k + 1])
+			k++;
+		return k;
+	}
+
+	private static double gamma(float c) {
+		return c <= 0 ? 0 : Math.pow(c, 1 / 2.2);
+	}
+
+	/**
+	 * Clamp a color component to [0, 1] and round it to [0, 255], as Color does.
+	 */
+	private static int toByte(double c) {
+		return (int) (Math.min(1, Math.max(0, c)) * 255 + 0.5);
+	}
+
+	/**
+	 * Write this image and its extra channels to the filename as 32-bit float
+	 * OpenEXR.  The output is always written as HDR regardless of the extension
+	 * on the filename given.  The pixel buffers are handed to the writer as they are.
 	 * @param fileName the output filename
 	 */
 	public void writeHDR(String fileName) {
-		
+
 		File outFile = new File(fileName);
+		final PixelType pixelType = PixelType.FLOAT;
+		final int elemSize = pixelType.byteSize();
 
-        final PixelType pixelType = PixelType.FLOAT;
-        final int numChannels = 3;
-        final int elemSize    = pixelType.byteSize();
-        final int pixelSize   = elemSize * numChannels;
-        final int numPixels   = width * height;
-    
 		Header hdrHeader = new Header(width, height);
-		
 		ChannelList channels = hdrHeader.getChannels();
-        channels.insert("R", new Channel(pixelType));
-        channels.insert("G", new Channel(pixelType));
-        channels.insert("B", new Channel(pixelType));
-        
-		Colord pixelColor= new Colord();
-        ByteBuffer pixels = ByteBuffer.allocateDirect(pixelSize * numPixels);
-        pixels.order(ByteOrder.LITTLE_ENDIAN);
-        for(int h = height-1; h >= 0; --h) {
-            for (int w = 0; w < width; ++w) {
-            	this.getPixelColor(pixelColor, w, h);
-                pixels.putFloat((float) pixelColor.x);
-                pixels.putFloat((float) pixelColor.y);
-                pixels.putFloat((float) pixelColor.z);
-            }
-        }
-        pixels.flip();
-        
-     // Build the frame buffer
-        FrameBuffer frameBuffer = new FrameBuffer();
-        final int yStride = width * pixelSize;
-        frameBuffer.insert("R", Slice.build()
-                .baseOffset(0).buffer(pixels).pixelType(pixelType)
-                .xStride(pixelSize).yStride(yStride).get());
-        frameBuffer.insert("G", Slice.build()
-                .baseOffset(elemSize).buffer(pixels).pixelType(pixelType)
-                .xStride(pixelSize).yStride(yStride).get());
-        frameBuffer.insert("B", Slice.build()
-                .baseOffset(2*elemSize).buffer(pixels).pixelType(pixelType)
-                .xStride(pixelSize).yStride(yStride).get());
-        
-        try (EXROutputFile out = new EXROutputFile(outFile.toPath(), hdrHeader)){
-             out.setFrameBuffer(frameBuffer);
-             out.writePixels(height);
-             System.out.printf("  Wrote RGB32F file %s%n", outFile);
-             
-             //System.out.printf("  File size: %d%n", Files.size(outFile.toPath()));
-             pixels.rewind();
-         }
+		FrameBuffer frameBuffer = new FrameBuffer();
+
+		String[] rgb = { "R", "G", "B" };
+		for (int c = 0; c < 3; c++)
+			insertChannel(channels, frameBuffer, rgb[c], bytes, c * elemSize, 3 * elemSize);
+
+		String[] xyz = { ".X", ".Y", ".Z" };
+		for (Map.Entry<String, ByteBuffer> aov : aovs.entrySet()) {
+			int components = getAovComponents(aov.getKey());
+			String[] suffixes = aov.getKey().equals(AOV_COST) ? COST_CHANNELS : xyz;
+			for (int c = 0; c < components; c++) {
+				String name = components == 1 ? aov.getKey() : aov.getKey() + (c < suffixes.length ? suffixes[c] : "." + c);
+				insertChannel(channels, frameBuffer, name, aov.getValue(), c * elemSize, components * elemSize);
+			}
+		}
+
+		try (EXROutputFile out = new EXROutputFile(outFile.toPath(), hdrHeader)) {
+			out.setFrameBuffer(frameBuffer);
+			out.writePixels(height);
+			System.out.printf("  Wrote RGB32F file %s%n", outFile);
+		}
 		catch (Exception e) {
 			System.out.println("Error occured while attempting to write file: "+fileName);
 			System.err.println(e);
 			e.printStackTrace();
 		}
 	}
+
+	/**
+	 * Add a float channel stored in buffer with the given offset and distance
+	 * between pixels; rows follow each other directly.
+	 */
+	private void insertChannel(ChannelList channels, FrameBuffer frameBuffer, String name,
+			ByteBuffer buffer, int offset, int pixelSize) {
+		channels.insert(name, new Channel(PixelType.FLOAT));
+		frameBuffer.insert(name, Slice.build()
+				.baseOffset(offset).buffer(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)).pixelType(PixelType.FLOAT)
+				.xStride(pixelSize).yStride(width * pixelSize).get());
+	}
 }
@@ -0,0 +1,128 @@
+package cs4620.ray2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes finished images out in the background, so the renderer can go on to
+ * the next scene while the last one is still being encoded. Files are written
+ * one at a time in the order they were handed over; the rows of each PNG are
+ * prepared on a small pool of threads (see PngEncoder).
+ *
+ * An image must not be changed once it has been handed over. Call close to
+ * wait for every file to be written.
+ */
+public class ImageWriter implements AutoCloseable {
+
+	/** Runs the writes, one at a time. */
+	private final ExecutorService output = Executors.newSingleThreadExecutor(daemon("image-writer"));
+
+	/** Prepares the rows of the image being written. */
+	private final ExecutorService encoders;
+
+	private final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+	/**
+	 * @param threads the number of threads to prepare rows on
+	 */
+	public ImageWriter(int threads) {
+		encoders = Executors.newFixedThreadPool(Math.max(1, threads), daemon("image-encoder"));
+	}
+
+	/**
+	 * Queue an image to be written as a PNG file.
+	 */
+	public void write(Image image, String fileName) {
+		write(image, fileName, null);
+	}
+
+	/**
+	 * Queue an image to be written as a PNG file, adding the time the write
+	 * takes to stats unless that is null.
+	 */
+	public synchronized void write(final Image image, final String fileName, final RenderStats stats) {
+		pending.add(output.submit(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				try {
+					PngEncoder.write(image, fileName, encoders);
+				}
+				catch (Exception e) {
+					System.out.println("Error occured while attempting to write file: "+fileName);
+					System.err.println(e);
+					e.printStackTrace();
+				}
+				if (stats != null)
+					stats.addTime(RenderStats.WRITE, (System.nanoTime() - start) / 1e9);
+			}
+		}));
+	}
+
+	/**
+	 * Queue an image, with its extra channels, to be written as an OpenEXR file.
+	 */
+	public void writeHDR(Image image, String fileName) {
+		writeHDR(image, fileName, null);
+	}
+
+	/**
+	 * Queue an image, with its extra channels, to be written as an OpenEXR
+	 * file, adding the time the write takes to stats unless that is null.
+	 */
+	public synchronized void writeHDR(final Image image, final String fileName, final RenderStats stats) {
+		pending.add(output.submit(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				image.writeHDR(fileName);
+				if (stats != null)
+					stats.addTime(RenderStats.WRITE, (System.nanoTime() - start) / 1e9);
+			}
+		}));
+	}
+
+	/**
+	 * Wait for every queued image to be written, then stop the threads.
+	 */
+	@Override
+	public synchronized void close() {
+		boolean interrupted = false;
+		for (Future<?> write : pending) {
+			while (true) {
+				try {
+					write.get();
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+				catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					break;
+				}
+			}
+		}
+		pending.clear();
+		output.shutdown();
+		encoders.shutdown();
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -21,6 +21,20 @@ public class IntersectionRecord {
   /** The texture coordinates of the intersection point */
   public final Vector2d texCoords = new Vector2d();
   
+  /**
+   * Change in location from one pixel to the next in x and y, found from the
+   * differentials of the ray; zero if the ray had none.
+   */
+  public final Vector3d dPdx = new Vector3d();
+  public final Vector3d dPdy = new Vector3d();
+
+  /**
+   * Change in texCoords from one pixel to the next in x and y; zero if the
+   * ray had no differentials or the surface has no texture coordinates.
+   */
+  public final Vector2d dTexdx = new Vector2d();
+  public final Vector2d dTexdy = new Vector2d();
+
   /** A reference to the actual surface. */
   public Surface surface = null;
 
@@ -36,7 +50,20 @@ public class IntersectionRecord {
     location.set(inRecord.location);
     normal.set(inRecord.normal);
     texCoords.set(inRecord.texCoords);
+    dPdx.set(inRecord.dPdx);
+    dPdy.set(inRecord.dPdy);
+    dTexdx.set(inRecord.dTexdx);
+    dTexdy.set(inRecord.dTexdy);
     surface = inRecord.surface;   
     t = inRecord.t;
   }
+
+  /**
+   * @return the width in texture coordinates of the area one pixel covers
+   * around the hit, or 0 if it is not known
+   */
+  public double getTexFootprint() {
+    return Math.max(Math.sqrt(dTexdx.x * dTexdx.x + dTexdx.y * dTexdx.y),
+        Math.sqrt(dTexdy.x * dTexdy.x + dTexdy.y * dTexdy.y));
+  }
 }
\ No newline at end of file
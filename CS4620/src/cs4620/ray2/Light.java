@@ -18,8 +18,11 @@ public abstract class Light {
 	public final Colord intensity = new Colord(Color.White);
 	public void setIntensity(Colord intensity) { this.intensity.set(intensity); }
 	
-	/** Get direction from light to shaded point. */
-	public abstract Vector3d getDirection(Vector3d point); 
+	/**
+	 * Get direction from shaded point to light, written into outDirection so that
+	 * shading does not allocate. The result is not normalized.
+	 */
+	public abstract void getDirection(Vector3d point, Vector3d outDirection); 
 	
 	/**Get radius square from light to shaded point. */
 	public abstract double getRSq(Vector3d point);
@@ -1,9 +1,12 @@
 package cs4620.ray2;
 
 import java.io.File;
+import java.io.InputStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.StringTokenizer;
@@ -108,11 +111,36 @@ public class Parser {
 	/** Java document builder used to parse XML * */
 	private DocumentBuilder db;
 
-	/** Map of references to their names **/
-	public static HashMap<String, Object> references = new HashMap<String, Object>();
+	/** Map of references to their names, for the file being parsed **/
+	private final HashMap<String, Object> references = new HashMap<String, Object>();
 
-	/** Creates a new Parser. */
+	/** Cache shared by every file this parser reads **/
+	private final ResourceCache resources;
+
+	/** Context of the file being parsed **/
+	private SceneContext context;
+
+	/** The directory scenes may read files from, or null for anywhere **/
+	private Path confinement;
+	/** Let scenes read only the files in a directory (see SceneContext.allow), or any file if it is null. */
+	public void setConfinement(Path confinement) { this.confinement = confinement; }
+
+	/** Why the last file parsed could not be, or null if it was **/
+	private String error;
+	public String getError() { return error; }
+
+	/** Creates a new Parser with a cache of its own. */
 	public Parser() {
+		this(new ResourceCache());
+	}
+
+	/**
+	 * Creates a new Parser that loads the files referenced by scenes through a
+	 * cache, which may be shared with other parsers. A Parser itself must only
+	 * be used by one thread at a time.
+	 */
+	public Parser(ResourceCache resources) {
+		this.resources = resources;
 
 		try {
 			db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
@@ -182,6 +210,14 @@ public class Parser {
 			return new Double(text);
 		}
 
+		else if (c == Boolean.class) {
+			if (text.trim().equals("true"))
+				return Boolean.TRUE;
+			if (text.trim().equals("false"))
+				return Boolean.FALSE;
+			throw new Error("Not a boolean (true or false): " + text);
+		}
+
 		else if ((c.isArray() && c.getComponentType().isPrimitive())) {
 			ArrayList tempArray = parseArray(c.getComponentType(), text);
 			Object result = Array.newInstance(c.getComponentType(), tempArray
@@ -360,7 +396,7 @@ public class Parser {
 
 		// Check for certain special classes of the current node
 		else if ((c.isArray() && c.getComponentType().isPrimitive())
-				|| c == String.class || c == Integer.class || c == Double.class
+				|| c == String.class || c == Integer.class || c == Double.class || c == Boolean.class
 				|| c == Colord.class || Vector3d.class.isAssignableFrom(c)
 				|| Image.class.isAssignableFrom(c)) {
 
@@ -387,6 +423,8 @@ public class Parser {
 				throw new Error("Error instantiating object of class: "
 						+ c.getName() + ": " + e.getMessage());
 			}
+			if (resultingObject instanceof SceneResource)
+				((SceneResource) resultingObject).setSceneContext(context);
 
 			// For each child
 			for (int i = 0; i < children.getLength(); i++) {
@@ -433,6 +471,8 @@ public class Parser {
 						parameterType = Float.class;
 					} else if (parameterType == Double.TYPE) {
 						parameterType = Double.class;
+					} else if (parameterType == Boolean.TYPE) {
+						parameterType = Boolean.class;
 					} else {
 						throw new Error("Cannot parse primitives of type "
 								+ parameterType);
@@ -450,6 +490,10 @@ public class Parser {
 					foundMethod.invoke(resultingObject,
 							new Object[] { childValue });
 
+				} catch (InvocationTargetException e) {
+					// The object refused the value, such as a file it could not load
+					throw new RuntimeException("Error invoking the method "
+							+ foundMethod.getName() + ": " + e.getCause(), e.getCause());
 				} catch (Exception e) {
 					System.err.println("Error invoking the method "
 							+ foundMethod.getName() + ".");
@@ -476,20 +520,56 @@ public class Parser {
 	 * @return a new object of the given class
 	 */
 	public Object parse(String filename, Class<?> c) {
+		return parse(new RayTracer.ScenePath(null, filename), c);
+	}
+
+	/**
+	 * Parses a scene file to generate an object of the given class. Files named
+	 * in the scene are looked for in its workspace and loaded through the
+	 * cache of this parser.
+	 *
+	 * @param scene the XML file to parse and the workspace around it
+	 * @param c the class of the object to parse
+	 * @return a new object of the given class
+	 */
+	public Object parse(RayTracer.ScenePath scene, Class<?> c) {
+		return parse(scene, null, c);
+	}
+
+	/**
+	 * Parses scene XML read from a stream instead of from the scene file. Files
+	 * named in the scene are still looked for in the given workspace.
+	 *
+	 * @param scene the workspace of the scene; its file is only used in messages
+	 * @param in the XML to parse
+	 * @param c the class of the object to parse
+	 * @return a new object of the given class, or null if the file could not be
+	 * parsed or an object refused a value; getError then says why
+	 */
+	public Object parse(RayTracer.ScenePath scene, InputStream in, Class<?> c) {
+
+		String filename = scene.getFile();
 
-		File file = new File(filename);
+		// Names only refer to objects of the same file
+		references.clear();
+		context = new SceneContext(scene, resources, confinement);
 
 		// Parse the XML
 		Object result = null;
+		error = null;
 		try {
 
-			Document doc = db.parse(file);
+			Document doc = in == null ? db.parse(new File(filename)) : db.parse(in);
 			Element root = doc.getDocumentElement();
 			result = parseObject(c, root);
 
 		} catch (Exception e) {
 			System.out.println("Exception occurred while parsing: " + filename);
 			e.printStackTrace();
+			error = e.getMessage() != null ? e.getMessage() : String.valueOf(e);
+		} finally {
+			references.clear();
+			context = null;
 		}
 
 		return result;
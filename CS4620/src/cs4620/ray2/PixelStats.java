@@ -0,0 +1,144 @@
+package cs4620.ray2;
+
+import egl.math.Colord;
+
+/**
+ * Running statistics of the samples taken in each pixel of an image: the
+ * number of samples, their mean color, and the variance of their luminance.
+ * The mean and variance are updated one sample at a time with Welford's
+ * method, so no samples need to be kept.
+ *
+ * Different threads may update different pixels at the same time.
+ */
+public class PixelStats {
+
+	/**
+	 * Luminance below which the relative error of a pixel is measured against
+	 * this value instead, so that dark pixels do not need a huge number of
+	 * samples to converge.
+	 */
+	public static final double NOISE_FLOOR = 0.01;
+
+	protected final int width, height;
+
+	/** Number of samples per pixel. */
+	protected final int[] count;
+
+	/** Mean color, three doubles per pixel. */
+	protected final double[] mean;
+
+	/** Sum of squared deviations of the luminance from its mean, per pixel. */
+	protected final double[] m2;
+
+	public PixelStats(int width, int height) {
+		this.width = width;
+		this.height = height;
+		count = new int[width * height];
+		mean = new double[3 * width * height];
+		m2 = new double[width * height];
+	}
+
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+
+	/**
+	 * Add a sample to a pixel.
+	 */
+	public void add(int x, int y, Colord sample) {
+		int p = y * width + x;
+		int n = ++count[p];
+		double oldLuminance = luminance(mean[3*p], mean[3*p+1], mean[3*p+2]);
+		mean[3*p] += (sample.x - mean[3*p]) / n;
+		mean[3*p+1] += (sample.y - mean[3*p+1]) / n;
+		mean[3*p+2] += (sample.z - mean[3*p+2]) / n;
+		double l = luminance(sample.x, sample.y, sample.z);
+		m2[p] += (l - oldLuminance) * (l - luminance(mean[3*p], mean[3*p+1], mean[3*p+2]));
+	}
+
+	/**
+	 * @return the number of samples taken in a pixel
+	 */
+	public int getCount(int x, int y) {
+		return count[y * width + x];
+	}
+
+	/**
+	 * Get the mean of the samples of a pixel, or black if it has none.
+	 */
+	public void getMean(int x, int y, Colord outColor) {
+		int p = y * width + x;
+		outColor.set(mean[3*p], mean[3*p+1], mean[3*p+2]);
+	}
+
+	/**
+	 * @return the luminance of the mean of a pixel
+	 */
+	public double getLuminance(int x, int y) {
+		int p = y * width + x;
+		return luminance(mean[3*p], mean[3*p+1], mean[3*p+2]);
+	}
+
+	/**
+	 * @return the sample variance of the luminance of a pixel, or 0 with fewer than two samples
+	 */
+	public double getVariance(int x, int y) {
+		int p = y * width + x;
+		return count[p] < 2 ? 0 : m2[p] / (count[p] - 1);
+	}
+
+	/**
+	 * @return the standard error of the mean luminance of a pixel relative to
+	 * that luminance (or to NOISE_FLOOR if it is darker), or infinity with
+	 * fewer than two samples
+	 */
+	public double getRelativeError(int x, int y) {
+		int p = y * width + x;
+		if (count[p] < 2)
+			return Double.POSITIVE_INFINITY;
+		double l = luminance(mean[3*p], mean[3*p+1], mean[3*p+2]);
+		return Math.sqrt(getVariance(x, y) / count[p]) / Math.max(l, NOISE_FLOOR);
+	}
+
+	/**
+	 * Make a heatmap of the number of samples in each pixel, running from blue
+	 * for none through green to red for maxCount or more. The colors are
+	 * stored linearly, so they come out as shown once the image is written.
+	 *
+	 * @param maxCount the count that maps to red
+	 * @return the heatmap
+	 */
+	public Image countImage(int maxCount) {
+		Image image = new Image(width, height);
+		Colord color = new Colord();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				heatColor((double) getCount(x, y) / Math.max(1, maxCount), color);
+				image.setPixelColor(color, x, y);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Set outColor to the color of t on the heatmap scale: blue at 0 through
+	 * green to red at 1 or more, stored linearly.
+	 */
+	static void heatColor(double t, Colord outColor) {
+		t = Math.max(0, Math.min(1, t));
+		outColor.set(heat(4 * t - 3), heat(4 * t - 2), heat(4 * t - 1));
+		outColor.x = Math.pow(outColor.x, 2.2);
+		outColor.y = Math.pow(outColor.y, 2.2);
+		outColor.z = Math.pow(outColor.z, 2.2);
+	}
+
+	private static double heat(double d) {
+		return Math.max(0, Math.min(1, 1.5 - Math.abs(d)));
+	}
+
+	/**
+	 * @return the Rec. 709 luminance of a linear color
+	 */
+	public static double luminance(double r, double g, double b) {
+		return 0.2126 * r + 0.7152 * g + 0.0722 * b;
+	}
+}
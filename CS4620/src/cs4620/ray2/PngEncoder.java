@@ -0,0 +1,245 @@
+package cs4620.ray2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an Image as an 8-bit RGB PNG file. The image is cut into bands of
+ * rows; each band is gamma corrected through Image.gammaByte and run through
+ * the PNG row filters on its own, so bands can be prepared by several threads
+ * while earlier ones are already being compressed and written. Only the
+ * compression itself is sequential.
+ */
+public class PngEncoder {
+
+	/** Number of rows prepared at a time. */
+	protected static final int BAND_HEIGHT = 16;
+
+	/** Size of the compressed data held back before it is written as one chunk. */
+	protected static final int CHUNK_SIZE = 1 << 16;
+
+	private static final byte[] SIGNATURE = { (byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n' };
+
+	/**
+	 * Write the image to a file.
+	 *
+	 * @param image the image to write
+	 * @param fileName the output filename
+	 * @param pool threads to prepare the bands on, or null to do it all on the calling thread
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Image image, String fileName, ExecutorService pool) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName), CHUNK_SIZE)) {
+			write(image, out, pool);
+		}
+	}
+
+	/**
+	 * Write the image to a stream, which is left open.
+	 */
+	public static void write(final Image image, OutputStream out, ExecutorService pool) throws IOException {
+		final int width = image.getWidth(), height = image.getHeight();
+
+		out.write(SIGNATURE);
+		ChunkOutputStream header = new ChunkOutputStream(out, "IHDR");
+		DataOutputStream fields = new DataOutputStream(header);
+		fields.writeInt(width);
+		fields.writeInt(height);
+		fields.writeByte(8); // bits per sample
+		fields.writeByte(2); // truecolor
+		fields.writeByte(0); // deflate
+		fields.writeByte(0); // adaptive filtering
+		fields.writeByte(0); // no interlace
+		header.close();
+
+		// With a pool, start every band up front so it works ahead while the first ones are compressed
+		List<Future<byte[]>> bands = new ArrayList<Future<byte[]>>();
+		if (pool != null) {
+			for (int y = 0; y < height; y += BAND_HEIGHT) {
+				final int start = y, end = Math.min(height, y + BAND_HEIGHT);
+				bands.add(pool.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() {
+						return filterBand(image, start, end);
+					}
+				}));
+			}
+		}
+
+		// The row filters do most of the work; harder compression takes several times as long for a few percent
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			DeflaterOutputStream data = new DeflaterOutputStream(new ChunkOutputStream(out, "IDAT"), deflater, CHUNK_SIZE);
+			for (int y = 0, i = 0; y < height; y += BAND_HEIGHT, i++)
+				data.write(pool == null ? filterBand(image, y, Math.min(height, y + BAND_HEIGHT)) : get(bands.get(i)));
+			data.close();
+		}
+		finally {
+			deflater.end();
+			for (Future<byte[]> band : bands)
+				band.cancel(false);
+		}
+
+		new ChunkOutputStream(out, "IEND").close();
+	}
+
+	private static byte[] get(Future<byte[]> band) throws IOException {
+		try {
+			return band.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Gamma correct and filter the rows [start, end) of an image (counted from
+	 * the top, as stored). Each row is prefixed by the filter that gives the
+	 * smallest sum of absolute differences, the usual heuristic for picking one.
+	 *
+	 * @return the filtered rows, ready to be compressed
+	 */
+	static byte[] filterBand(Image image, int start, int end) {
+		int rowSize = 3 * image.getWidth();
+		FloatBuffer colors = image.getData();
+		byte[] out = new byte[(end - start) * (rowSize + 1)];
+		byte[] prior = new byte[rowSize], row = new byte[rowSize], candidate = new byte[rowSize];
+		if (start > 0)
+			quantize(colors, start - 1, prior);
+
+		for (int y = start; y < end; y++) {
+			quantize(colors, y, row);
+			int offset = (y - start) * (rowSize + 1);
+			long best = Long.MAX_VALUE;
+			for (int filter = 0; filter < 5; filter++) {
+				long cost = filterRow(filter, row, prior, candidate);
+				if (cost < best) {
+					best = cost;
+					out[offset] = (byte) filter;
+					System.arraycopy(candidate, 0, out, offset + 1, rowSize);
+				}
+			}
+			byte[] swap = prior;
+			prior = row;
+			row = swap;
+		}
+		return out;
+	}
+
+	private static void quantize(FloatBuffer colors, int y, byte[] outRow) {
+		int base = y * outRow.length;
+		for (int i = 0; i < outRow.length; i++)
+			outRow[i] = (byte) Image.gammaByte(colors.get(base + i));
+	}
+
+	/**
+	 * Apply one of the five PNG filters to a row of 3-byte pixels.
+	 *
+	 * @return the sum of the absolute values of the filtered bytes, read as signed
+	 */
+	private static long filterRow(int filter, byte[] row, byte[] prior, byte[] outRow) {
+		long cost = 0;
+		for (int i = 0; i < row.length; i++) {
+			int x = row[i] & 0xff;
+			int a = i >= 3 ? row[i - 3] & 0xff : 0;
+			int b = prior[i] & 0xff;
+			int c = i >= 3 ? prior[i - 3] & 0xff : 0;
+			int predicted;
+			switch (filter) {
+			case 1: predicted = a; break;
+			case 2: predicted = b; break;
+			case 3: predicted = (a + b) >> 1; break;
+			case 4: predicted = paeth(a, b, c); break;
+			default: predicted = 0; break;
+			}
+			byte value = (byte) (x - predicted);
+			outRow[i] = value;
+			cost += Math.abs(value);
+		}
+		return cost;
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+			return a;
+		return pb <= pc ? b : c;
+	}
+
+	/**
+	 * Collects what is written to it and writes it out as PNG chunks of the
+	 * given type, one per CHUNK_SIZE bytes and one more when closed. Closing
+	 * does not close the underlying stream.
+	 */
+	private static class ChunkOutputStream extends OutputStream {
+		private final DataOutputStream out;
+		private final byte[] type;
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private int size;
+		private boolean empty = true;
+
+		ChunkOutputStream(OutputStream out, String type) {
+			this.out = new DataOutputStream(out);
+			this.type = type.getBytes(StandardCharsets.US_ASCII);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (size == buffer.length)
+				flushChunk();
+			buffer[size++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (size == buffer.length)
+					flushChunk();
+				int n = Math.min(len, buffer.length - size);
+				System.arraycopy(b, off, buffer, size, n);
+				size += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			CRC32 crc = new CRC32();
+			crc.update(type);
+			crc.update(buffer, 0, size);
+			out.writeInt(size);
+			out.write(type);
+			out.write(buffer, 0, size);
+			out.writeInt((int) crc.getValue());
+			size = 0;
+			empty = false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (size > 0 || empty)
+				flushChunk();
+			out.flush();
+		}
+	}
+}
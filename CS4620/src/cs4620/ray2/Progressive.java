@@ -0,0 +1,44 @@
+package cs4620.ray2;
+
+/**
+ * Settings for progressive rendering. Instead of finishing each block with all
+ * of its samples before moving on, the renderer makes repeated passes over the
+ * whole image, adding one sample to every pixel per pass, so a complete (if
+ * noisy) image is available after the first pass. Rendering stops as soon as
+ * any of the limits below is reached.
+ *
+ * Enable it from a scene file with, for example,
+ * &lt;progressive&gt;&lt;time&gt;30&lt;/time&gt;&lt;noise&gt;0.02&lt;/noise&gt;&lt;/progressive&gt;,
+ * or from the command line with -progressive &lt;seconds&gt;.
+ */
+public class Progressive {
+
+	/** Number of samples a pixel needs before its noise estimate is trusted. */
+	public static final int MIN_NOISE_SAMPLES = 8;
+
+	/** Wall-clock budget in seconds; 0 for none. */
+	protected double time;
+	public void setTime(double time) { this.time = Math.max(0, time); }
+	public double getTime() { return time; }
+
+	/** Number of samples per pixel to stop at; 0 for none. */
+	protected int samples;
+	public void setSamples(int samples) { this.samples = Math.max(0, samples); }
+	public int getSamples() { return samples; }
+
+	/**
+	 * Relative standard error of the luminance of a pixel below which it counts
+	 * as converged; rendering stops once every pixel has converged. 0 for none.
+	 */
+	protected double noise;
+	public void setNoise(double noise) { this.noise = Math.max(0, noise); }
+	public double getNoise() { return noise; }
+
+	/**
+	 * @return true if no limit is set, in which case the renderer stops at the
+	 * sample count of the scene
+	 */
+	public boolean isUnlimited() {
+		return time == 0 && samples == 0 && noise == 0;
+	}
+}
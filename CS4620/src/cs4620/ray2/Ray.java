@@ -37,6 +37,19 @@ public class Ray {
   /** Ending t value of the ray **/
   public double end;
 
+  /**
+   * Whether the ray carries differentials: how its origin and direction change
+   * from one pixel to the next in x and y. Camera rays get them when the scene
+   * has textures that filter over the footprint of a pixel.
+   */
+  public boolean hasDifferentials;
+
+  /** Change in origin and direction from one pixel to the next, if hasDifferentials. */
+  public final Vector3d dOdx = new Vector3d();
+  public final Vector3d dOdy = new Vector3d();
+  public final Vector3d dDdx = new Vector3d();
+  public final Vector3d dDdy = new Vector3d();
+
   /**
    * Default constructor generates a trivial ray.
    */
@@ -55,14 +68,11 @@ public class Ray {
   }
 
   public Ray(Ray r) {
-	  origin.set(r.origin);
-	  direction.set(r.direction);
-	  start = r.start;
-	  end = r.end;
+	  set(r);
   }
 
   /**
-   * Sets this ray with the given direction and origin.
+   * Sets this ray with the given direction and origin, without differentials.
    * @param newOrigin the new origin point
    * @param newDirection the new direction vector
    */
@@ -70,6 +80,103 @@ public class Ray {
 
 	  origin.set(newOrigin);
 	  direction.set(newDirection);
+	  hasDifferentials = false;
+  }
+
+  /**
+   * Makes this ray a copy of r, including its start, end and differentials.
+   * @param r the ray to copy
+   */
+  public void set(Ray r) {
+
+	  origin.set(r.origin);
+	  direction.set(r.direction);
+	  start = r.start;
+	  end = r.end;
+	  hasDifferentials = r.hasDifferentials;
+	  if (hasDifferentials) {
+		  dOdx.set(r.dOdx);
+		  dOdy.set(r.dOdy);
+		  dDdx.set(r.dDdx);
+		  dDdy.set(r.dDdy);
+	  }
+  }
+
+  /**
+   * Give this ray, already set up as the mirror reflection of incoming at a
+   * hit, the differentials of the reflected neighbouring rays. The surface is
+   * treated as flat around the hit, so curved mirrors spread the footprint
+   * less than they should. Does nothing if incoming has no differentials.
+   *
+   * @param incoming the ray that hit the surface, with a unit direction
+   * @param record the hit, with its location differentials filled in
+   */
+  public void setReflectedDifferentials(Ray incoming, IntersectionRecord record) {
+	  hasDifferentials = incoming.hasDifferentials;
+	  if (!hasDifferentials)
+		  return;
+	  Vector3d n = record.normal;
+	  dOdx.set(record.dPdx);
+	  dOdy.set(record.dPdy);
+	  dDdx.set(incoming.dDdx).addMultiple(-2 * incoming.dDdx.dot(n), n);
+	  dDdy.set(incoming.dDdy).addMultiple(-2 * incoming.dDdy.dot(n), n);
+  }
+
+  /**
+   * Give this ray, already set up as the refraction of incoming at a hit, the
+   * differentials of the refracted neighbouring rays, treating the surface as
+   * flat around the hit. Does nothing if incoming has no differentials.
+   *
+   * @param incoming the ray that hit the surface, with a unit direction
+   * @param record the hit, with its location differentials filled in
+   * @param eta the ratio of the refractive index on the incoming side to that
+   * on the far side
+   */
+  public void setRefractedDifferentials(Ray incoming, IntersectionRecord record, double eta) {
+	  hasDifferentials = incoming.hasDifferentials;
+	  if (!hasDifferentials)
+		  return;
+	  // direction = eta d + mu n, with n facing the incoming ray
+	  Vector3d n = record.normal;
+	  double side = incoming.direction.dot(n) > 0 ? -1 : 1;
+	  double cosI = -side * incoming.direction.dot(n);
+	  double cosT = Math.sqrt(Math.max(1e-12, 1 - eta * eta * (1 - cosI * cosI)));
+	  double dMudCosI = eta - eta * eta * cosI / cosT;
+	  dOdx.set(record.dPdx);
+	  dOdy.set(record.dPdy);
+	  dDdx.set(incoming.dDdx).mul(eta).addMultiple(-dMudCosI * incoming.dDdx.dot(n), n);
+	  dDdy.set(incoming.dDdy).mul(eta).addMultiple(-dMudCosI * incoming.dDdy.dot(n), n);
+  }
+
+  /**
+   * Find where the rays through the neighbouring pixels, as described by the
+   * differentials, meet the tangent plane at a hit point, and set outDx and
+   * outDy to their offsets from the hit point. Both are set to zero if the ray
+   * has no differentials or a neighbouring ray runs parallel to the plane.
+   *
+   * @param point the hit point
+   * @param nx, ny, nz the normal of the plane, of any length
+   * @param outDx set to the change in hit point from one pixel to the next in x
+   * @param outDy set to the change in hit point from one pixel to the next in y
+   * @return true if the offsets were found
+   */
+  public boolean offsetsOnPlane(Vector3d point, double nx, double ny, double nz, Vector3d outDx, Vector3d outDy) {
+	  if (hasDifferentials) {
+		  // Plane through point: n.p = n.point; neighbouring ray o + dO + t (d + dD)
+		  double d = nx * (point.x - origin.x) + ny * (point.y - origin.y) + nz * (point.z - origin.z);
+		  double dirX = nx * (direction.x + dDdx.x) + ny * (direction.y + dDdx.y) + nz * (direction.z + dDdx.z);
+		  double dirY = nx * (direction.x + dDdy.x) + ny * (direction.y + dDdy.y) + nz * (direction.z + dDdy.z);
+		  if (dirX != 0 && dirY != 0) {
+			  double tx = (d - (nx * dOdx.x + ny * dOdx.y + nz * dOdx.z)) / dirX;
+			  double ty = (d - (nx * dOdy.x + ny * dOdy.y + nz * dOdy.z)) / dirY;
+			  outDx.set(origin).add(dOdx).addMultiple(tx, direction).addMultiple(tx, dDdx).sub(point);
+			  outDy.set(origin).add(dOdy).addMultiple(ty, direction).addMultiple(ty, dDdy).sub(point);
+			  return true;
+		  }
+	  }
+	  outDx.setZero();
+	  outDy.setZero();
+	  return false;
   }
 
   
@@ -0,0 +1,166 @@
+package cs4620.ray2;
+
+import cs4620.ray2.accel.AccelStruct;
+import egl.math.Vector3d;
+
+/**
+ * A group of up to MAX_SIZE rays stored as a structure of arrays, together with
+ * the results of intersecting them with the scene. Rays in a packet should be
+ * coherent (neighbouring camera rays, or shadow rays from one point) so that an
+ * acceleration structure can walk its nodes once for the whole packet.
+ */
+public class RayPacket {
+
+	/** The largest number of rays in a packet; one bit of a long per ray. */
+	public static final int MAX_SIZE = 64;
+
+	/** Number of rays currently in the packet. */
+	public int size;
+
+	/** Ray origins. */
+	public final double[] originX = new double[MAX_SIZE];
+	public final double[] originY = new double[MAX_SIZE];
+	public final double[] originZ = new double[MAX_SIZE];
+
+	/** Ray directions. */
+	public final double[] directionX = new double[MAX_SIZE];
+	public final double[] directionY = new double[MAX_SIZE];
+	public final double[] directionZ = new double[MAX_SIZE];
+
+	/** Reciprocals of the direction components, for slab tests. */
+	public final double[] inverseX = new double[MAX_SIZE];
+	public final double[] inverseY = new double[MAX_SIZE];
+	public final double[] inverseZ = new double[MAX_SIZE];
+
+	/** Starting t values of the rays. */
+	public final double[] start = new double[MAX_SIZE];
+
+	/**
+	 * Ending t values of the rays. Intersecting the packet pulls these in to the
+	 * closest hit found.
+	 */
+	public final double[] end = new double[MAX_SIZE];
+
+	/** Whether each ray carries differentials. */
+	public final boolean[] hasDifferentials = new boolean[MAX_SIZE];
+
+	/**
+	 * The differentials of each ray that has them, twelve per ray: dOdx, dOdy,
+	 * dDdx and dDdy in that order.
+	 */
+	public final double[] differentials = new double[12 * MAX_SIZE];
+
+	/** Whether each ray hit a surface in the last intersection. */
+	public final boolean[] hit = new boolean[MAX_SIZE];
+
+	/**
+	 * The closest hit of each ray, filled in when the packet is intersected for
+	 * first intersections. Unchanged for rays that missed.
+	 */
+	public final IntersectionRecord[] records = new IntersectionRecord[MAX_SIZE];
+
+	/** Scratch ray used when rays are intersected one at a time. */
+	private final Ray scratch = new Ray();
+
+	public RayPacket() {
+		for (int i = 0; i < MAX_SIZE; i++)
+			records[i] = new IntersectionRecord();
+	}
+
+	/**
+	 * Remove all rays from the packet.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * @return true if no more rays can be added
+	 */
+	public boolean isFull() {
+		return size == MAX_SIZE;
+	}
+
+	/**
+	 * Append a copy of ray to the packet.
+	 * @param ray the ray to add
+	 * @return the index of the ray in the packet
+	 */
+	public int add(Ray ray) {
+		int i = size++;
+		originX[i] = ray.origin.x;
+		originY[i] = ray.origin.y;
+		originZ[i] = ray.origin.z;
+		directionX[i] = ray.direction.x;
+		directionY[i] = ray.direction.y;
+		directionZ[i] = ray.direction.z;
+		inverseX[i] = 1 / ray.direction.x;
+		inverseY[i] = 1 / ray.direction.y;
+		inverseZ[i] = 1 / ray.direction.z;
+		start[i] = ray.start;
+		end[i] = ray.end;
+		hit[i] = false;
+		hasDifferentials[i] = ray.hasDifferentials;
+		if (ray.hasDifferentials) {
+			int d = 12 * i;
+			put(differentials, d, ray.dOdx);
+			put(differentials, d + 3, ray.dOdy);
+			put(differentials, d + 6, ray.dDdx);
+			put(differentials, d + 9, ray.dDdy);
+		}
+		return i;
+	}
+
+	/**
+	 * Copy ray i of the packet into outRay.
+	 * @param i the index of the ray
+	 * @param outRay the output ray
+	 */
+	public void getRay(int i, Ray outRay) {
+		outRay.origin.set(originX[i], originY[i], originZ[i]);
+		outRay.direction.set(directionX[i], directionY[i], directionZ[i]);
+		outRay.start = start[i];
+		outRay.end = end[i];
+		outRay.hasDifferentials = hasDifferentials[i];
+		if (hasDifferentials[i]) {
+			int d = 12 * i;
+			outRay.dOdx.set(differentials[d], differentials[d + 1], differentials[d + 2]);
+			outRay.dOdy.set(differentials[d + 3], differentials[d + 4], differentials[d + 5]);
+			outRay.dDdx.set(differentials[d + 6], differentials[d + 7], differentials[d + 8]);
+			outRay.dDdy.set(differentials[d + 9], differentials[d + 10], differentials[d + 11]);
+		}
+	}
+
+	private static void put(double[] out, int offset, Vector3d v) {
+		out[offset] = v.x;
+		out[offset + 1] = v.y;
+		out[offset + 2] = v.z;
+	}
+
+	/**
+	 * @return the number of rays whose hit flag is set
+	 */
+	public int hits() {
+		int count = 0;
+		for (int i = 0; i < size; i++)
+			if (hit[i])
+				count++;
+		return count;
+	}
+
+	/**
+	 * Intersect the rays of this packet with accel one at a time. This is the
+	 * packet traversal of acceleration structures that have no better way.
+	 *
+	 * @param accel the acceleration structure to intersect with
+	 * @param anyIntersection true if only hit[] is needed, not the closest hits
+	 */
+	public void intersectEach(AccelStruct accel, boolean anyIntersection) {
+		for (int i = 0; i < size; i++) {
+			getRay(i, scratch);
+			hit[i] = accel.intersect(anyIntersection ? null : records[i], scratch, anyIntersection);
+			if (hit[i] && !anyIntersection)
+				end[i] = records[i].t;
+		}
+	}
+}
@@ -1,15 +1,29 @@
 package cs4620.ray2;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cs4620.ray2.Image;
 import cs4620.ray2.Ray;
 import cs4620.ray2.Scene;
+import cs4620.ray2.accel.AccelStruct;
+import cs4620.ray2.accel.FlatBvh;
+import cs4620.ray2.accel.SahBvh;
+import cs4620.ray2.accel.WideBvh;
 import cs4620.ray2.camera.Camera;
 import cs4620.ray2.shader.Shader;
 import cs4620.ray2.surface.Surface;
@@ -37,18 +51,8 @@ public class RayTracer {
 	protected static int SUB_WIDTH = 32;
 	protected static int SUB_HEIGHT = 32;
 
-	/**
-	 * Widget to draw the image spiral.
-	 */
-	private static final BlockSpiral spiral = new BlockSpiral();
-
-	/**
-	 * Useful little display window that shows rendering progress.
-	 * The window actually take a bit of time to render itself, so
-	 * you can turn it on or off by setting the DISPLAY flag at the
-	 * top of the file.
-	 */
-	private static QuickViewer viewer = null;
+	//Size of the square pixel groups whose camera rays are traced as one packet
+	protected static final int PACKET_SIZE = 8;
 
 	public static class ScenePath {
 		/**
@@ -97,14 +101,60 @@ public class RayTracer {
 	}
 
 	/**
-	 * The Workspace For The Scene
+	 * This directory precedes the arguments passed in via the command line.
 	 */
-	public static ScenePath sceneWorkspace = null;
+	public static final String directory = "data/scenes/ray2";
 
 	/**
-	 * This directory precedes the arguments passed in via the command line.
+	 * Number of render threads requested on the command line. A value of 0
+	 * defers to the scene file, and then to the number of available cores.
 	 */
-	public static final String directory = "data/scenes/ray2";
+	protected int threads = 0;
+	public void setThreads(int threads) { this.threads = Math.max(0, threads); }
+
+	/**
+	 * Time budget in seconds for a progressive render requested on the command
+	 * line, which overrides the scene file; 0 if none was requested.
+	 */
+	protected double progressiveTime = 0;
+	public void setProgressiveTime(double seconds) { this.progressiveTime = Math.max(0, seconds); }
+
+	/**
+	 * Whether to show each render in a window as it progresses. The window
+	 * takes a bit of time to draw itself, and it is left off in batch mode.
+	 */
+	protected boolean display = DISPLAY;
+	public void setDisplay(boolean display) { this.display = display; }
+
+	/**
+	 * Number of scenes rendered at the same time. The render threads are split
+	 * evenly between them; 1 renders the scenes one after another.
+	 */
+	protected int concurrentScenes = 1;
+	public void setConcurrentScenes(int n) { this.concurrentScenes = Math.max(1, n); }
+
+	/** Told about every finished block, and asked whether to stop; null for none */
+	protected RenderMonitor monitor;
+	public void setMonitor(RenderMonitor monitor) { this.monitor = monitor; }
+
+	/** How much the renderer prints while it works */
+	public static final int LOG_QUIET = 0, LOG_INFO = 1, LOG_DEBUG = 2;
+
+	/**
+	 * LOG_QUIET prints only the summary and errors, LOG_INFO adds a line per
+	 * render and per progressive pass, and LOG_DEBUG a line per block and one
+	 * for the tree of each scene.
+	 */
+	protected int logLevel = LOG_INFO;
+	public void setLogLevel(int logLevel) { this.logLevel = logLevel; }
+
+	/** File the stats of every scene are written to (see RenderStats.write), or null for none */
+	protected String statsFile;
+	public void setStatsFile(String statsFile) { this.statsFile = statsFile; }
+
+	/** The stats of every scene run renders, added up */
+	protected final RenderStats totals = new RenderStats("total");
+	public RenderStats getTotals() { return totals; }
 
 	/**
 	 * The main method takes all the parameters and assumes they are input files
@@ -118,6 +168,12 @@ public class RayTracer {
 		ArrayList<ScenePath> pathArgs = new ArrayList<>();
 		ArrayList<ScenePath> scenesToRender = new ArrayList<>();
 		String currentRoot = directory;
+		int threads = 0;
+		double progressiveTime = 0;
+		int batch = 0;
+		int logLevel = LOG_INFO;
+		String statsFile = null;
+		boolean jmx = false;
 
 		// Use All The Arguments
 		for(int i = 0;i < args.length;i++) {
@@ -131,6 +187,35 @@ public class RayTracer {
 				// Use The CWD
 				currentRoot = null;
 				break;
+			case "-t":
+				// Use A Fixed Number Of Render Threads
+				i++;
+				if(i < args.length) threads = Integer.parseInt(args[i]);
+				break;
+			case "-progressive":
+				// Render In Passes For A Number Of Seconds
+				i++;
+				if(i < args.length) progressiveTime = Double.parseDouble(args[i]);
+				break;
+			case "-batch":
+				// Render Several Scenes At Once Without A Display
+				i++;
+				if(i < args.length) batch = Integer.parseInt(args[i]);
+				break;
+			case "-stats":
+				// Write The Counters And Timings Of Every Scene
+				i++;
+				if(i < args.length) statsFile = args[i];
+				break;
+			case "-jmx":
+				// Publish The Counters Over JMX
+				jmx = true;
+				break;
+			case "-log":
+				// Print More Or Less While Rendering
+				i++;
+				if(i < args.length) logLevel = parseLogLevel(args[i]);
+				break;
 			default:
 				// This Must Be A File
 				pathArgs.add(new ScenePath(currentRoot, args[i]));
@@ -170,19 +255,51 @@ public class RayTracer {
 
 		System.out.println("Attempting To Render " + scenesToRender.size() + " Scene(s)");
 		RayTracer rayTracer = new RayTracer();
+		rayTracer.setThreads(threads);
+		rayTracer.setProgressiveTime(progressiveTime);
+		rayTracer.setLogLevel(logLevel);
+		rayTracer.setStatsFile(statsFile);
+		if(jmx)
+			RenderStatsBean.register(rayTracer.getTotals(), RenderStatsBean.NAME);
+		if(batch > 0) {
+			rayTracer.setDisplay(false);
+			rayTracer.setConcurrentScenes(batch);
+		}
 		rayTracer.run(scenesToRender);
 	}
 
 	public static void printUsage() {
-		System.out.println("Usage: java RayTracer [-p path] [directory1 directory2 ... | file1 file2 ...]");
+		System.out.println("Usage: java RayTracer [-p path] [-t threads] [-progressive seconds] [-batch scenes] [-stats file] [-jmx] [-log quiet|info|debug] [directory1 directory2 ... | file1 file2 ...]");
 		System.out.println("List each scene file you would like to render on the command line separated by spaces.");
 		System.out.println("You may also specify a directory, and all scene files in that directory will be rendered.");
 		System.out.println("By default, all files specified are prepended with a given path. Use the -p option to");
 		System.out.println("override this path. The path may be overriden multiple times or -pnull may be provided to set");
 		System.out.println("the path to the program's working directory. With no -p argument given, this path is: " + directory);
+		System.out.println("The -t option sets the number of render threads, overriding any <threads> given in the scene.");
+		System.out.println("The -progressive option renders in passes of one sample per pixel until the given number of seconds is up.");
+		System.out.println("The -batch option renders the given number of scenes at once without a display, sharing the render");
+		System.out.println("threads between them and loading each mesh, texture and cube map only once.");
+		System.out.println("The -stats option writes the phase timings and ray counts of every scene to a file, as CSV if its");
+		System.out.println("name ends in .csv and as JSON otherwise. The -jmx option publishes the running totals as the MBean");
+		System.out.println(RenderStatsBean.NAME + ". The -log option prints nothing but errors and the summary (quiet),");
+		System.out.println("a line per render and pass (info, the default), or a line per block and tree built as well (debug).");
 		System.out.println("NB: the path is relative to the working directory of the application, which is normally the root of the CS4620 project.");
 	}
 
+	private static int parseLogLevel(String level) {
+		switch(level.toLowerCase()) {
+		case "quiet":
+			return LOG_QUIET;
+		case "debug":
+			return LOG_DEBUG;
+		case "info":
+			return LOG_INFO;
+		default:
+			System.err.println("Unknown log level " + level + ", using info");
+			return LOG_INFO;
+		}
+	}
+
 	/**
 	 * The run method takes all the parameters and assumes they are input files
 	 * for the ray tracer. It tries to render each one and write it out to a PNG
@@ -191,109 +308,499 @@ public class RayTracer {
 	 * @param args
 	 */
 	public void run(ArrayList<ScenePath> args) {
-		Parser parser = new Parser();
-		for (ScenePath p : args) {
-			// Set The Current Workspace For The Scene
-			sceneWorkspace = p;
-
-			// Parse the input file
-			Scene scene = (Scene) parser.parse(sceneWorkspace.getFile(), Scene.class);
-
-			// Propagate transformation matrix through the tree hierarchy
-			scene.setTransform();
-
-			// Create the acceleration structure.
-			ArrayList<Surface> renderableSurfaces = new ArrayList<Surface>();
-			List<Surface> surfaces = scene.getSurfaces();
-			for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
-				iter.next().appendRenderableSurfaces(renderableSurfaces);
+		ResourceCache resources = new ResourceCache();
+		int totalThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		int sceneCount = Math.max(1, Math.min(concurrentScenes, args.size()));
+		List<RenderStats> stats = new ArrayList<RenderStats>();
+		long start = System.nanoTime();
+
+		try (ImageWriter writer = new ImageWriter(totalThreads)) {
+			if (sceneCount == 1) {
+				Parser parser = new Parser(resources);
+				for (ScenePath p : args)
+					stats.add(renderScene(parser, writer, p, threads));
 			}
-			Surface surfaceArray[] = new Surface[renderableSurfaces.size()];
-			renderableSurfaces.toArray(surfaceArray);
-			scene.getAccelStruct().build(surfaceArray);
+			else
+				runBatch(resources, writer, args, sceneCount, Math.max(1, totalThreads / sceneCount), stats);
+		}
 
-			// Render the scene
-			renderImage(scene);
+		// The writer is closed, so the write times are all in
+		if (statsFile != null) {
+			try {
+				RenderStats.write(stats, statsFile);
+			}
+			catch (IOException e) {
+				System.err.println("Could not write stats to " + statsFile + ": " + e);
+			}
+		}
 
-			// Write the image out
-			if (writeHDR)
-				scene.getImage().writeHDR(sceneWorkspace.getFile() + ".exr");
-			else
-				scene.getImage().write(sceneWorkspace.getFile() + ".png");
+		if (args.size() > 1)
+			printSummary(stats, (System.nanoTime() - start) / 1e9, resources);
+	}
+
+	/**
+	 * Render sceneCount scenes at a time, each with its own parser and
+	 * threadsPerScene render threads, sharing the resource cache and the writer.
+	 */
+	private void runBatch(final ResourceCache resources, final ImageWriter writer, List<ScenePath> args,
+			int sceneCount, final int threadsPerScene, List<RenderStats> outStats) {
+		ExecutorService scenes = Executors.newFixedThreadPool(sceneCount);
+		try {
+			List<Future<RenderStats>> results = new ArrayList<Future<RenderStats>>();
+			for (final ScenePath p : args) {
+				results.add(scenes.submit(new Callable<RenderStats>() {
+					@Override
+					public RenderStats call() {
+						return renderScene(new Parser(resources), writer, p, threadsPerScene);
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					outStats.add(results.get(i).get());
+				}
+				catch (ExecutionException e) {
+					System.err.println("Error rendering " + args.get(i).getFile() + ": " + e.getCause());
+					e.getCause().printStackTrace();
+					outStats.add(new RenderStats(args.get(i).getFile(), totals));
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		finally {
+			scenes.shutdownNow();
 		}
 	}
 
 	/**
-	 * The renderImage method renders the entire scene.
+	 * Load, render and queue the output of one scene.
+	 *
+	 * @param threadBudget the number of render threads, or 0 to let the scene decide
+	 * @return how long each phase took and the rays traced; the write time
+	 * is only in once the writer is closed
+	 */
+	private RenderStats renderScene(Parser parser, ImageWriter writer, ScenePath p, int threadBudget) {
+		RenderStats renderStats = new RenderStats(p.getFile(), totals);
+
+		Scene scene = load(parser, p, renderStats);
+		if (scene == null)
+			return renderStats;
+
+		if (logLevel >= LOG_DEBUG)
+			logBuilds(scene.getAccelStruct());
+		long start = System.nanoTime();
+		build(scene);
+		renderStats.addTime(RenderStats.BUILD, (System.nanoTime() - start) / 1e9);
+
+		// Render the scene
+		PixelStats stats = renderImage(scene, threadBudget, renderStats);
+
+		// Write the image out; extra channels only fit in the HDR file
+		if (writeHDR || !scene.getAovs().isEmpty())
+			writer.writeHDR(scene.getImage(), p.getFile() + ".exr", renderStats);
+		if (!writeHDR)
+			writer.write(scene.getImage(), p.getFile() + ".png", renderStats);
+
+		// Show where the render spent its work. Tree nodes visited are counted
+		// exactly; times are shared over packets and jitter with the JIT, the
+		// collector and the scheduler, so they are only kept in the HDR file
+		if (scene.getImage().hasAov(Image.AOV_COST))
+			writer.write(scene.getImage().heatmap(Image.AOV_COST, Image.COST_NODES), p.getFile() + ".cost.png", renderStats);
+
+		// Show where adaptive sampling spent its samples
+		if (stats != null && scene.getAdaptive() != null)
+			writer.write(stats.countImage(scene.getSamples() * scene.getSamples()), p.getFile() + ".samples.png", renderStats);
+
+		renderStats.setComplete(true);
+		return renderStats;
+	}
+
+	/**
+	 * Parse a scene file and propagate the transformations through it.
+	 *
+	 * @return the scene, or null if it could not be parsed
+	 */
+	public static Scene load(Parser parser, ScenePath p) {
+		return load(parser, p, null);
+	}
+
+	/**
+	 * Parse a scene file and propagate the transformations through it, adding
+	 * the time each took to stats unless that is null.
+	 */
+	public static Scene load(Parser parser, ScenePath p, RenderStats stats) {
+		// Parse the input file
+		long start = System.nanoTime();
+		Scene scene = (Scene) parser.parse(p, Scene.class);
+		long parsed = System.nanoTime();
+		if (stats != null)
+			stats.addTime(RenderStats.PARSE, (parsed - start) / 1e9);
+		if (scene == null)
+			return null;
+
+		// Propagate transformation matrix through the tree hierarchy
+		scene.setTransform();
+		if (stats != null)
+			stats.addTime(RenderStats.TRANSFORM, (System.nanoTime() - parsed) / 1e9);
+		return scene;
+	}
+
+	/**
+	 * Build the acceleration structure of a loaded scene.
+	 */
+	public static void build(Scene scene) {
+		ArrayList<Surface> renderableSurfaces = new ArrayList<Surface>();
+		List<Surface> surfaces = scene.getSurfaces();
+		for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
+			iter.next().appendRenderableSurfaces(renderableSurfaces);
+		}
+		Surface surfaceArray[] = new Surface[renderableSurfaces.size()];
+		renderableSurfaces.toArray(surfaceArray);
+		scene.getAccelStruct().build(surfaceArray);
+		scene.findRayDifferentials(surfaceArray);
+	}
+
+	/**
+	 * Have a tree print its statistics when it is built, if it is one of the
+	 * trees built by SahBvh.
+	 */
+	private static void logBuilds(AccelStruct accel) {
+		if (accel instanceof SahBvh)
+			((SahBvh) accel).setLogBuilds(true);
+		else if (accel instanceof FlatBvh)
+			((FlatBvh) accel).setLogBuilds(true);
+		else if (accel instanceof WideBvh)
+			((WideBvh) accel).setLogBuilds(true);
+	}
+
+	private static void printSummary(List<RenderStats> stats, double wallTime, ResourceCache resources) {
+		System.out.println();
+		System.out.printf("%-40s %9s %9s %9s %9s %9s%n", "Scene", "Parse (s)", "Trans (s)", "Build (s)", "Render (s)", "Write (s)");
+		double total = 0;
+		for (RenderStats s : stats) {
+			String name = new File(s.getName()).getName();
+			if (!s.isComplete()) {
+				System.out.printf("%-40s %s%n", name, "failed");
+				continue;
+			}
+			System.out.printf("%-40s %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, s.getTime(RenderStats.PARSE),
+					s.getTime(RenderStats.TRANSFORM), s.getTime(RenderStats.BUILD), s.getTime(RenderStats.RENDER),
+					s.getTime(RenderStats.WRITE));
+			total += s.getTotalTime();
+		}
+		System.out.printf("%d scenes in %.2f seconds (%.2f seconds of scene time), %d shared files loaded%n",
+				stats.size(), wallTime, total, resources.size());
+	}
+
+	/**
+	 * The renderImage method renders the entire scene. The image blocks are laid
+	 * out in spiral order and handed to a fork/join pool, so idle workers steal
+	 * the remaining blocks from busy ones.
 	 *
 	 * @param scene The scene to be rendered
+	 * @return the sample statistics of every pixel for a progressive or
+	 * adaptive render, or null if every pixel got the same samples
 	 */
-	public void renderImage(Scene scene) {
+	public PixelStats renderImage(Scene scene) {
+		return renderImage(scene, threads, null);
+	}
+
+	/**
+	 * Render the entire scene, adding the render time and the rays traced to
+	 * renderStats unless that is null.
+	 */
+	public PixelStats renderImage(Scene scene, RenderStats renderStats) {
+		return renderImage(scene, threads, renderStats);
+	}
+
+	/**
+	 * Render the entire scene with the given number of threads, or with the
+	 * number the scene asks for if that is 0.
+	 */
+	private PixelStats renderImage(Scene scene, int threadBudget, RenderStats renderStats) {
 
 		// Get the output image
 		Image image = scene.getImage();
 
 		// Setup viewer
-		if(DISPLAY)
-			viewer = QuickViewer.createImageViewer(image);
+		RenderMonitor monitor = this.monitor;
+		if(display)
+			monitor = new ViewerMonitor(QuickViewer.createImageViewer(image), monitor);
 
-		System.err.print("Starting render...");
+		if(logLevel >= LOG_INFO)
+			System.err.print("Starting render...");
 
 		// Set the camera aspect ratio to match output image
 		int width = image.getWidth();
 		int height = image.getHeight();
 
-		//Setup the sub-block spiral
-		spiral.initSubblockSpiral(width, height);
+		// Derived camera values are shared by every worker, so compute them up front
+		scene.getCamera().initView();
 
-		// Timing counters
-		long startTime = System.currentTimeMillis();
+		for(String aov : scene.getAovs())
+			image.addAov(aov, Image.aovComponents(aov));
 
-		//Loop over all blocks and render
-		int offsetX, offsetY, sizeX, sizeY;
+		//Setup the sub-block spiral and record the block offsets in spiral order
+		BlockSpiral spiral = new BlockSpiral();
+		spiral.initSubblockSpiral(width, height);
+		int[] blocks = new int[2 * spiral.totalSubblocks];
 		for(int i = 0; i < spiral.totalSubblocks; i++) {
-
-			//Increment the block counter
 			spiral.incrementSublockSpiral();
-			offsetX = spiral.curSubX*SUB_WIDTH;
-			offsetY = spiral.curSubY*SUB_HEIGHT;
-			sizeX = Math.min(width-offsetX,SUB_WIDTH);
-			sizeY = Math.min(height-offsetY,SUB_HEIGHT);
+			blocks[2*i] = spiral.curSubX*SUB_WIDTH;
+			blocks[2*i+1] = spiral.curSubY*SUB_HEIGHT;
+		}
 
-			renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
+		int numThreads = threadBudget > 0 ? threadBudget : scene.getThreads();
+		if(numThreads <= 0)
+			numThreads = Runtime.getRuntime().availableProcessors();
 
-			//Update display
-			if(DISPLAY)
-				viewer.setImage(image, offsetX, offsetY, offsetX+sizeX, offsetY+sizeY);
+		Progressive progressive = scene.getProgressive();
+		if(progressiveTime > 0) {
+			if(progressive == null)
+				progressive = new Progressive();
+			progressive.setTime(progressiveTime);
+		}
 
-			System.out.println("finished " + (i+1) + "/" + spiral.totalSubblocks + " blocks");
+		// Timing counters
+		long startTime = System.currentTimeMillis();
 
+		PixelStats stats = null;
+		if(progressive != null || scene.getAdaptive() != null)
+			stats = new PixelStats(width, height);
+
+		//Render all blocks, either once or in progressive passes
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			if(progressive != null)
+				renderPasses(pool, scene, progressive, image, stats, renderStats, monitor, blocks);
+			else
+				pool.invoke(new BlockTask(scene, image, stats, renderStats, monitor, blocks, 0, spiral.totalSubblocks,
+						logLevel >= LOG_DEBUG ? new AtomicInteger() : null, null));
+		}
+		finally {
+			pool.shutdown();
 		}
 
 		// Output time
 		long totalTime = (System.currentTimeMillis() - startTime);
-		System.out.println("Done.  Total rendering time: "
-				+ (totalTime / 1000.0) + " seconds");
+		if(renderStats != null)
+			renderStats.addTime(RenderStats.RENDER, totalTime / 1000.0);
+		if(logLevel >= LOG_INFO)
+			System.out.println("Done.  Total rendering time: "
+					+ (totalTime / 1000.0) + " seconds (" + numThreads + " threads)");
+		return stats;
+	}
+
+	/**
+	 * Render the image in passes that each add one sample to every pixel, until
+	 * one of the limits of the progressive settings is reached. The first pass
+	 * always covers the whole image; later passes stop taking new blocks once
+	 * the time budget is used up.
+	 */
+	private void renderPasses(ForkJoinPool pool, Scene scene, Progressive progressive, Image image, PixelStats stats,
+			RenderStats renderStats, RenderMonitor monitor, int[] blocks) {
+		int maxSamples = progressive.getSamples();
+		if(progressive.isUnlimited())
+			maxSamples = scene.getSamples() * scene.getSamples();
+
+		long start = System.nanoTime();
+		long deadline = progressive.getTime() > 0 ? start + (long) (progressive.getTime() * 1e9) : Long.MAX_VALUE;
+		for(int pass = 0; ; pass++) {
+			Pass p = new Pass(pass, pass == 0 ? Long.MAX_VALUE : deadline, blocks.length / 2);
+			pool.invoke(new BlockTask(scene, image, stats, renderStats, monitor, blocks, 0, blocks.length / 2, null, p));
+
+			double noise = 0;
+			for(double n : p.blockNoise)
+				noise = Math.max(noise, n);
+			if(logLevel >= LOG_INFO)
+				System.out.printf("pass %d: max relative error %.4f after %.2f seconds%n",
+						pass + 1, noise, (System.nanoTime() - start) / 1e9);
+
+			if(maxSamples > 0 && pass + 1 >= maxSamples)
+				break;
+			if(monitor != null && monitor.isCancelled())
+				break;
+			if(System.nanoTime() >= deadline)
+				break;
+			if(progressive.getNoise() > 0 && pass + 1 >= Progressive.MIN_NOISE_SAMPLES && noise < progressive.getNoise())
+				break;
+		}
+	}
+
+	/**
+	 * Shows each finished block in a window, and passes it on to another monitor.
+	 */
+	private static class ViewerMonitor implements RenderMonitor {
+		private final QuickViewer viewer;
+		private final RenderMonitor next;
+
+		ViewerMonitor(QuickViewer viewer, RenderMonitor next) {
+			this.viewer = viewer;
+			this.next = next;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return next != null && next.isCancelled();
+		}
+
+		@Override
+		public void blockFinished(Image image, int x, int y, int width, int height, int pass) {
+			viewer.setImage(image, x, y, x + width, y + height);
+			if(next != null)
+				next.blockFinished(image, x, y, width, height, pass);
+		}
+	}
+
+	/**
+	 * One pass of a progressive render, shared by the tasks rendering its blocks.
+	 */
+	private static class Pass {
+		final int index;
+		/** System.nanoTime() after which no more blocks are started */
+		final long deadline;
+		/** The largest relative error in each block, by block index */
+		final double[] blockNoise;
+
+		Pass(int index, long deadline, int blockCount) {
+			this.index = index;
+			this.deadline = deadline;
+			this.blockNoise = new double[blockCount];
+		}
+	}
+
+	/**
+	 * Renders the blocks [start, end) of a spiral block list, splitting the range
+	 * in half until a single block remains.
+	 */
+	private static class BlockTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Scene scene;
+		private final Image image;
+		/** Sample statistics of every pixel, or null if not needed */
+		private final PixelStats stats;
+		/** Where each block's ray counts are added, or null if nothing counts them */
+		private final RenderStats renderStats;
+		/** Follows the progress of the render, or null if nothing does */
+		private final RenderMonitor monitor;
+		/** Block offsets, stored as (offsetX, offsetY) pairs in spiral order */
+		private final int[] blocks;
+		private final int start, end;
+		/** Number of blocks finished so far, shared by every task of a render; null to not print it */
+		private final AtomicInteger finished;
+		/** The progressive pass being rendered, or null to render blocks to completion */
+		private final Pass pass;
+
+		BlockTask(Scene scene, Image image, PixelStats stats, RenderStats renderStats, RenderMonitor monitor,
+				int[] blocks, int start, int end, AtomicInteger finished, Pass pass) {
+			this.scene = scene;
+			this.image = image;
+			this.stats = stats;
+			this.renderStats = renderStats;
+			this.monitor = monitor;
+			this.blocks = blocks;
+			this.start = start;
+			this.end = end;
+			this.finished = finished;
+			this.pass = pass;
+		}
+
+		@Override
+		protected void compute() {
+			if(end - start > 1) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new BlockTask(scene, image, stats, renderStats, monitor, blocks, start, mid, finished, pass),
+						new BlockTask(scene, image, stats, renderStats, monitor, blocks, mid, end, finished, pass));
+				return;
+			}
+
+			int width = image.getWidth();
+			int height = image.getHeight();
+			int offsetX = blocks[2*start];
+			int offsetY = blocks[2*start+1];
+			int sizeX = Math.min(width-offsetX,SUB_WIDTH);
+			int sizeY = Math.min(height-offsetY,SUB_HEIGHT);
+
+			if(monitor != null && monitor.isCancelled())
+				return;
+			if(pass != null && System.nanoTime() >= pass.deadline)
+				return;
+
+			// Count this block's rays on their own, then add them to the scene's
+			RenderContext context = RenderContext.current();
+			context.counters.clear();
+			if(pass != null)
+				pass.blockNoise[start] = renderPass(context, scene, stats, pass.index,
+						image, offsetX, offsetY, sizeX, sizeY);
+			else
+				renderBlock(context, scene, image, stats, offsetX, offsetY, sizeX, sizeY);
+			if(renderStats != null)
+				renderStats.add(context.counters);
+
+			//Update display
+			if(monitor != null)
+				monitor.blockFinished(image, offsetX, offsetY, sizeX, sizeY, pass == null ? 0 : pass.index);
+
+			if(finished != null)
+				System.out.println("finished " + finished.incrementAndGet() + "/" + (blocks.length / 2) + " blocks");
+		}
 	}
 
 
 	/**
 	 * This method returns the color along a single ray in outColor.
 	 *
+	 * @param context scratch space of the calling thread
 	 * @param outColor output space
 	 * @param scene the scene
 	 * @param ray the ray to shade
 	 */
-	public static void shadeRay(Colord outColor, Scene scene, Ray ray, int depth) {
+	public static void shadeRay(RenderContext context, Colord outColor, Scene scene, Ray ray, int depth) {
+		shadeRay(context, outColor, scene, ray, depth, RenderCounters.REFLECTION);
+	}
+
+	/**
+	 * This method returns the color along a single ray in outColor, counting
+	 * the ray as the given type (see RenderCounters).
+	 */
+	public static void shadeRay(RenderContext context, Colord outColor, Scene scene, Ray ray, int depth, int rayType) {
 
 		outColor.setZero();
 
 		if(depth > MAX_DEPTH)
 			return;
 
-		IntersectionRecord intersectionRecord = new IntersectionRecord();
+		IntersectionRecord intersectionRecord = context.record(depth);
+
+		context.counters.secondaryType = rayType;
+		boolean hit = scene.getFirstIntersection(intersectionRecord, ray);
+		context.counters.secondaryType = RenderCounters.REFLECTION;
+		if (!hit)
+			intersectionRecord = null;
+
+		shadeHit(context, outColor, scene, ray, intersectionRecord, depth);
+	}
 
-		if (!scene.getFirstIntersection(intersectionRecord, ray)) {
+	/**
+	 * This method returns the color along a ray that has already been intersected
+	 * with the scene in outColor.
+	 *
+	 * @param context scratch space of the calling thread
+	 * @param outColor output space
+	 * @param scene the scene
+	 * @param ray the ray to shade
+	 * @param record the first intersection of the ray, or null if it hit nothing
+	 */
+	public static void shadeHit(RenderContext context, Colord outColor, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+
+		outColor.setZero();
+		context.counters.reachDepth(depth);
+
+		if (record == null) {
 			if(scene.cubeMap != null)
 				scene.cubeMap.evaluate(ray.direction, outColor);
 			else
@@ -302,8 +809,8 @@ public class RayTracer {
 			return;
 		}
 
-		Shader shader = intersectionRecord.surface.getShader();
-		shader.shade(outColor, scene, ray, intersectionRecord, depth);
+		Shader shader = record.surface.getShader();
+		shader.shade(context, outColor, scene, ray, record, depth);
 
 	}
 
@@ -318,14 +825,89 @@ public class RayTracer {
 	 * @param sizeY the height of the block
 	 */
 	public static void renderBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+		renderBlock(RenderContext.current(), scene, outImage, null, offsetX, offsetY, sizeX, sizeY);
+	}
 
+	/**
+	 * Render one block of the output image using the scratch objects of the given
+	 * context. Blocks never overlap, so several workers may render into the same
+	 * image at once.
+	 *
+	 * @param context scratch space owned by the calling thread
+	 * @param scene The scene data
+	 * @param outImage the output image (write the output pixels here)
+	 * @param offsetX the startingX value of the block
+	 * @param offsetY the startingY value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 */
+	public static void renderBlock(RenderContext context, Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+		renderBlock(context, scene, outImage, null, offsetX, offsetY, sizeX, sizeY);
+	}
+
+	/**
+	 * Render one block of the output image using the scratch objects of the given
+	 * context, recording the samples of each pixel in stats when the scene uses
+	 * adaptive sampling.
+	 *
+	 * @param context scratch space owned by the calling thread
+	 * @param scene The scene data
+	 * @param outImage the output image (write the output pixels here)
+	 * @param stats statistics of every pixel of the image, or null to keep them for this block only
+	 * @param offsetX the startingX value of the block
+	 * @param offsetY the startingY value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 */
+	public static void renderBlock(RenderContext context, Scene scene, Image outImage, PixelStats stats,
+			int offsetX, int offsetY, int sizeX, int sizeY) {
+
+		Adaptive adaptive = scene.getAdaptive();
+		int statsX = 0, statsY = 0;
+		if(adaptive != null && stats == null) {
+			stats = new PixelStats(sizeX, sizeY);
+			statsX = offsetX;
+			statsY = offsetY;
+		}
+
+		for(int packetX = offsetX; packetX < (offsetX + sizeX); packetX += PACKET_SIZE) {
+			for(int packetY = offsetY; packetY < (offsetY + sizeY); packetY += PACKET_SIZE) {
+				int endX = Math.min(packetX + PACKET_SIZE, offsetX + sizeX);
+				int endY = Math.min(packetY + PACKET_SIZE, offsetY + sizeY);
+
+				if(adaptive != null)
+					renderGroupAdaptive(context, scene, adaptive, outImage, stats, statsX, statsY, packetX, packetY, endX, endY);
+				else
+					renderGroup(context, scene, outImage, packetX, packetY, endX, endY);
+			}
+		}
+	}
+
+	/**
+	 * @param size the width or height of the image in pixels
+	 * @return the spacing in camera coordinates that camera ray differentials
+	 * span: that of samples^2 samples per pixel, so textures are filtered over
+	 * the area each sample stands for; or 0 if the scene needs no differentials
+	 */
+	private static double differentialSpacing(Scene scene, int size) {
+		return scene.usesRayDifferentials() ? 1.0 / (size * Math.max(1, scene.getSamples())) : 0;
+	}
+
+	/**
+	 * Render the pixels [startX, endX) x [startY, endY) with samples^2 samples
+	 * each, at the centers of a regular grid of subpixels. For every subpixel
+	 * the camera rays of all the pixels are intersected as one packet.
+	 */
+	private static void renderGroup(RenderContext context, Scene scene, Image outImage,
+			int startX, int startY, int endX, int endY) {
 
 		// Do some basic setup
-		Ray ray = new Ray();
-		Colord pixelColor = new Colord();
-		Colord rayColor = new Colord();
+		Ray ray = context.ray;
+		Colord pixelColor = context.pixelColor;
+		Colord rayColor = context.rayColor;
+		RayPacket packet = context.packet;
+		double[] colors = context.packetColors;
 
-		// Set the camera aspect ratio to match output image
 		int width = outImage.getWidth();
 		int height = outImage.getHeight();
 
@@ -336,27 +918,314 @@ public class RayTracer {
 		double exposure = scene.getExposure();
 
 		Camera cam = scene.getCamera();
+		double du = differentialSpacing(scene, width), dv = differentialSpacing(scene, height);
+
+		RenderCounters counters = context.counters;
+		boolean cost = outImage.hasAov(Image.AOV_COST);
+		int groupHeight = endY - startY;
+
+		Arrays.fill(colors, 0, 3 * (endX - startX) * (endY - startY), 0);
+		for(int i = 0; i < samples; i++) {
+			for(int j = 0; j < samples; j++) {
+				packet.clear();
+				for(int x = startX; x < endX; x++) {
+					for(int y = startY; y < endY; y++) {
+						cam.getRay(ray, (x + i * sInv + sInvD2) / width, (y + j * sInv + sInvD2) / height, du, dv);
+						packet.add(ray);
+					}
+				}
+				if(cost) counters.startCost();
+				scene.getFirstIntersection(packet);
+				if(cost) counters.shareCost(packet.size);
+				if(i == 0 && j == 0)
+					setHitAovs(outImage, packet, startX, startY, endX, endY);
+
+				for(int k = 0; k < packet.size; k++) {
+					packet.getRay(k, ray);
+					context.setSample(startX + k / groupHeight, startY + k % groupHeight, i * samples + j);
+					if(cost) counters.startCost();
+					shadeHit(context, rayColor, scene, ray, packet.hit[k] ? packet.records[k] : null, 1);
+					if(cost) counters.recordCost(outImage, startX + k / groupHeight, startY + k % groupHeight);
+					colors[3*k] += rayColor.x;
+					colors[3*k+1] += rayColor.y;
+					colors[3*k+2] += rayColor.z;
+				}
+			}
+		}
 
-		for(int x = offsetX; x < (offsetX + sizeX); x++) {
-			for(int y = offsetY; y < (offsetY + sizeY); y++) {
+		int k = 0;
+		for(int x = startX; x < endX; x++) {
+			for(int y = startY; y < endY; y++, k++) {
+				pixelColor.set(colors[3*k], colors[3*k+1], colors[3*k+2]);
+				pixelColor.mul(sInvSqr * exposure);
+				outImage.setPixelColor(pixelColor, x, y);
+				outImage.setAov(Image.AOV_SAMPLES, x, y, 0, samples * samples);
+			}
+		}
+	}
 
-				pixelColor.setZero();
+	/**
+	 * Render the pixels [startX, endX) x [startY, endY) adaptively. Every pixel
+	 * first gets a centered grid of samples. Then, in rounds, each pixel whose
+	 * relative error is still above the threshold, or which lies on an edge
+	 * between pixels, gets one more sample, placed by a low-discrepancy
+	 * sequence, until the samples^2 cap is reached. The rays of
+	 * each round are intersected as one packet.
+	 *
+	 * @param stats the statistics to record samples in; pixel (x, y) is stored
+	 * at (x - statsX, y - statsY)
+	 */
+	private static void renderGroupAdaptive(RenderContext context, Scene scene, Adaptive adaptive,
+			Image outImage, PixelStats stats, int statsX, int statsY, int startX, int startY, int endX, int endY) {
 
-				// TODO#A7 Implement supersampling for antialiasing.
-				// Each pixel should have (samples*samples) subpixels.
-				
-			
-				cam.getRay(ray,  (double) x / width, (double) y / height);
-				shadeRay(rayColor, scene, ray, 1);
-				pixelColor.add(rayColor);
-			
-					
-				pixelColor.mul(exposure);
+		Ray ray = context.ray;
+		Colord pixelColor = context.pixelColor;
+		Colord rayColor = context.rayColor;
+		RayPacket packet = context.packet;
+		int[] pixelX = context.packetPixelX;
+		int[] pixelY = context.packetPixelY;
 
-				
+		int width = outImage.getWidth();
+		int height = outImage.getHeight();
+		double exposure = scene.getExposure();
+		Camera cam = scene.getCamera();
+		double du = differentialSpacing(scene, width), dv = differentialSpacing(scene, height);
+
+		int initial = adaptive.getInitialSamples();
+		int cap = Math.max(initial * initial, scene.getSamples() * scene.getSamples());
+		double threshold = adaptive.getThreshold();
+
+		int groupHeight = endY - startY;
+		int[] minSamples = context.packetMinSamples;
+
+		RenderCounters counters = context.counters;
+		boolean cost = outImage.hasAov(Image.AOV_COST);
+
+		for(int round = 0; ; round++) {
+			if(round == initial * initial)
+				findEdges(stats, statsX, statsY, startX, startY, endX, endY, adaptive.getContrast(), cap, minSamples);
+
+			packet.clear();
+			for(int x = startX; x < endX; x++) {
+				for(int y = startY; y < endY; y++) {
+					int n = stats.getCount(x - statsX, y - statsY);
+					double u, v;
+					if(round < initial * initial) {
+						// Center of a stratum; a centered grid gets smooth shading exactly right
+						u = ((round / initial) + 0.5) / initial;
+						v = ((round % initial) + 0.5) / initial;
+					}
+					else if((n - initial * initial) % 2 == 1 || n + 2 <= cap
+							&& (n < minSamples[(x - startX) * groupHeight + y - startY]
+							|| stats.getRelativeError(x - statsX, y - statsY) > threshold)) {
+						// Further samples come in pairs mirrored about the pixel center, so
+						// that smooth shading stays exact; the points are shifted per pixel
+						// so that neighbouring pixels do not sample in lockstep
+						int extra = n - initial * initial;
+						u = radicalInverse(2, extra / 2) + pixelShift(x, y, 0);
+						v = radicalInverse(3, extra / 2) + pixelShift(x, y, 1);
+						u -= Math.floor(u);
+						v -= Math.floor(v);
+						if(extra % 2 == 1) {
+							u = 1 - u;
+							v = 1 - v;
+						}
+					}
+					else
+						continue;
+
+					cam.getRay(ray, (x + u) / width, (y + v) / height, du, dv);
+					pixelX[packet.size] = x;
+					pixelY[packet.size] = y;
+					packet.add(ray);
+				}
+			}
+			if(packet.size == 0)
+				break;
+			if(cost) counters.startCost();
+			scene.getFirstIntersection(packet);
+			if(cost) counters.shareCost(packet.size);
+			if(round == 0)
+				setHitAovs(outImage, packet, startX, startY, endX, endY);
+
+			for(int k = 0; k < packet.size; k++) {
+				packet.getRay(k, ray);
+				context.setSample(pixelX[k], pixelY[k], stats.getCount(pixelX[k] - statsX, pixelY[k] - statsY));
+				if(cost) counters.startCost();
+				shadeHit(context, rayColor, scene, ray, packet.hit[k] ? packet.records[k] : null, 1);
+				if(cost) counters.recordCost(outImage, pixelX[k], pixelY[k]);
+				stats.add(pixelX[k] - statsX, pixelY[k] - statsY, rayColor);
+			}
+		}
+
+		for(int x = startX; x < endX; x++) {
+			for(int y = startY; y < endY; y++) {
+				stats.getMean(x - statsX, y - statsY, pixelColor);
+				pixelColor.mul(exposure);
 				outImage.setPixelColor(pixelColor, x, y);
+				outImage.setAov(Image.AOV_SAMPLES, x, y, 0, stats.getCount(x - statsX, y - statsY));
+			}
+		}
+	}
 
+	/**
+	 * Find the pixels of a group whose mean luminance differs from that of a
+	 * neighbour by more than the contrast threshold. The initial samples of
+	 * both can agree perfectly while an edge runs between them, so they are
+	 * given edgeSamples samples whatever their own variance says.
+	 *
+	 * @param outMinSamples set to the minimum number of samples of each pixel,
+	 * indexed by (x - startX) * (endY - startY) + (y - startY)
+	 */
+	private static void findEdges(PixelStats stats, int statsX, int statsY, int startX, int startY, int endX, int endY,
+			double contrast, int edgeSamples, int[] outMinSamples) {
+		int groupHeight = endY - startY;
+		Arrays.fill(outMinSamples, 0, (endX - startX) * groupHeight, 0);
+		for(int x = startX; x < endX; x++) {
+			for(int y = startY; y < endY; y++) {
+				double l = stats.getLuminance(x - statsX, y - statsY);
+				if(x + 1 < endX && differs(l, stats.getLuminance(x + 1 - statsX, y - statsY), contrast)) {
+					outMinSamples[(x - startX) * groupHeight + y - startY] = edgeSamples;
+					outMinSamples[(x + 1 - startX) * groupHeight + y - startY] = edgeSamples;
+				}
+				if(y + 1 < endY && differs(l, stats.getLuminance(x - statsX, y + 1 - statsY), contrast)) {
+					outMinSamples[(x - startX) * groupHeight + y - startY] = edgeSamples;
+					outMinSamples[(x - startX) * groupHeight + y + 1 - startY] = edgeSamples;
+				}
 			}
 		}
 	}
+
+	private static boolean differs(double a, double b, double contrast) {
+		return Math.abs(a - b) > contrast * Math.max(Math.max(a, b), PixelStats.NOISE_FLOOR);
+	}
+
+	/**
+	 * Add one sample to every pixel of a block for a progressive render, and
+	 * write the running means of the block into the image. All pixels of a pass
+	 * share a position within the pixel taken from a low-discrepancy sequence,
+	 * shifted by a fixed per-pixel offset so that neighbouring pixels do not
+	 * sample in lockstep.
+	 *
+	 * @param context scratch space owned by the calling thread
+	 * @param scene The scene data
+	 * @param stats the running statistics of every pixel
+	 * @param pass the number of the pass, counting from 0
+	 * @param outImage the output image (write the output pixels here)
+	 * @param offsetX the startingX value of the block
+	 * @param offsetY the startingY value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 * @return the largest relative error of any pixel in the block
+	 */
+	public static double renderPass(RenderContext context, Scene scene, PixelStats stats, int pass,
+			Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+
+		Ray ray = context.ray;
+		Colord pixelColor = context.pixelColor;
+		Colord rayColor = context.rayColor;
+		RayPacket packet = context.packet;
+
+		int width = outImage.getWidth();
+		int height = outImage.getHeight();
+		double exposure = scene.getExposure();
+		Camera cam = scene.getCamera();
+		double du = differentialSpacing(scene, width), dv = differentialSpacing(scene, height);
+
+		double passU = radicalInverse(2, pass);
+		double passV = radicalInverse(3, pass);
+		double noise = 0;
+
+		RenderCounters counters = context.counters;
+		boolean cost = outImage.hasAov(Image.AOV_COST);
+
+		for(int packetX = offsetX; packetX < (offsetX + sizeX); packetX += PACKET_SIZE) {
+			for(int packetY = offsetY; packetY < (offsetY + sizeY); packetY += PACKET_SIZE) {
+				int endX = Math.min(packetX + PACKET_SIZE, offsetX + sizeX);
+				int endY = Math.min(packetY + PACKET_SIZE, offsetY + sizeY);
+
+				packet.clear();
+				for(int x = packetX; x < endX; x++) {
+					for(int y = packetY; y < endY; y++) {
+						double u = passU + pixelShift(x, y, 0);
+						double v = passV + pixelShift(x, y, 1);
+						cam.getRay(ray, (x + u - Math.floor(u)) / width, (y + v - Math.floor(v)) / height, du, dv);
+						packet.add(ray);
+					}
+				}
+				if(cost) counters.startCost();
+				scene.getFirstIntersection(packet);
+				if(cost) counters.shareCost(packet.size);
+				if(pass == 0)
+					setHitAovs(outImage, packet, packetX, packetY, endX, endY);
+
+				int i = 0;
+				for(int x = packetX; x < endX; x++) {
+					for(int y = packetY; y < endY; y++, i++) {
+						packet.getRay(i, ray);
+						context.setSample(x, y, pass);
+						if(cost) counters.startCost();
+						shadeHit(context, rayColor, scene, ray, packet.hit[i] ? packet.records[i] : null, 1);
+						if(cost) counters.recordCost(outImage, x, y);
+						stats.add(x, y, rayColor);
+
+						stats.getMean(x, y, pixelColor);
+						pixelColor.mul(exposure);
+						outImage.setPixelColor(pixelColor, x, y);
+						outImage.setAov(Image.AOV_SAMPLES, x, y, 0, stats.getCount(x, y));
+
+						noise = Math.max(noise, stats.getRelativeError(x, y));
+					}
+				}
+			}
+		}
+		return noise;
+	}
+
+	/**
+	 * Record the depth and normal of the first hit of each camera ray of a
+	 * packet in the extra channels of the image, if it has them. The packet
+	 * holds one ray per pixel of [startX, endX) x [startY, endY), in the order
+	 * the render loops add them.
+	 */
+	private static void setHitAovs(Image outImage, RayPacket packet, int startX, int startY, int endX, int endY) {
+		if(!outImage.hasAov(Image.AOV_DEPTH) && !outImage.hasAov(Image.AOV_NORMAL))
+			return;
+		int k = 0;
+		for(int x = startX; x < endX; x++) {
+			for(int y = startY; y < endY; y++, k++) {
+				IntersectionRecord record = packet.hit[k] ? packet.records[k] : null;
+				double depth = Double.POSITIVE_INFINITY;
+				if(record != null)
+					depth = record.t * Math.sqrt(packet.directionX[k] * packet.directionX[k]
+							+ packet.directionY[k] * packet.directionY[k] + packet.directionZ[k] * packet.directionZ[k]);
+				outImage.setAov(Image.AOV_DEPTH, x, y, 0, (float) depth);
+				outImage.setAov(Image.AOV_NORMAL, x, y, 0, record == null ? 0 : (float) record.normal.x);
+				outImage.setAov(Image.AOV_NORMAL, x, y, 1, record == null ? 0 : (float) record.normal.y);
+				outImage.setAov(Image.AOV_NORMAL, x, y, 2, record == null ? 0 : (float) record.normal.z);
+			}
+		}
+	}
+
+	/**
+	 * @return the radical inverse of i in the given base, a low-discrepancy
+	 * sequence in [0, 1)
+	 */
+	static double radicalInverse(int base, int i) {
+		double inverse = 1.0 / base, scale = inverse, result = 0;
+		for(; i > 0; i /= base, scale *= inverse)
+			result += (i % base) * scale;
+		return result;
+	}
+
+	/**
+	 * @return a fixed pseudo-random offset in [0, 1) for a pixel and dimension
+	 */
+	static double pixelShift(int x, int y, int dimension) {
+		int h = x * 0x8da6b343 ^ y * 0xd8163841 ^ dimension * 0xcb1ab31f;
+		h ^= h >>> 16;
+		h *= 0x7feb352d;
+		h ^= h >>> 15;
+		return (h >>> 8) * (1.0 / (1 << 24));
+	}
 }
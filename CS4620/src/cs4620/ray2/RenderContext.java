@@ -0,0 +1,242 @@
+package cs4620.ray2;
+
+import java.util.Arrays;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+
+/**
+ * Scratch space owned by a single render worker. Everything in here is reused
+ * from pixel to pixel so that the inner render loop does not allocate, and an
+ * instance is never shared between two threads. The context is passed down
+ * through RayTracer.shadeRay and Shader.shade, so shaders find their
+ * temporaries here instead of creating them per hit.
+ */
+public class RenderContext {
+
+	/** Per-thread contexts, created lazily the first time a thread renders. */
+	private static final ThreadLocal<RenderContext> CONTEXTS = new ThreadLocal<RenderContext>() {
+		@Override
+		protected RenderContext initialValue() {
+			return new RenderContext();
+		}
+	};
+
+	/**
+	 * @return the context owned by the calling thread
+	 */
+	public static RenderContext current() {
+		return CONTEXTS.get();
+	}
+
+	/** The camera ray for the current sample. */
+	public final Ray ray = new Ray();
+
+	/** Accumulated color of the current pixel. */
+	public final Colord pixelColor = new Colord();
+
+	/** Color returned along the current camera ray. */
+	public final Colord rayColor = new Colord();
+
+	/** Camera rays of a group of pixels, intersected together. */
+	public final RayPacket packet = new RayPacket();
+
+	/** Accumulated colors of the pixels of a packet, three doubles per ray. */
+	public final double[] packetColors = new double[3 * RayPacket.MAX_SIZE];
+
+	/** The pixel each ray of a packet belongs to. */
+	public final int[] packetPixelX = new int[RayPacket.MAX_SIZE];
+	public final int[] packetPixelY = new int[RayPacket.MAX_SIZE];
+
+	/** The least number of samples each pixel of a group must get. */
+	public final int[] packetMinSamples = new int[RayPacket.MAX_SIZE];
+
+	/** Shadow rays from one shading point towards the lights. */
+	public final RayPacket shadowPacket = new RayPacket();
+
+	/** Scratch ray used to build shadow rays. */
+	public final Ray shadowRay = new Ray();
+
+	/** Direction, reflectance and radiance of one environment light sample. */
+	public final Vector3d sampleDirection = new Vector3d();
+	public final Colord sampleReflectance = new Colord();
+	public final Colord sampleRadiance = new Colord();
+
+	/** Random numbers handed to Cubemap.generate. */
+	public final Vector2d sampleSeed = new Vector2d();
+
+	/** Weighted contribution of each shadow ray of an environment light packet, three doubles per ray. */
+	public final double[] sampleColors = new double[3 * RayPacket.MAX_SIZE];
+
+	/** Rays traced and traversal work done by this thread, since the render last collected them. */
+	public final RenderCounters counters = new RenderCounters();
+
+	/** Pixel and number of the sample being shaded, which the random numbers are derived from. */
+	private int sampleX, sampleY, sampleIndex;
+
+	/** Which lights are blocked from the current shading point; grown as needed. */
+	private boolean[] shadowedLights = new boolean[RayPacket.MAX_SIZE];
+
+	/**
+	 * Scratch space of one acceleration structure query. Queries nest when a
+	 * surface has an acceleration structure of its own, as a Mesh does, so
+	 * every nesting level gets its own.
+	 */
+	public static class Traversal {
+		/** Working copy of the ray, whose end is pulled in at every hit. */
+		public final Ray ray = new Ray();
+
+		/** Candidate hit. */
+		public final IntersectionRecord record = new IntersectionRecord();
+
+		/** Traversal stacks; grown as needed. */
+		private int[] nodeStack = new int[64];
+		private long[] maskStack = new long[64];
+		private double[] distanceStack = new double[64];
+
+		/**
+		 * @param size the deepest stack the traversal can need
+		 * @return a node index stack with at least that many entries
+		 */
+		public int[] nodeStack(int size) {
+			if (nodeStack.length < size)
+				nodeStack = new int[size];
+			return nodeStack;
+		}
+
+		/**
+		 * @param size the deepest stack the traversal can need
+		 * @return a ray mask stack with at least that many entries
+		 */
+		public long[] maskStack(int size) {
+			if (maskStack.length < size)
+				maskStack = new long[size];
+			return maskStack;
+		}
+
+		/**
+		 * @param size the deepest stack the traversal can need
+		 * @return a ray distance stack with at least that many entries
+		 */
+		public double[] distanceStack(int size) {
+			if (distanceStack.length < size)
+				distanceStack = new double[size];
+			return distanceStack;
+		}
+	}
+
+	private Traversal[] traversals = { new Traversal() };
+	private int traversalDepth = 0;
+
+	/**
+	 * Temporaries for shading one hit. A shader that traces a secondary ray at
+	 * depth+1 must still be able to read its own values afterwards, so there is
+	 * one frame per recursion depth.
+	 */
+	public static class Frame {
+		/** The intersection being shaded. */
+		public final IntersectionRecord record = new IntersectionRecord();
+
+		/** The secondary (reflected or refracted) ray. */
+		public final Ray ray = new Ray();
+
+		/** Direction towards the light. */
+		public final Vector3d incoming = new Vector3d();
+
+		/** Direction towards the viewer. */
+		public final Vector3d outgoing = new Vector3d();
+
+		/** Half vector, reflected direction or any other third direction. */
+		public final Vector3d direction = new Vector3d();
+
+		/** Contribution of one light. */
+		public final Colord color = new Colord();
+
+		/** Surface color looked up from a texture. */
+		public final Colord texColor = new Colord();
+
+		/** Color returned along the secondary ray. */
+		public final Colord rayColor = new Colord();
+	}
+
+	private final Frame[] frames;
+
+	public RenderContext() {
+		frames = new Frame[RayTracer.MAX_DEPTH + 1];
+		for (int i = 0; i < frames.length; i++)
+			frames[i] = new Frame();
+	}
+
+	/**
+	 * @param depth the recursion depth (1 for camera rays)
+	 * @return the scratch frame reserved for that depth
+	 */
+	public Frame frame(int depth) {
+		return frames[depth];
+	}
+
+	/**
+	 * @param depth the recursion depth (1 for camera rays)
+	 * @return the scratch intersection record reserved for that depth
+	 */
+	public IntersectionRecord record(int depth) {
+		return frames[depth].record;
+	}
+
+	/**
+	 * Claim the scratch space for an acceleration structure query. Every call
+	 * must be matched by a call to endTraversal once the query is done.
+	 * @return scratch space not used by any query in progress on this thread
+	 */
+	public Traversal beginTraversal() {
+		if (traversalDepth == traversals.length) {
+			traversals = Arrays.copyOf(traversals, traversalDepth + 1);
+			traversals[traversalDepth] = new Traversal();
+		}
+		return traversals[traversalDepth++];
+	}
+
+	/**
+	 * Release the scratch space claimed by the last call to beginTraversal.
+	 */
+	public void endTraversal() {
+		traversalDepth--;
+	}
+
+	/**
+	 * Set the pixel and the number of the sample within it that the following
+	 * shading calls belong to.
+	 */
+	public void setSample(int x, int y, int index) {
+		sampleX = x;
+		sampleY = y;
+		sampleIndex = index;
+	}
+
+	/**
+	 * @return a pseudo-random number in [0, 1), a hash of the current sample,
+	 * the depth of the ray being shaded and the dimension, so that a render
+	 * comes out the same whatever thread shades which pixel
+	 */
+	public double random(int depth, int dimension) {
+		int h = sampleX * 0x8da6b343 ^ sampleY * 0xd8163841 ^ sampleIndex * 0xcb1ab31f;
+		h ^= h >>> 16;
+		h *= 0x7feb352d;
+		h ^= depth * 0x68e31da4 ^ dimension * 0x1b56c4e9;
+		h ^= h >>> 15;
+		h *= 0x846ca68b;
+		h ^= h >>> 16;
+		return (h >>> 8) * (1.0 / (1 << 24));
+	}
+
+	/**
+	 * @param numLights the number of lights in the scene
+	 * @return a flag array with room for one entry per light
+	 */
+	public boolean[] shadowedLights(int numLights) {
+		if (shadowedLights.length < numLights)
+			shadowedLights = new boolean[numLights];
+		return shadowedLights;
+	}
+}
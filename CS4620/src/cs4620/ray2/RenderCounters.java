@@ -0,0 +1,137 @@
+package cs4620.ray2;
+
+/**
+ * Counts of the work done by one render thread: rays traced and rays that hit,
+ * tree nodes visited and primitives tested, each by the type of ray. Every
+ * RenderContext has its own, so counting is a plain increment; the render
+ * adds each thread's counts into the RenderStats of the scene once per block.
+ *
+ * Scene counts the rays as they are intersected. The acceleration structures
+ * charge their work to whatever type of ray Scene last said was being traced.
+ */
+public class RenderCounters {
+
+	/** Types of ray */
+	public static final int PRIMARY = 0, SHADOW = 1, REFLECTION = 2, REFRACTION = 3;
+	public static final int RAY_TYPES = 4;
+	static final String[] RAY_TYPE_NAMES = { "primary", "shadow", "reflection", "refraction" };
+
+	/** The type of the rays being intersected, charged with the traversal work */
+	private int rayType = PRIMARY;
+
+	/**
+	 * The type first-hit rays traced one at a time are counted as. They are
+	 * reflection rays unless RayTracer.shadeRay is told otherwise.
+	 */
+	int secondaryType = REFLECTION;
+
+	private final long[] rays = new long[RAY_TYPES];
+	private final long[] hits = new long[RAY_TYPES];
+	private final long[] nodes = new long[RAY_TYPES];
+	private final long[] tests = new long[RAY_TYPES];
+
+	/** What the counts and the clock stood at when startCost was last called */
+	private long costNanos, costRays, costNodes;
+	/** The share of each camera ray in the cost of its packet */
+	private double shareNanos, shareRays, shareNodes;
+	/** The deepest recursion reached since startCost */
+	private int depth;
+
+	/**
+	 * Count rays about to be intersected, and charge the traversal work that
+	 * follows to them.
+	 */
+	public void beginRays(int type, int count) {
+		rayType = type;
+		rays[type] += count;
+	}
+
+	/** Count rays of the last beginRays that hit something. */
+	public void addHits(int count) {
+		hits[rayType] += count;
+	}
+
+	/**
+	 * Charge traversal work to the rays being intersected.
+	 *
+	 * @param nodes the number of tree nodes whose box was tested, once per ray
+	 * @param tests the number of ray-primitive intersection tests
+	 */
+	public void addTraversal(int nodes, int tests) {
+		this.nodes[rayType] += nodes;
+		this.tests[rayType] += tests;
+	}
+
+	/**
+	 * Note that shading reached the given recursion depth.
+	 */
+	public void reachDepth(int depth) {
+		if (depth > this.depth)
+			this.depth = depth;
+	}
+
+	/**
+	 * Start measuring what a pixel costs, for Image.AOV_COST.
+	 */
+	public void startCost() {
+		costNanos = System.nanoTime();
+		costRays = totalRays();
+		costNodes = totalNodes();
+		depth = 0;
+	}
+
+	/**
+	 * Split what was done since startCost, the tracing of a packet of camera
+	 * rays, evenly between its rays; recordCost adds a share to each pixel.
+	 */
+	public void shareCost(int rayCount) {
+		shareNanos = (double) (System.nanoTime() - costNanos) / rayCount;
+		shareRays = (double) (totalRays() - costRays) / rayCount;
+		shareNodes = (double) (totalNodes() - costNodes) / rayCount;
+	}
+
+	/**
+	 * Add what was done since startCost, and a share of the camera ray packet,
+	 * to the cost of a pixel in the Image.AOV_COST channel of image.
+	 */
+	public void recordCost(Image image, int x, int y) {
+		double nanos = System.nanoTime() - costNanos + shareNanos;
+		double rayCount = totalRays() - costRays + shareRays;
+		double nodeCount = totalNodes() - costNodes + shareNodes;
+		String cost = Image.AOV_COST;
+		image.setAov(cost, x, y, Image.COST_TIME, (float) (image.getAov(cost, x, y, Image.COST_TIME) + nanos));
+		image.setAov(cost, x, y, Image.COST_RAYS, (float) (image.getAov(cost, x, y, Image.COST_RAYS) + rayCount));
+		image.setAov(cost, x, y, Image.COST_NODES, (float) (image.getAov(cost, x, y, Image.COST_NODES) + nodeCount));
+		image.setAov(cost, x, y, Image.COST_DEPTH, Math.max(image.getAov(cost, x, y, Image.COST_DEPTH), depth));
+	}
+
+	private long totalRays() {
+		return rays[PRIMARY] + rays[SHADOW] + rays[REFLECTION] + rays[REFRACTION];
+	}
+
+	private long totalNodes() {
+		return nodes[PRIMARY] + nodes[SHADOW] + nodes[REFLECTION] + nodes[REFRACTION];
+	}
+
+	public long getRays(int type) { return rays[type]; }
+	public long getHits(int type) { return hits[type]; }
+	public long getNodes(int type) { return nodes[type]; }
+	public long getTests(int type) { return tests[type]; }
+
+	/**
+	 * Add the counts of another thread to these.
+	 */
+	public void add(RenderCounters other) {
+		for (int type = 0; type < RAY_TYPES; type++) {
+			rays[type] += other.rays[type];
+			hits[type] += other.hits[type];
+			nodes[type] += other.nodes[type];
+			tests[type] += other.tests[type];
+		}
+	}
+
+	public void clear() {
+		for (int type = 0; type < RAY_TYPES; type++)
+			rays[type] = hits[type] = nodes[type] = tests[type] = 0;
+	}
+}
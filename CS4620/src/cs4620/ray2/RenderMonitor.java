@@ -0,0 +1,23 @@
+package cs4620.ray2;
+
+/**
+ * Follows a render as its blocks are finished, and may stop it early. The
+ * methods are called from the render threads, possibly several at once.
+ */
+public interface RenderMonitor {
+
+	/**
+	 * @return true to stop the render; blocks that have not been started are
+	 * skipped, and no further progressive passes are made
+	 */
+	public boolean isCancelled();
+
+	/**
+	 * Called once the pixels [x, x + width) x [y, y + height) of the image have
+	 * been written.
+	 *
+	 * @param pass the progressive pass the block belongs to, counting from 0;
+	 * always 0 if the render is not progressive
+	 */
+	public void blockFinished(Image image, int x, int y, int width, int height, int pass);
+}
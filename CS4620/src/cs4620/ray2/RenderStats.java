@@ -0,0 +1,161 @@
+package cs4620.ray2;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * What rendering a scene took: the time spent in each phase, and the rays
+ * and traversal work counted by the render threads (see RenderCounters),
+ * added up over every thread as blocks finish. Stats may feed a total, which
+ * then grows with every scene while they render; RenderStatsBean publishes
+ * one over JMX. Every method may be called from any thread.
+ */
+public class RenderStats {
+
+	/** Phases of a render */
+	public static final int PARSE = 0, TRANSFORM = 1, BUILD = 2, RENDER = 3, WRITE = 4;
+	public static final int PHASES = 5;
+	private static final String[] PHASE_NAMES = { "parse", "transform", "build", "render", "write" };
+
+	private final String name;
+
+	/** Stats everything added here is added to as well, or null */
+	private final RenderStats total;
+
+	private final double[] seconds = new double[PHASES];
+	private final RenderCounters counters = new RenderCounters();
+
+	/** Whether the scene was rendered to the end; false if it failed or is still going */
+	private volatile boolean complete;
+
+	/**
+	 * @param name what the stats are of, usually the scene file
+	 */
+	public RenderStats(String name) {
+		this(name, null);
+	}
+
+	/**
+	 * @param total stats to add everything to as well, or null
+	 */
+	public RenderStats(String name, RenderStats total) {
+		this.name = name;
+		this.total = total;
+	}
+
+	public String getName() { return name; }
+
+	public void addTime(int phase, double seconds) {
+		synchronized (this) {
+			this.seconds[phase] += seconds;
+		}
+		if (total != null)
+			total.addTime(phase, seconds);
+	}
+
+	public synchronized double getTime(int phase) {
+		return seconds[phase];
+	}
+
+	/** @return the seconds spent in every phase */
+	public synchronized double getTotalTime() {
+		double total = 0;
+		for (double s : seconds)
+			total += s;
+		return total;
+	}
+
+	public boolean isComplete() { return complete; }
+	public void setComplete(boolean complete) { this.complete = complete; }
+
+	/**
+	 * Add the counts of a render thread. The counters are only read.
+	 */
+	public void add(RenderCounters threadCounters) {
+		synchronized (this) {
+			counters.add(threadCounters);
+		}
+		if (total != null)
+			total.add(threadCounters);
+	}
+
+	/**
+	 * @return every figure by name, in a fixed order: the seconds of each phase,
+	 * then the rays, hits, nodes and tests of each type of ray
+	 */
+	public synchronized Map<String, Number> values() {
+		Map<String, Number> values = new LinkedHashMap<String, Number>();
+		for (int phase = 0; phase < PHASES; phase++)
+			values.put(PHASE_NAMES[phase] + "Seconds", seconds[phase]);
+		for (int type = 0; type < RenderCounters.RAY_TYPES; type++) {
+			String prefix = RenderCounters.RAY_TYPE_NAMES[type];
+			values.put(prefix + "Rays", counters.getRays(type));
+			values.put(prefix + "Hits", counters.getHits(type));
+			values.put(prefix + "Nodes", counters.getNodes(type));
+			values.put(prefix + "Tests", counters.getTests(type));
+		}
+		return values;
+	}
+
+	/**
+	 * @return the stats as a JSON object, with the name as "scene"
+	 */
+	public String toJson() {
+		StringBuilder out = new StringBuilder("{\"scene\":").append(quote(name));
+		out.append(",\"complete\":").append(complete);
+		for (Map.Entry<String, Number> value : values().entrySet())
+			out.append(",\"").append(value.getKey()).append("\":").append(format(value.getValue()));
+		return out.append('}').toString();
+	}
+
+	/**
+	 * Write the stats of several scenes to a file: CSV with a line per scene if
+	 * the file name ends in .csv, and otherwise a JSON array.
+	 */
+	public static void write(List<RenderStats> stats, String fileName) throws IOException {
+		try (PrintWriter out = new PrintWriter(fileName, "UTF-8")) {
+			if (fileName.toLowerCase(Locale.ROOT).endsWith(".csv")) {
+				out.print("scene,complete");
+				for (String key : new RenderStats("").values().keySet())
+					out.print("," + key);
+				out.println();
+				for (RenderStats s : stats) {
+					out.print("\"" + s.name.replace("\"", "\"\"") + "\"," + s.complete);
+					for (Number value : s.values().values())
+						out.print("," + format(value));
+					out.println();
+				}
+			}
+			else {
+				out.println("[");
+				for (int i = 0; i < stats.size(); i++)
+					out.println("  " + stats.get(i).toJson() + (i + 1 < stats.size() ? "," : ""));
+				out.println("]");
+			}
+		}
+	}
+
+	private static String format(Number value) {
+		if (value instanceof Double)
+			return String.format(Locale.ROOT, "%.6f", value.doubleValue());
+		return value.toString();
+	}
+
+	private static String quote(String s) {
+		StringBuilder out = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				out.append('\\').append(c);
+			else if (c < 0x20)
+				out.append(String.format("\\u%04x", (int) c));
+			else
+				out.append(c);
+		}
+		return out.append('"').toString();
+	}
+}
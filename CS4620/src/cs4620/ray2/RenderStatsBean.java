@@ -0,0 +1,100 @@
+package cs4620.ray2;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Publishes a RenderStats over JMX, one read-only attribute per figure of
+ * RenderStats.values(), so the counters of a running render can be watched
+ * with jconsole or any other JMX client.
+ */
+public class RenderStatsBean implements DynamicMBean {
+
+	/** The name the stats of the RayTracer are registered under */
+	public static final String NAME = "cs4620.ray2:type=RenderStats";
+
+	private final RenderStats stats;
+
+	public RenderStatsBean(RenderStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Register stats with the platform MBean server, replacing whatever was
+	 * registered under the name before.
+	 *
+	 * @return true if the stats were registered
+	 */
+	public static boolean register(RenderStats stats, String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(new RenderStatsBean(stats), objectName);
+			return true;
+		}
+		catch (JMException e) {
+			System.err.println("Could not register render stats with JMX: " + e);
+			return false;
+		}
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number value = stats.values().get(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> values = stats.values();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes)
+			if (values.containsKey(attribute))
+				list.add(new Attribute(attribute, values.get(attribute)));
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Number> value : stats.values().entrySet())
+			attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+					value.getKey(), true, false, false));
+		return new MBeanInfo(getClass().getName(), "Render stats of " + stats.getName(),
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+				new MBeanOperationInfo[0], null);
+	}
+}
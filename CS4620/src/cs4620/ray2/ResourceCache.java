@@ -0,0 +1,143 @@
+package cs4620.ray2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Loaded files that scenes may share, such as meshes, textures and cube maps,
+ * keyed by their absolute path. One cache can serve every scene of a batch,
+ * so a file used by several scenes is read once; scenes loading the same file
+ * at the same time wait for a single load.
+ *
+ * Each resource remembers the size and modification time its file had when
+ * it was loaded, as MeshCache does, and is loaded again once they change.
+ * A load that fails is not kept: the threads waiting for it see the failure,
+ * and the next to ask tries again.
+ *
+ * Whatever is stored must not be changed afterwards, since any scene may be
+ * reading it.
+ */
+public class ResourceCache {
+
+	/**
+	 * Reads a resource the first time it is asked for.
+	 */
+	public interface Loader<T> {
+		T load(String path) throws IOException;
+	}
+
+	/** A resource that is loaded, or being loaded by the first thread to ask for it. */
+	private static class Entry {
+		/** The size and modification time of the file when the load started */
+		final long length, lastModified;
+		Object value;
+		Throwable error;
+		boolean done;
+
+		Entry(File file) {
+			length = file.length();
+			lastModified = file.lastModified();
+		}
+
+		boolean isCurrent(File file) {
+			return file.length() == length && file.lastModified() == lastModified;
+		}
+	}
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * @param kind what sort of resource this is, so that one file can be
+	 * cached in more than one form
+	 * @param path the absolute path of the file
+	 * @param type the class of the resource
+	 * @param loader reads the file if it is not cached yet
+	 * @return the resource
+	 * @throws IOException if loading failed, here or in the thread this one waited for
+	 */
+	public <T> T get(String kind, String path, Class<T> type, Loader<T> loader) throws IOException {
+		String key = kind + ":" + path;
+		File file = new File(path);
+		Entry entry;
+		while (true) {
+			entry = entries.get(key);
+			if (entry != null && !entry.isCurrent(file)) {
+				// The file changed since it was loaded; whoever replaces the entry loads it again
+				Entry created = new Entry(file);
+				if (entries.replace(key, entry, created)) {
+					entry = created;
+					load(key, entry, path, loader);
+					break;
+				}
+				continue;
+			}
+			if (entry != null)
+				break;
+			Entry created = new Entry(file);
+			if (entries.putIfAbsent(key, created) == null) {
+				entry = created;
+				load(key, entry, path, loader);
+				break;
+			}
+		}
+
+		synchronized (entry) {
+			boolean interrupted = false;
+			while (!entry.done) {
+				try {
+					entry.wait();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			if (entry.error instanceof IOException)
+				throw (IOException) entry.error;
+			if (entry.error instanceof Error)
+				throw (Error) entry.error;
+			if (entry.error != null)
+				throw new IOException(entry.error);
+			return type.cast(entry.value);
+		}
+	}
+
+	private <T> void load(String key, Entry entry, String path, Loader<T> loader) {
+		Object value = null;
+		Throwable error = null;
+		try {
+			value = loader.load(path);
+		}
+		catch (Throwable e) {
+			error = e;
+		}
+		finally {
+			// Failures are not kept, so the next get tries again
+			if (error != null)
+				entries.remove(key, entry);
+			synchronized (entry) {
+				entry.value = value;
+				entry.error = error;
+				entry.done = true;
+				entry.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of resources loaded or being loaded
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Forget every resource, so files are read again when next asked for.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+}
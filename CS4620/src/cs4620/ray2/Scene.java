@@ -64,6 +64,38 @@ public class Scene {
 	/** The list of shaders in the scene. */
 	protected ArrayList<Shader> shaders = new ArrayList<Shader>();
 	public void addShader(Shader toAdd) { shaders.add(toAdd); }
+
+	/** Whether camera rays need differentials, found by findRayDifferentials */
+	protected boolean rayDifferentials;
+
+	/**
+	 * @return true if some texture filters over the footprint of a pixel, so
+	 * camera rays need differentials. This is known once the scene is built.
+	 */
+	public boolean usesRayDifferentials() { return rayDifferentials; }
+
+	/**
+	 * Find out whether some texture of the scene filters over the footprint of
+	 * a pixel. Called by RayTracer.build with the renderable surfaces, which
+	 * include the instances of the surfaces under groups, so the render loop
+	 * only reads the answer.
+	 *
+	 * @param renderable every surface the acceleration structure is built over
+	 */
+	public void findRayDifferentials(Surface[] renderable) {
+		boolean found = false;
+		for (int i = 0; i < textures.size() && !found; i++)
+			found = textures.get(i).getFilter() == Texture.TRILINEAR;
+		for (int i = 0; i < shaders.size() && !found; i++)
+			found = filtersFootprint(shaders.get(i));
+		for (int i = 0; i < renderable.length && !found; i++)
+			found = filtersFootprint(renderable[i].getShader());
+		rayDifferentials = found;
+	}
+
+	private static boolean filtersFootprint(Shader shader) {
+		return shader != null && shader.getTexture() != null && shader.getTexture().getFilter() == Texture.TRILINEAR;
+	}
 	
 	/** Image to be produced by the renderer **/
 	protected Image outputImage;
@@ -80,6 +112,26 @@ public class Scene {
 	public int getSamples() { return this.samples==0 ? 1 : this.samples; }
 	public void setSamples(int n) {	samples = (int)Math.round(Math.sqrt(n)); }
 
+	/** Progressive rendering settings, or null to render each block to completion **/
+	protected Progressive progressive;
+	public Progressive getProgressive() { return this.progressive; }
+	public void setProgressive(Progressive progressive) { this.progressive = progressive; }
+
+	/** Adaptive supersampling settings, or null to take samples^2 samples in every pixel **/
+	protected Adaptive adaptive;
+	public Adaptive getAdaptive() { return this.adaptive; }
+	public void setAdaptive(Adaptive adaptive) { this.adaptive = adaptive; }
+
+	/** Extra image channels to render besides the color, such as Image.AOV_DEPTH **/
+	protected ArrayList<String> aovs = new ArrayList<String>();
+	public void addAov(String name) { Image.aovComponents(name); aovs.add(name); }
+	public List<String> getAovs() { return this.aovs; }
+
+	/** Number of render threads; 0 uses every available core **/
+	protected int threads;
+	public int getThreads() { return this.threads; }
+	public void setThreads(int n) { threads = Math.max(0, n); }
+
 	/** The acceleration structure **/
 	protected AccelStruct accelStruct = new Bvh();
 	public void setAccelStruct(AccelStruct accelStruct) { this.accelStruct = accelStruct; }
@@ -102,24 +154,61 @@ public class Scene {
 	 * if there was an intersection and false otherwise. If no intersection was
 	 * found outRecord is unchanged.
 	 *
+	 * The ray is counted as a secondary ray, a reflection ray unless
+	 * RayTracer.shadeRay says otherwise (see RenderCounters).
+	 *
 	 * @param outRecord the output IntersectionRecord
 	 * @param ray the ray to intersect
 	 * @return true if and intersection is found.
 	 */
 	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray) {
-		return accelStruct.intersect(outRecord, ray, false);
-		
+		RenderCounters counters = RenderContext.current().counters;
+		counters.beginRays(counters.secondaryType, 1);
+		boolean hit = accelStruct.intersect(outRecord, ray, false);
+		if (hit)
+			counters.addHits(1);
+		return hit;
 	}
 	
 	/**
 	 * Shadow ray calculations can be considerably accelerated by not bothering to find the
 	 * first intersection.  This record returns any intersection of the ray and the surfaces
-	 * and returns true if one is found.
+	 * and returns true if one is found. The ray is counted as a shadow ray.
 	 * @param ray the ray to intersect
 	 * @return true if any intersection is found
 	 */
 	public boolean getAnyIntersection(Ray ray) {
-		return accelStruct.intersect(new IntersectionRecord(), ray, true);	
+		RenderCounters counters = RenderContext.current().counters;
+		counters.beginRays(RenderCounters.SHADOW, 1);
+		boolean hit = accelStruct.intersect(null, ray, true);
+		if (hit)
+			counters.addHits(1);
+		return hit;
+	}
+
+	/**
+	 * Find the first intersection of every ray in a packet with the scene. Afterwards
+	 * packet.hit[i] tells whether ray i hit anything, and if so packet.records[i] holds
+	 * its first intersection. The rays are counted as camera rays.
+	 * @param packet the rays to intersect
+	 */
+	public void getFirstIntersection(RayPacket packet) {
+		RenderCounters counters = RenderContext.current().counters;
+		counters.beginRays(RenderCounters.PRIMARY, packet.size);
+		accelStruct.intersect(packet, false);
+		counters.addHits(packet.hits());
+	}
+
+	/**
+	 * Find out which rays of a packet hit anything at all. Afterwards packet.hit[i] is
+	 * true if ray i intersects some surface. The rays are counted as shadow rays.
+	 * @param packet the rays to intersect
+	 */
+	public void getAnyIntersection(RayPacket packet) {
+		RenderCounters counters = RenderContext.current().counters;
+		counters.beginRays(RenderCounters.SHADOW, packet.size);
+		accelStruct.intersect(packet, true);
+		counters.addHits(packet.hits());
 	}
 	
 }
\ No newline at end of file
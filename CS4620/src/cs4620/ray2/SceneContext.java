@@ -0,0 +1,84 @@
+package cs4620.ray2;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import cs4620.ray2.RayTracer.ScenePath;
+
+/**
+ * Where a scene is being loaded from, and the cache its files are shared
+ * through. The Parser hands it to every object it creates that reads files of
+ * its own (see SceneResource), before setting any of that object's properties.
+ */
+public class SceneContext {
+
+	/** The scene file and the workspace around it, or null to resolve against the working directory */
+	protected final ScenePath workspace;
+	public ScenePath getWorkspace() { return workspace; }
+
+	/** Files already loaded, possibly by other scenes */
+	protected final ResourceCache resources;
+	public ResourceCache getResources() { return resources; }
+
+	/** The directory every file read must be in, as given by canonical, or null to allow any file */
+	protected final Path confinement;
+	public Path getConfinement() { return confinement; }
+
+	public SceneContext(ScenePath workspace, ResourceCache resources) {
+		this(workspace, resources, null);
+	}
+
+	/**
+	 * @param confinement the directory every file read must be in, or null to allow any file
+	 */
+	public SceneContext(ScenePath workspace, ResourceCache resources, Path confinement) {
+		this.workspace = workspace;
+		this.resources = resources;
+		this.confinement = confinement == null ? null : canonical(confinement);
+	}
+
+	/**
+	 * @return a context for objects created outside of a scene file, which
+	 * resolves against the working directory and shares nothing
+	 */
+	public static SceneContext local() {
+		return new SceneContext(null, new ResourceCache());
+	}
+
+	/**
+	 * Search the workspace and the folder of the scene for a file.
+	 * @param f the file name as given in the scene
+	 * @return its absolute path
+	 */
+	public String resolve(String f) {
+		if (workspace == null)
+			return allow(Paths.get(f).toAbsolutePath().toString());
+		return allow(workspace.resolve(f));
+	}
+
+	/**
+	 * Check that a file may be read.
+	 * @param path an absolute path
+	 * @return the path
+	 * @throws SecurityException if the file is outside the confinement
+	 */
+	public String allow(String path) {
+		if (confinement != null && !canonical(Paths.get(path)).startsWith(confinement))
+			throw new SecurityException("File outside of " + confinement + ": " + path);
+		return path;
+	}
+
+	/**
+	 * @return the absolute path of p with links followed, or with only ".." and
+	 * "." taken out if it does not exist
+	 */
+	public static Path canonical(Path p) {
+		try {
+			return p.toRealPath();
+		}
+		catch (IOException e) {
+			return p.toAbsolutePath().normalize();
+		}
+	}
+}
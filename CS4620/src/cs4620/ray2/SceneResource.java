@@ -0,0 +1,11 @@
+package cs4620.ray2;
+
+/**
+ * An object in a scene file that reads files of its own, such as a mesh or a
+ * texture. The Parser gives it the context of the scene as soon as it is
+ * created, so file names can be resolved and loaded files shared.
+ */
+public interface SceneResource {
+
+	public void setSceneContext(SceneContext context);
+}
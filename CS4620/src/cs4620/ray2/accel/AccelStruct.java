@@ -2,6 +2,7 @@ package cs4620.ray2.accel;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RayPacket;
 import cs4620.ray2.surface.Surface;
 
 /**
@@ -29,4 +30,15 @@ public interface AccelStruct {
 	 * @return true if the ray intersects a surface in the scene; false otherwise.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection);
+
+	/**
+	 * Intersect every ray of a packet with the surfaces in the scene. For each ray i,
+	 * packet.hit[i] is set, and unless anyIntersection is true the first intersection is
+	 * recorded in packet.records[i] and packet.end[i] is pulled in to it. Implementations
+	 * without a dedicated packet traversal may use RayPacket.intersectEach.
+	 *
+	 * @param packet The rays to intersect, and the place to store the results.
+	 * @param anyIntersection True if the caller only needs to know whether each ray hits anything.
+	 */
+	public void intersect(RayPacket packet, boolean anyIntersection);
 }
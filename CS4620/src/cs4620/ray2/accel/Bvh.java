@@ -6,6 +6,7 @@ import java.util.Comparator;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RayPacket;
 import cs4620.ray2.surface.Surface;
 import egl.math.Vector3d;
 
@@ -41,6 +42,11 @@ public class Bvh implements AccelStruct {
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
 		return intersectHelper(root, outRecord, rayIn, anyIntersection);
 	}
+
+	@Override
+	public void intersect(RayPacket packet, boolean anyIntersection) {
+		packet.intersectEach(this, anyIntersection);
+	}
 	
 	/**
 	 * A helper method to the main intersect method. It finds the intersection with
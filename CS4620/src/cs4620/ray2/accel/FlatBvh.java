@@ -0,0 +1,446 @@
+package cs4620.ray2.accel;
+
+import java.nio.ByteBuffer;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RayPacket;
+import cs4620.ray2.RenderContext;
+import cs4620.ray2.RenderCounters;
+import cs4620.ray2.surface.Surface;
+
+/**
+ * A bounding volume hierarchy stored as flat primitive arrays instead of a
+ * graph of BvhNode objects. The tree is built by a SahBvh and then laid out in
+ * depth-first order, so the first child of node i is always node i+1 and only
+ * the index of the second child has to be stored. Traversal is iterative with
+ * a fixed-size stack and visits the child on the near side of the split first.
+ * Packets of rays walk the tree together, carrying a bit mask of the rays that
+ * are still inside each node's box. Over triangles, leaves can be tested in
+ * single precision by PackedTriangles first, so only the triangles it picks
+ * are intersected exactly; see setPacked.
+ *
+ * It can be built over the surfaces of a scene or over any PrimitiveSet;
+ * a Mesh uses one to intersect its triangles by index.
+ *
+ * Select it from a scene file with &lt;accelStruct type="FlatBvh"/&gt;; the
+ * underlying builder can be configured with a nested &lt;builder type="SahBvh"&gt;.
+ */
+public class FlatBvh implements AccelStruct {
+
+	/** The builder whose tree is flattened. */
+	protected SahBvh builder = new SahBvh();
+	public void setBuilder(SahBvh builder) { this.builder = builder; }
+	public void setLogBuilds(boolean logBuilds) { builder.setLogBuilds(logBuilds); }
+
+	/** The primitives in leaf order. */
+	private PrimitiveSet primitives;
+
+	/**
+	 * Whether leaves of triangles are tested with PackedTriangles first. Off by
+	 * default: every candidate is still tested exactly, and on the bunny the
+	 * float pass costs about what it saves. A scene turns it on with
+	 * &lt;packed&gt;true&lt;/packed&gt; on a mesh or on the accelStruct.
+	 */
+	protected boolean packed = false;
+	public void setPacked(boolean packed) {
+		this.packed = packed;
+		triangles = packed && primitives != null ? primitives.packTriangles() : null;
+	}
+
+	/** The primitives packed for the leaf kernel, or null to test them one by one. */
+	private PackedTriangles triangles;
+
+	/** @return the primitives in leaf order, as referenced by the leaves */
+	PrimitiveSet getPrimitives() { return primitives; }
+
+	/**
+	 * Node bounds, six floats per node: (minX, minY, minZ, maxX, maxY, maxZ).
+	 * They are rounded outwards from the double bounds so no hit is lost.
+	 */
+	float[] bounds;
+
+	/**
+	 * Two ints per node. For a leaf: the index of its first primitive and the
+	 * (positive) number of primitives. For an interior node: the index of the
+	 * second child and -(axis+1), where axis is the axis along which the two
+	 * children are separated, plus 3 more if the first child lies on the
+	 * positive side of the second one along that axis.
+	 */
+	int[] nodes;
+
+	/** Number of nodes in the flattened tree. */
+	int nodeCount;
+
+	/** Depth of the deepest leaf, which bounds the traversal stack. */
+	int maxDepth;
+
+	public FlatBvh() { }
+
+	@Override
+	public void build(Surface[] surfaces) {
+		build(new SurfaceSet(surfaces));
+	}
+
+	/**
+	 * Build the tree over a set of primitives, which is reordered into leaf
+	 * order and kept for intersection.
+	 * @param primitives The primitives to build over.
+	 */
+	public void build(PrimitiveSet primitives) {
+		builder.build(primitives);
+		this.primitives = builder.getPrimitives();
+		triangles = packed ? this.primitives.packTriangles() : null;
+
+		int n = builder.getNodeCount();
+		bounds = new float[6 * n];
+		nodes = new int[2 * n];
+		nodeCount = 0;
+		maxDepth = 0;
+		if (builder.root != null)
+			flatten(builder.root, 0);
+
+		// Only the flat arrays are used from here on; drop the node objects
+		builder.root = null;
+	}
+
+	/**
+	 * @return the number of bytes save writes
+	 */
+	public int savedSize() {
+		return 4 * (3 + 6 * nodeCount + 2 * nodeCount);
+	}
+
+	/**
+	 * Store the built tree, so it can be loaded again over the same primitives
+	 * in the same (leaf) order without rebuilding.
+	 * @param out The buffer to write savedSize() bytes to.
+	 */
+	public void save(ByteBuffer out) {
+		out.putInt(primitives == null ? 0 : primitives.size());
+		out.putInt(nodeCount);
+		out.putInt(maxDepth);
+		out.asFloatBuffer().put(bounds, 0, 6 * nodeCount);
+		out.position(out.position() + 4 * 6 * nodeCount);
+		out.asIntBuffer().put(nodes, 0, 2 * nodeCount);
+		out.position(out.position() + 4 * 2 * nodeCount);
+	}
+
+	/**
+	 * Load a tree written by save instead of building one.
+	 * @param in The buffer to read from.
+	 * @param primitives The primitives the tree was built over, already in leaf order.
+	 * @return false if the stored tree does not fit the primitives, in which case nothing is changed
+	 */
+	public boolean load(ByteBuffer in, PrimitiveSet primitives) {
+		if (in.remaining() < 12) return false;
+		int primitiveCount = in.getInt(in.position());
+		int n = in.getInt(in.position() + 4);
+		if (primitiveCount != primitives.size() || n < 0 || in.remaining() != 4 * (3 + 8L * n))
+			return false;
+
+		in.position(in.position() + 8);
+		maxDepth = in.getInt();
+		bounds = new float[6 * n];
+		nodes = new int[2 * n];
+		in.asFloatBuffer().get(bounds);
+		in.position(in.position() + 4 * 6 * n);
+		in.asIntBuffer().get(nodes);
+		in.position(in.position() + 4 * 2 * n);
+		nodeCount = n;
+		this.primitives = primitives;
+		triangles = packed ? primitives.packTriangles() : null;
+		return true;
+	}
+
+	/**
+	 * Append node and its subtree to the flat arrays in depth-first order.
+	 * @return the index the node was stored at
+	 */
+	private int flatten(BvhNode node, int depth) {
+		int index = nodeCount++;
+		maxDepth = Math.max(maxDepth, depth);
+
+		bounds[6*index] = roundDown(node.minBound.x);
+		bounds[6*index+1] = roundDown(node.minBound.y);
+		bounds[6*index+2] = roundDown(node.minBound.z);
+		bounds[6*index+3] = roundUp(node.maxBound.x);
+		bounds[6*index+4] = roundUp(node.maxBound.y);
+		bounds[6*index+5] = roundUp(node.maxBound.z);
+
+		if (node.isLeaf()) {
+			nodes[2*index] = node.surfaceIndexStart;
+			nodes[2*index+1] = node.surfaceIndexEnd - node.surfaceIndexStart;
+			return index;
+		}
+
+		flatten(node.child[0], depth + 1);
+		nodes[2*index] = flatten(node.child[1], depth + 1);
+		nodes[2*index+1] = -(splitCode(node.child[0], node.child[1]) + 1);
+		return index;
+	}
+
+	/**
+	 * Find the axis along which the centers of two boxes are furthest apart.
+	 * @return the axis, plus 3 if box a lies on the positive side of box b
+	 */
+	private static int splitCode(BvhNode a, BvhNode b) {
+		double dx = a.minBound.x + a.maxBound.x - b.minBound.x - b.maxBound.x;
+		double dy = a.minBound.y + a.maxBound.y - b.minBound.y - b.maxBound.y;
+		double dz = a.minBound.z + a.maxBound.z - b.minBound.z - b.maxBound.z;
+		double ax = Math.abs(dx), ay = Math.abs(dy), az = Math.abs(dz);
+		if (ax >= ay && ax >= az) return dx > 0 ? 3 : 0;
+		if (ay >= az) return dy > 0 ? 4 : 1;
+		return dz > 0 ? 5 : 2;
+	}
+
+	private static float roundDown(double v) {
+		float f = (float) v;
+		return f > v ? Math.nextAfter(f, Double.NEGATIVE_INFINITY) : f;
+	}
+
+	private static float roundUp(double v) {
+		float f = (float) v;
+		return f < v ? Math.nextUp(f) : f;
+	}
+
+	/**
+	 * Set outRecord to the first intersection of ray with the scene. Return true
+	 * if there was an intersection and false otherwise. If no intersection was
+	 * found outRecord is unchanged.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @return true if and intersection is found.
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		if (nodeCount == 0) return false;
+
+		RenderContext context = RenderContext.current();
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			traversal.ray.set(rayIn);
+			return intersect(outRecord, traversal, context.counters, anyIntersection);
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	/**
+	 * Single-ray traversal, working on the copy of the ray in traversal. The
+	 * nodes visited and primitives tested are added to counters at the end.
+	 */
+	private boolean intersect(IntersectionRecord outRecord, RenderContext.Traversal traversal, RenderCounters counters,
+			boolean anyIntersection) {
+		Ray ray = traversal.ray;
+		IntersectionRecord tmp = traversal.record;
+		int[] stack = traversal.nodeStack(maxDepth + 1);
+
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double ix = 1 / ray.direction.x, iy = 1 / ray.direction.y, iz = 1 / ray.direction.z;
+		// Bit a is set when the ray travels towards the negative side along axis a
+		int signs = (ix < 0 ? 1 : 0) | (iy < 0 ? 2 : 0) | (iz < 0 ? 4 : 0);
+		float fox = (float) ox, foy = (float) oy, foz = (float) oz;
+		float fdx = (float) ray.direction.x, fdy = (float) ray.direction.y, fdz = (float) ray.direction.z;
+
+		boolean ret = false;
+		int sp = 0;
+		int node = 0;
+		int visited = 0, tests = 0;
+		while (true) {
+			visited++;
+			if (hitsBox(node, ox, oy, oz, ix, iy, iz, ray.start, ray.end)) {
+				int info = nodes[2*node+1];
+				if (info > 0) {
+					// Leaf: test every primitive, pulling in the end of the ray on each hit
+					int first = nodes[2*node];
+					for (int block = first; block < first + info; block += PackedTriangles.BLOCK) {
+						int blockEnd = Math.min(first + info, block + PackedTriangles.BLOCK);
+						int candidates = triangles == null ? -1 : triangles.candidates(block, blockEnd - block,
+								fox, foy, foz, fdx, fdy, fdz, ray.start, ray.end);
+						for (int i = block; i < blockEnd; i++) {
+							tests++;
+							if ((candidates >>> (i - block) & 1) == 0)
+								continue;
+							if (primitives.intersect(i, tmp, ray) && tmp.t < ray.end) {
+								if (anyIntersection) {
+									counters.addTraversal(visited, tests);
+									return true;
+								}
+								ret = true;
+								ray.end = tmp.t;
+								if (outRecord != null)
+									outRecord.set(tmp);
+							}
+						}
+					}
+				} else if (secondFirst(-info - 1, signs)) {
+					// Visit the second child first when the ray travels towards it
+					stack[sp++] = node + 1;
+					node = nodes[2*node];
+					continue;
+				} else {
+					stack[sp++] = nodes[2*node];
+					node = node + 1;
+					continue;
+				}
+			}
+			if (sp == 0) break;
+			node = stack[--sp];
+		}
+		counters.addTraversal(visited, tests);
+		return ret;
+	}
+
+	/**
+	 * Intersect a packet of rays, walking the tree once for the whole packet.
+	 * Each stack entry carries the mask of rays that entered the parent box;
+	 * a node is only tested against those rays, and the subtree is skipped as
+	 * soon as none of them hit its box. The near child is chosen from the
+	 * direction of the first active ray, which is right for a coherent packet.
+	 *
+	 * @param packet The rays to intersect, and the place to store the results.
+	 * @param anyIntersection True if the caller only needs to know whether each ray hits anything.
+	 */
+	public void intersect(RayPacket packet, boolean anyIntersection) {
+		int n = packet.size;
+		for (int i = 0; i < n; i++)
+			packet.hit[i] = false;
+		if (nodeCount == 0 || n == 0) return;
+
+		RenderContext context = RenderContext.current();
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			intersect(packet, traversal, context.counters, anyIntersection);
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	/**
+	 * Packet traversal, using the scratch space in traversal. Nodes are counted
+	 * once for every ray whose box test they cost, as in single-ray traversal.
+	 */
+	private void intersect(RayPacket packet, RenderContext.Traversal traversal, RenderCounters counters,
+			boolean anyIntersection) {
+		int n = packet.size;
+		Ray ray = traversal.ray;
+		IntersectionRecord tmp = traversal.record;
+		int[] nodeStack = traversal.nodeStack(maxDepth + 1);
+		long[] maskStack = traversal.maskStack(maxDepth + 1);
+
+		double[] ox = packet.originX, oy = packet.originY, oz = packet.originZ;
+		double[] ix = packet.inverseX, iy = packet.inverseY, iz = packet.inverseZ;
+		double[] dx = packet.directionX, dy = packet.directionY, dz = packet.directionZ;
+		double[] start = packet.start, end = packet.end;
+
+		// Rays that may still need work; any-hit rays drop out on their first hit
+		long live = n == 64 ? -1L : (1L << n) - 1;
+
+		int sp = 0;
+		int node = 0;
+		long mask = live;
+		int visited = 0, tests = 0;
+		while (true) {
+			// Find the live rays that enter this node's box
+			long active = 0;
+			visited += Long.bitCount(mask & live);
+			for (long m = mask & live; m != 0; m &= m - 1) {
+				int i = Long.numberOfTrailingZeros(m);
+				if (hitsBox(node, ox[i], oy[i], oz[i], ix[i], iy[i], iz[i], start[i], end[i]))
+					active |= 1L << i;
+			}
+
+			if (active != 0) {
+				int info = nodes[2*node+1];
+				if (info > 0) {
+					int first = nodes[2*node];
+					for (long m = active; m != 0; m &= m - 1) {
+						int i = Long.numberOfTrailingZeros(m);
+						packet.getRay(i, ray);
+						leaf:
+						for (int block = first; block < first + info; block += PackedTriangles.BLOCK) {
+							int blockEnd = Math.min(first + info, block + PackedTriangles.BLOCK);
+							int candidates = triangles == null ? -1 : triangles.candidates(block, blockEnd - block,
+									(float) ox[i], (float) oy[i], (float) oz[i],
+									(float) dx[i], (float) dy[i], (float) dz[i], ray.start, ray.end);
+							for (int s = block; s < blockEnd; s++) {
+								tests++;
+								if ((candidates >>> (s - block) & 1) == 0)
+									continue;
+								if (primitives.intersect(s, tmp, ray) && tmp.t < ray.end) {
+									packet.hit[i] = true;
+									if (anyIntersection) {
+										live &= ~(1L << i);
+										break leaf;
+									}
+									ray.end = end[i] = tmp.t;
+									packet.records[i].set(tmp);
+								}
+							}
+						}
+					}
+					if (live == 0) break;
+				} else {
+					int lead = Long.numberOfTrailingZeros(active);
+					int code = -info - 1;
+					double leadInverse = code % 3 == 0 ? ix[lead] : (code % 3 == 1 ? iy[lead] : iz[lead]);
+					boolean secondFirst = (leadInverse < 0) == (code < 3);
+					nodeStack[sp] = secondFirst ? node + 1 : nodes[2*node];
+					maskStack[sp++] = active;
+					node = secondFirst ? nodes[2*node] : node + 1;
+					mask = active;
+					continue;
+				}
+			}
+			if (sp == 0) break;
+			node = nodeStack[--sp];
+			mask = maskStack[sp];
+		}
+		counters.addTraversal(visited, tests);
+	}
+
+	/**
+	 * @param code the split code of an interior node, as stored in nodes
+	 * @param signs the signs of the ray direction, one bit per axis, set where it is negative
+	 * @return true if the second child of the node lies nearer along the ray than the first
+	 */
+	private static boolean secondFirst(int code, int signs) {
+		int axis = code < 3 ? code : code - 3;
+		return (signs >> axis & 1) == (code < 3 ? 1 : 0);
+	}
+
+	/**
+	 * Slab test of the ray segment [tStart, tEnd] against the box of a node.
+	 * Comparisons are written so that the NaN produced by a zero direction
+	 * component lying on a slab plane leaves the interval untouched.
+	 */
+	private boolean hitsBox(int node, double ox, double oy, double oz,
+			double ix, double iy, double iz, double tStart, double tEnd) {
+		int b = 6 * node;
+		double tMin = tStart, tMax = tEnd, tNear, tFar;
+
+		tNear = (bounds[b] - ox) * ix;
+		tFar = (bounds[b+3] - ox) * ix;
+		if (ix < 0) { double t = tNear; tNear = tFar; tFar = t; }
+		if (tNear > tMin) tMin = tNear;
+		if (tFar < tMax) tMax = tFar;
+
+		tNear = (bounds[b+1] - oy) * iy;
+		tFar = (bounds[b+4] - oy) * iy;
+		if (iy < 0) { double t = tNear; tNear = tFar; tFar = t; }
+		if (tNear > tMin) tMin = tNear;
+		if (tFar < tMax) tMax = tFar;
+
+		tNear = (bounds[b+2] - oz) * iz;
+		tFar = (bounds[b+5] - oz) * iz;
+		if (iz < 0) { double t = tNear; tNear = tFar; tFar = t; }
+		if (tNear > tMin) tMin = tNear;
+		if (tFar < tMax) tMax = tFar;
+
+		return tMin <= tMax;
+	}
+}
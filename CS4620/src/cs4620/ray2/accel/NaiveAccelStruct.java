@@ -2,6 +2,8 @@ package cs4620.ray2.accel;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RayPacket;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.surface.Surface;
 /**
  * Provide a fake AABB that performs a linear search.
@@ -27,25 +29,40 @@ public class NaiveAccelStruct implements AccelStruct {
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
 		boolean ret = false;
-		IntersectionRecord tmp = new IntersectionRecord();
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
-		for(int i = 0; i < surfaces.length; i++) {
-			if(surfaces[i].intersect(tmp, ray) && tmp.t < ray.end ) {
-				if(anyIntersection) return true;
-				ret = true;
-				ray.end = tmp.t;
-				if(outRecord != null)
-					outRecord.set(tmp);
+		RenderContext context = RenderContext.current();
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			IntersectionRecord tmp = traversal.record;
+			Ray ray = traversal.ray;
+			ray.set(rayIn);
+			for(int i = 0; i < surfaces.length; i++) {
+				if(surfaces[i].intersect(tmp, ray) && tmp.t < ray.end ) {
+					if(anyIntersection) {
+						context.counters.addTraversal(0, i + 1);
+						return true;
+					}
+					ret = true;
+					ray.end = tmp.t;
+					if(outRecord != null)
+						outRecord.set(tmp);
+				}
 			}
+			context.counters.addTraversal(0, surfaces.length);
+			return ret;
+		}
+		finally {
+			context.endTraversal();
 		}
-		return ret;
 	}
 	
 	@Override
 	public void build(Surface[] surfaces) {
 		this.surfaces = surfaces;
 	}
+
+	@Override
+	public void intersect(RayPacket packet, boolean anyIntersection) {
+		packet.intersectEach(this, anyIntersection);
+	}
 }
 
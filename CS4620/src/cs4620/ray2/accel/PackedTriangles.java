@@ -0,0 +1,133 @@
+package cs4620.ray2.accel;
+
+/**
+ * Triangles stored for the leaf kernel of FlatBvh: the first vertex and the
+ * two edges from it, each coordinate in its own float array, in the order of
+ * the primitives. A ray is tested against a run of up to BLOCK triangles in
+ * one loop without branches (Moller-Trumbore), which the JIT can unroll and
+ * keep in registers; each triangle costs about a third of the double
+ * precision test.
+ *
+ * The test only picks candidates. Its tolerances are wide enough that a
+ * triangle the exact test would hit is never left out, so the tree still
+ * confirms each candidate with PrimitiveSet.intersect, which fills in the
+ * intersection record, and the hits are exactly those of testing every
+ * triangle of the leaf. On top of a fixed slack, the tolerances grow with a
+ * bound on the rounding error of the float arithmetic, which is large when
+ * the ray is nearly in the plane of the triangle or the triangle is nearly
+ * degenerate; below a point the triangle is a candidate whatever the test
+ * says.
+ *
+ * Because every candidate is tested again, the float pass only pays where it
+ * rejects most of a leaf's triangles, and on the bundled meshes it does not
+ * yet come out ahead, so the trees leave it off unless setPacked turns it on.
+ */
+public class PackedTriangles {
+
+	/** Largest number of triangles tested at once, the bits of a candidate mask */
+	public static final int BLOCK = 8;
+
+	/** Slack of the barycentric coordinates and, relative to the ray, of t */
+	private static final float EPSILON = 1e-4f;
+
+	/**
+	 * Bound on the relative rounding error of the float products and sums,
+	 * some 30 times the float epsilon
+	 */
+	private static final float ROUNDING = 2e-6f;
+
+	/**
+	 * Below this fraction of its largest possible magnitude, the product of the
+	 * lengths of the edges and the direction, the determinant is too small for
+	 * the float test, and the triangle goes to the exact test
+	 */
+	private static final float DEGENERATE = 1e-4f;
+
+	private final float[] v0x, v0y, v0z;
+	private final float[] e1x, e1y, e1z;
+	private final float[] e2x, e2y, e2z;
+
+	/** Lengths of the edges, as sums of the absolute coordinates */
+	private final float[] e1n, e2n;
+
+	/**
+	 * @param positions vertex positions, three floats per vertex
+	 * @param indices vertex indices, three per triangle
+	 */
+	public PackedTriangles(float[] positions, int[] indices) {
+		int n = indices.length / 3;
+		v0x = new float[n]; v0y = new float[n]; v0z = new float[n];
+		e1x = new float[n]; e1y = new float[n]; e1z = new float[n];
+		e2x = new float[n]; e2y = new float[n]; e2z = new float[n];
+		e1n = new float[n]; e2n = new float[n];
+		for (int i = 0; i < n; i++) {
+			int p0 = 3 * indices[3*i], p1 = 3 * indices[3*i+1], p2 = 3 * indices[3*i+2];
+			v0x[i] = positions[p0];
+			v0y[i] = positions[p0+1];
+			v0z[i] = positions[p0+2];
+			e1x[i] = positions[p1] - positions[p0];
+			e1y[i] = positions[p1+1] - positions[p0+1];
+			e1z[i] = positions[p1+2] - positions[p0+2];
+			e2x[i] = positions[p2] - positions[p0];
+			e2y[i] = positions[p2+1] - positions[p0+1];
+			e2z[i] = positions[p2+2] - positions[p0+2];
+			e1n[i] = Math.abs(e1x[i]) + Math.abs(e1y[i]) + Math.abs(e1z[i]);
+			e2n[i] = Math.abs(e2x[i]) + Math.abs(e2y[i]) + Math.abs(e2z[i]);
+		}
+	}
+
+	/**
+	 * @return the number of triangles
+	 */
+	public int size() {
+		return v0x.length;
+	}
+
+	/**
+	 * Test a ray against the triangles [first, first + count).
+	 *
+	 * @param count at most BLOCK
+	 * @return a mask with bit k set if triangle first + k may be hit within [tStart, tEnd]
+	 */
+	public int candidates(int first, int count, float ox, float oy, float oz,
+			float dx, float dy, float dz, double tStart, double tEnd) {
+		float tLow = (float) (tStart - EPSILON * (1 + Math.abs(tStart)));
+		float tHigh = (float) (tEnd + EPSILON * (1 + Math.abs(tEnd)));
+		float dn = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+		float on = Math.abs(ox) + Math.abs(oy) + Math.abs(oz);
+		int mask = 0;
+		for (int k = 0; k < count; k++) {
+			int i = first + k;
+			float px = dy * e2z[i] - dz * e2y[i];
+			float py = dz * e2x[i] - dx * e2z[i];
+			float pz = dx * e2y[i] - dy * e2x[i];
+			float det = e1x[i] * px + e1y[i] * py + e1z[i] * pz;
+			float inverse = 1 / det;
+
+			float sx = ox - v0x[i], sy = oy - v0y[i], sz = oz - v0z[i];
+			float u = (sx * px + sy * py + sz * pz) * inverse;
+
+			float qx = sy * e1z[i] - sz * e1y[i];
+			float qy = sz * e1x[i] - sx * e1z[i];
+			float qz = sx * e1y[i] - sy * e1x[i];
+			float v = (dx * qx + dy * qy + dz * qz) * inverse;
+			float t = (e2x[i] * qx + e2y[i] * qy + e2z[i] * qz) * inverse;
+
+			// The error of u, v and t is that of the products they are made of,
+			// relative to the determinant; the origin was rounded to float as well
+			float edges = e1n[i] * e2n[i];
+			float sn = Math.abs(sx) + Math.abs(sy) + Math.abs(sz) + on;
+			float error = ROUNDING * Math.abs(inverse);
+			float uvSlack = EPSILON + error * dn * (sn * (e1n[i] + e2n[i]) + edges);
+			float tSlack = error * edges * (sn + Math.abs(t) * dn);
+
+			// Non-short-circuit tests keep the loop free of branches. A tiny or NaN
+			// determinant makes u, v and t meaningless, so it goes to the exact test
+			boolean hit = (u >= -uvSlack) & (v >= -uvSlack) & (u + v <= 1 + uvSlack)
+					& (t >= tLow - tSlack) & (t <= tHigh + tSlack)
+					| !(Math.abs(det) > DEGENERATE * edges * dn);
+			mask |= (hit ? 1 : 0) << k;
+		}
+		return mask;
+	}
+}
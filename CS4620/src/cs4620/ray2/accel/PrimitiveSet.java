@@ -0,0 +1,56 @@
+package cs4620.ray2.accel;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+
+/**
+ * A set of primitives that an acceleration structure can be built over, where
+ * each primitive is known only by its index. This lets a large triangle mesh
+ * keep its triangles in flat arrays instead of creating one Surface per face.
+ */
+public interface PrimitiveSet {
+
+	/**
+	 * @return the number of primitives
+	 */
+	public int size();
+
+	/**
+	 * Write the bounding box of a primitive into out as
+	 * (minX, minY, minZ, maxX, maxY, maxZ), starting at out[offset].
+	 * @param i The primitive index.
+	 */
+	public void getBounds(int i, double[] out, int offset);
+
+	/**
+	 * Write the point used to sort a primitive into out as (x, y, z), starting
+	 * at out[offset].
+	 * @param i The primitive index.
+	 */
+	public void getCentroid(int i, double[] out, int offset);
+
+	/**
+	 * Intersect one primitive with a ray, with the same contract as
+	 * Surface.intersect.
+	 *
+	 * @param i The primitive index.
+	 * @param outRecord the output IntersectionRecord
+	 * @param ray the ray to intersect
+	 * @return true if the primitive intersects the ray
+	 */
+	public boolean intersect(int i, IntersectionRecord outRecord, Ray ray);
+
+	/**
+	 * Reorder the primitives so that primitive k is the one that used to be
+	 * primitive order[k]. Called once after a build so every leaf of the tree
+	 * covers a contiguous range of indices.
+	 * @param order A permutation of 0 to size()-1.
+	 */
+	public void reorder(int[] order);
+
+	/**
+	 * @return the primitives as PackedTriangles in their current order, for
+	 * trees to test whole leaves at once, or null if they are not triangles
+	 */
+	public PackedTriangles packTriangles();
+}
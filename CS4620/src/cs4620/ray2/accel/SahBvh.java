@@ -0,0 +1,630 @@
+package cs4620.ray2.accel;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RayPacket;
+import cs4620.ray2.RenderContext;
+import cs4620.ray2.RenderCounters;
+import cs4620.ray2.surface.Surface;
+import egl.math.Vector3d;
+
+/**
+ * A bounding volume hierarchy built with the surface area heuristic (SAH).
+ * Instead of sorting at every level, the primitive centroids of a node are
+ * dropped into a fixed number of bins along each axis and the split plane
+ * between two bins with the lowest estimated cost is chosen. This makes
+ * construction O(n log n) and gives much better trees than median splits on
+ * large, unevenly tessellated meshes. The tree can be built over an array of
+ * surfaces or over any PrimitiveSet, such as the triangles of a Mesh.
+ * Traversal tests the boxes of both children of a node with its own slab
+ * test and descends into the nearer one first.
+ *
+ * Large ranges are built on a fork/join pool: the primitive bounds, the node
+ * bounds and the bins are computed by parallel reductions, and the two
+ * subtrees of a large node are built concurrently. Bounds and bins do not
+ * depend on the order in which they are merged, so the tree is identical to
+ * the one a single thread would build.
+ *
+ * Select it from a scene file with
+ * <pre>
+ *   &lt;accelStruct type="SahBvh"&gt;
+ *     &lt;bins&gt;16&lt;/bins&gt;
+ *     &lt;leafSize&gt;2&lt;/leafSize&gt;
+ *     &lt;traversalCost&gt;0.5&lt;/traversalCost&gt;
+ *   &lt;/accelStruct&gt;
+ * </pre>
+ */
+public class SahBvh implements AccelStruct {
+
+	/** The primitives, in leaf order after a build, that the nodes of the tree refer to. */
+	private PrimitiveSet primitives;
+
+	/** The root of the BVH tree. */
+	BvhNode root;
+
+	/** Number of centroid bins tested along each axis. */
+	protected int bins = 16;
+	public void setBins(int bins) { this.bins = Math.max(2, bins); }
+
+	/** Nodes with this many primitives or fewer always become leaves. */
+	protected int leafSize = 2;
+	public void setLeafSize(int leafSize) { this.leafSize = Math.max(1, leafSize); }
+
+	/** Nodes with more primitives than this are always split. */
+	protected int maxLeafSize = 16;
+	public void setMaxLeafSize(int maxLeafSize) { this.maxLeafSize = Math.max(1, maxLeafSize); }
+
+	/** The cost of visiting a node, relative to one primitive intersection test. */
+	protected double traversalCost = 0.5;
+	public void setTraversalCost(double traversalCost) { this.traversalCost = Math.max(0, traversalCost); }
+
+	/** Ranges with at least this many primitives are processed on several threads. */
+	protected int parallelThreshold = 4096;
+	public void setParallelThreshold(int parallelThreshold) { this.parallelThreshold = Math.max(1, parallelThreshold); }
+
+	/** Number of build threads; 0 uses every available core. */
+	protected int threads = 0;
+	public void setThreads(int threads) { this.threads = Math.max(0, threads); }
+
+	/* Statistics of the last build */
+	protected int nodeCount, leafCount;
+	protected double sahCost;
+	protected long buildTime;
+	public int getNodeCount() { return nodeCount; }
+	public int getLeafCount() { return leafCount; }
+	public double getSahCost() { return sahCost; }
+	public long getBuildTime() { return buildTime; }
+
+	/**
+	 * Whether every build prints its statistics. The RayTracer turns this on
+	 * for the tree of each scene it renders at RayTracer.LOG_DEBUG; builds are
+	 * otherwise silent.
+	 */
+	protected boolean logBuilds = false;
+	public void setLogBuilds(boolean logBuilds) { this.logBuilds = logBuilds; }
+
+	/** Number of primitives handled by one task of a parallel reduction. */
+	private static final int GRAIN = 1024;
+
+	/* Build scratch space: primitive bounds and centroids, and the primitive order */
+	private PrimitiveSet input;
+	private double[] primBounds;
+	private double[] centroids;
+	private int[] prims;
+
+	public SahBvh() { }
+
+	/** @return the primitives in leaf order, as referenced by the nodes of the tree */
+	PrimitiveSet getPrimitives() { return primitives; }
+
+	/**
+	 * Set outRecord to the first intersection of ray with the scene. Return true
+	 * if there was an intersection and false otherwise. If no intersection was
+	 * found outRecord is unchanged.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @return true if and intersection is found.
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		if (root == null) return false;
+		RenderContext context = RenderContext.current();
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			Ray ray = traversal.ray;
+			ray.set(rayIn);
+			double ix = 1 / ray.direction.x, iy = 1 / ray.direction.y, iz = 1 / ray.direction.z;
+			context.counters.addTraversal(1, 0);
+			if (entry(root, ray, ix, iy, iz) == Double.POSITIVE_INFINITY) return false;
+			return intersectHelper(root, outRecord, traversal.record, ray, ix, iy, iz, context.counters, anyIntersection);
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	@Override
+	public void intersect(RayPacket packet, boolean anyIntersection) {
+		packet.intersectEach(this, anyIntersection);
+	}
+
+	/**
+	 * Find the closest intersection with the primitives under node, whose box
+	 * the ray is already known to enter. The boxes of both children are tested
+	 * here and the nearer child is visited first. The end of ray is pulled in
+	 * every time a closer hit is found, so the farther child is skipped when a
+	 * hit lies in front of its box. Every box tested and primitive tested is
+	 * added to counters.
+	 */
+	private boolean intersectHelper(BvhNode node, IntersectionRecord outRecord, IntersectionRecord tmp,
+			Ray ray, double ix, double iy, double iz, RenderCounters counters, boolean anyIntersection) {
+		if (node.isLeaf()) {
+			boolean ret = false;
+			for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
+				counters.addTraversal(0, 1);
+				if (primitives.intersect(i, tmp, ray) && tmp.t < ray.end) {
+					if (anyIntersection) return true;
+					ret = true;
+					ray.end = tmp.t;
+					if (outRecord != null)
+						outRecord.set(tmp);
+				}
+			}
+			return ret;
+		}
+
+		counters.addTraversal(2, 0);
+		BvhNode near = node.child[0], far = node.child[1];
+		double tNear = entry(near, ray, ix, iy, iz), tFar = entry(far, ray, ix, iy, iz);
+		if (tFar < tNear) {
+			BvhNode n = near; near = far; far = n;
+			double t = tNear; tNear = tFar; tFar = t;
+		}
+
+		boolean ret = false;
+		if (tNear != Double.POSITIVE_INFINITY) {
+			ret = intersectHelper(near, outRecord, tmp, ray, ix, iy, iz, counters, anyIntersection);
+			if (ret && anyIntersection) return true;
+		}
+		if (tFar != Double.POSITIVE_INFINITY && tFar <= ray.end)
+			ret |= intersectHelper(far, outRecord, tmp, ray, ix, iy, iz, counters, anyIntersection);
+		return ret;
+	}
+
+	/**
+	 * Slab test of the segment of ray between its start and end against the box
+	 * of a node. Comparisons are written so that the NaN produced by a zero
+	 * direction component lying on a slab plane leaves the interval untouched.
+	 *
+	 * @param ix, iy, iz the inverse of the ray direction
+	 * @return the distance at which the ray enters the box, or positive infinity if it misses it
+	 */
+	private static double entry(BvhNode node, Ray ray, double ix, double iy, double iz) {
+		Vector3d min = node.minBound, max = node.maxBound;
+		double tMin = ray.start, tMax = ray.end, tNear, tFar;
+
+		tNear = (min.x - ray.origin.x) * ix;
+		tFar = (max.x - ray.origin.x) * ix;
+		if (ix < 0) { double t = tNear; tNear = tFar; tFar = t; }
+		if (tNear > tMin) tMin = tNear;
+		if (tFar < tMax) tMax = tFar;
+
+		tNear = (min.y - ray.origin.y) * iy;
+		tFar = (max.y - ray.origin.y) * iy;
+		if (iy < 0) { double t = tNear; tNear = tFar; tFar = t; }
+		if (tNear > tMin) tMin = tNear;
+		if (tFar < tMax) tMax = tFar;
+
+		tNear = (min.z - ray.origin.z) * iz;
+		tFar = (max.z - ray.origin.z) * iz;
+		if (iz < 0) { double t = tNear; tNear = tFar; tFar = t; }
+		if (tNear > tMin) tMin = tNear;
+		if (tFar < tMax) tMax = tFar;
+
+		return tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
+	}
+
+	@Override
+	public void build(Surface[] surfaces) {
+		build(new SurfaceSet(surfaces));
+	}
+
+	/**
+	 * Build the tree over a set of primitives. The set is reordered into leaf
+	 * order, and the tree keeps referring to it afterwards.
+	 * @param primitives The primitives to build over.
+	 * @throws IllegalStateException if a surface has no bounding box
+	 */
+	public void build(PrimitiveSet primitives) {
+		long startTime = System.currentTimeMillis();
+		int n = primitives.size();
+		if (primitives instanceof SurfaceSet)
+			checkBounds(((SurfaceSet) primitives).getSurfaces());
+
+		input = primitives;
+		primBounds = new double[6 * n];
+		centroids = new double[3 * n];
+		prims = new int[n];
+
+		ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : new ForkJoinPool();
+		try {
+			pool.invoke(new PrimitiveTask(0, n));
+			root = n == 0 ? null : pool.invoke(new BuildTask(0, n));
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		// Store the primitives in leaf order so every leaf is a contiguous range
+		primitives.reorder(prims);
+		this.primitives = primitives;
+
+		nodeCount = leafCount = 0;
+		sahCost = 0;
+		if (root != null) {
+			double rootArea = halfArea(root.minBound, root.maxBound);
+			double cost = collectStats(root);
+			sahCost = rootArea > 0 ? cost / rootArea : 0;
+		}
+		input = null;
+		primBounds = centroids = null;
+		prims = null;
+		buildTime = System.currentTimeMillis() - startTime;
+
+		if (logBuilds)
+			System.out.println("SahBvh: " + nodeCount + " nodes (" + leafCount + " leaves) over " + n
+					+ " primitives in " + (buildTime / 1000.0) + " seconds, SAH cost " + sahCost);
+	}
+
+	/**
+	 * Make sure every surface has a bounding box to build over. Surfaces whose
+	 * computeBoundingBox is not implemented yet leave theirs null.
+	 */
+	private static void checkBounds(Surface[] surfaces) {
+		for (Surface surface : surfaces)
+			if (surface.getMinBound() == null || surface.getMaxBound() == null)
+				throw new IllegalStateException("SahBvh: " + surface.getClass().getSimpleName()
+						+ " has no bounding box (computeBoundingBox is not implemented);"
+						+ " use NaiveAccelStruct for this scene");
+	}
+
+	/**
+	 * Count the nodes and leaves under node.
+	 * @return the SAH cost of the subtree, not yet divided by the root area
+	 */
+	private double collectStats(BvhNode node) {
+		nodeCount++;
+		double area = halfArea(node.minBound, node.maxBound);
+		if (node.isLeaf()) {
+			leafCount++;
+			return (node.surfaceIndexEnd - node.surfaceIndexStart) * area;
+		}
+		return traversalCost * area + collectStats(node.child[0]) + collectStats(node.child[1]);
+	}
+
+	/**
+	 * Create a BVH [sub]tree over prims[start] to prims[end-1], reordering that
+	 * range so each child covers a contiguous part of it. Must be called from a
+	 * task running in the build pool.
+	 *
+	 * @param start The start index of prims
+	 * @param end The end index of prims
+	 * @param scratch bins owned by the calling thread
+	 */
+	private BvhNode createTree(int start, int end, Bins scratch) {
+		int count = end - start;
+		boolean parallel = count >= parallelThreshold;
+
+		// Bounds of the primitives and of their centroids
+		double[] b = parallel ? new BoundsTask(start, end).invoke() : computeBounds(start, end);
+		Vector3d minB = new Vector3d(b[0], b[1], b[2]);
+		Vector3d maxB = new Vector3d(b[3], b[4], b[5]);
+
+		double area = halfArea(minB, maxB);
+		if (count <= leafSize)
+			return new BvhNode(minB, maxB, null, null, start, end);
+
+		// Bin the centroids along every axis that has some extent
+		double[] cMin = { b[6], b[7], b[8] };
+		double[] scale = new double[3];
+		for (int axis = 0; axis < 3; axis++) {
+			double extent = b[9 + axis] - b[6 + axis];
+			scale[axis] = extent > 0 ? bins / extent : 0;
+		}
+		Bins binned;
+		if (parallel) {
+			binned = new BinTask(start, end, cMin, scale).invoke();
+		} else {
+			binned = scratch;
+			binned.clear();
+			binned.add(start, end, cMin, scale);
+		}
+
+		// Find the cheapest split plane over all axes
+		int bestAxis = -1, bestBin = -1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (int axis = 0; axis < 3; axis++) {
+			if (scale[axis] == 0) continue;
+			int split = binned.bestSplit(axis);
+			if (split >= 0 && binned.splitCost < bestCost) {
+				bestCost = binned.splitCost;
+				bestAxis = axis;
+				bestBin = split;
+			}
+		}
+
+		int mid;
+		if (bestAxis < 0) {
+			// Every centroid coincides; just cut the range in half if it is too big
+			if (count <= maxLeafSize)
+				return new BvhNode(minB, maxB, null, null, start, end);
+			mid = (start + end) >>> 1;
+		} else {
+			// Compare the split against intersecting everything in one leaf
+			double splitCost = traversalCost + (area > 0 ? bestCost / area : count);
+			if (splitCost >= count && count <= maxLeafSize)
+				return new BvhNode(minB, maxB, null, null, start, end);
+
+			mid = partition(start, end, bestAxis, cMin[bestAxis], scale[bestAxis], bestBin);
+		}
+
+		BvhNode left, right;
+		if (parallel) {
+			BuildTask leftTask = new BuildTask(start, mid);
+			leftTask.fork();
+			right = createTree(mid, end, scratch);
+			left = leftTask.join();
+		} else {
+			left = createTree(start, mid, scratch);
+			right = createTree(mid, end, scratch);
+		}
+		return new BvhNode(minB, maxB, left, right, start, end);
+	}
+
+	/**
+	 * Compute the bounds of the primitives in prims[start, end) and of their centroids.
+	 * @return (minX, minY, minZ, maxX, maxY, maxZ) of the primitives followed by
+	 * the same six values for the centroids
+	 */
+	private double[] computeBounds(int start, int end) {
+		double[] b = emptyBounds();
+		for (int i = start; i < end; i++) {
+			int p = prims[i];
+			for (int a = 0; a < 3; a++) {
+				b[a] = Math.min(b[a], primBounds[6*p+a]);
+				b[3+a] = Math.max(b[3+a], primBounds[6*p+3+a]);
+				b[6+a] = Math.min(b[6+a], centroids[3*p+a]);
+				b[9+a] = Math.max(b[9+a], centroids[3*p+a]);
+			}
+		}
+		return b;
+	}
+
+	private static double[] emptyBounds() {
+		double[] b = new double[12];
+		for (int a = 0; a < 3; a++) {
+			b[a] = b[6+a] = Double.POSITIVE_INFINITY;
+			b[3+a] = b[9+a] = Double.NEGATIVE_INFINITY;
+		}
+		return b;
+	}
+
+	/**
+	 * Reorder prims[start, end) so primitives in bins [0, splitBin] come first.
+	 * @return the index of the first primitive on the right side
+	 */
+	private int partition(int start, int end, int axis, double cMin, double scale, int splitBin) {
+		int i = start, j = end - 1;
+		while (i <= j) {
+			if (binIndex(centroids[3*prims[i]+axis], cMin, scale) <= splitBin) {
+				i++;
+			} else {
+				int t = prims[i];
+				prims[i] = prims[j];
+				prims[j] = t;
+				j--;
+			}
+		}
+		return i;
+	}
+
+	private int binIndex(double c, double cMin, double scale) {
+		int b = (int) ((c - cMin) * scale);
+		return b < 0 ? 0 : (b >= bins ? bins - 1 : b);
+	}
+
+	/**
+	 * Primitive counts and bounds of the centroid bins along all three axes.
+	 */
+	private class Bins {
+		/** Count of bin b along axis a is at count[a*bins + b] */
+		final int[] count = new int[3 * bins];
+		/** Bounds of bin b along axis a start at box[6*(a*bins + b)] */
+		final double[] box = new double[18 * bins];
+		/* Sweep scratch space */
+		final double[] rightArea = new double[bins];
+		final int[] rightCount = new int[bins];
+		/** The cost of the split last returned by bestSplit, times the node area */
+		double splitCost;
+
+		void clear() {
+			for (int i = 0; i < count.length; i++) {
+				count[i] = 0;
+				box[6*i] = box[6*i+1] = box[6*i+2] = Double.POSITIVE_INFINITY;
+				box[6*i+3] = box[6*i+4] = box[6*i+5] = Double.NEGATIVE_INFINITY;
+			}
+		}
+
+		/** Add the primitives in prims[start, end) to the bins of every axis with a nonzero scale. */
+		void add(int start, int end, double[] cMin, double[] scale) {
+			for (int i = start; i < end; i++) {
+				int p = prims[i];
+				for (int axis = 0; axis < 3; axis++) {
+					if (scale[axis] == 0) continue;
+					int bin = axis * bins + binIndex(centroids[3*p+axis], cMin[axis], scale[axis]);
+					count[bin]++;
+					for (int a = 0; a < 3; a++) {
+						box[6*bin+a] = Math.min(box[6*bin+a], primBounds[6*p+a]);
+						box[6*bin+3+a] = Math.max(box[6*bin+3+a], primBounds[6*p+3+a]);
+					}
+				}
+			}
+		}
+
+		void merge(Bins other) {
+			for (int i = 0; i < count.length; i++) {
+				count[i] += other.count[i];
+				for (int a = 0; a < 3; a++) {
+					box[6*i+a] = Math.min(box[6*i+a], other.box[6*i+a]);
+					box[6*i+3+a] = Math.max(box[6*i+3+a], other.box[6*i+3+a]);
+				}
+			}
+		}
+
+		/**
+		 * Find the cheapest plane between two bins along an axis and store its
+		 * cost in splitCost.
+		 * @return the last bin left of the plane, or -1 if no plane splits the primitives
+		 */
+		int bestSplit(int axis) {
+			int o = axis * bins;
+
+			// Sweep from the right to get the area and count right of every plane
+			double lo0 = Double.POSITIVE_INFINITY, lo1 = lo0, lo2 = lo0;
+			double hi0 = Double.NEGATIVE_INFINITY, hi1 = hi0, hi2 = hi0;
+			int accum = 0;
+			for (int b = bins - 1; b > 0; b--) {
+				int i = o + b;
+				if (count[i] > 0) {
+					lo0 = Math.min(lo0, box[6*i]);
+					lo1 = Math.min(lo1, box[6*i+1]);
+					lo2 = Math.min(lo2, box[6*i+2]);
+					hi0 = Math.max(hi0, box[6*i+3]);
+					hi1 = Math.max(hi1, box[6*i+4]);
+					hi2 = Math.max(hi2, box[6*i+5]);
+				}
+				accum += count[i];
+				rightCount[b] = accum;
+				rightArea[b] = accum > 0 ? halfArea(hi0 - lo0, hi1 - lo1, hi2 - lo2) : 0;
+			}
+
+			// Sweep from the left and evaluate the plane between bins b and b+1
+			lo0 = lo1 = lo2 = Double.POSITIVE_INFINITY;
+			hi0 = hi1 = hi2 = Double.NEGATIVE_INFINITY;
+			accum = 0;
+			int best = -1;
+			splitCost = Double.POSITIVE_INFINITY;
+			for (int b = 0; b < bins - 1; b++) {
+				int i = o + b;
+				if (count[i] > 0) {
+					lo0 = Math.min(lo0, box[6*i]);
+					lo1 = Math.min(lo1, box[6*i+1]);
+					lo2 = Math.min(lo2, box[6*i+2]);
+					hi0 = Math.max(hi0, box[6*i+3]);
+					hi1 = Math.max(hi1, box[6*i+4]);
+					hi2 = Math.max(hi2, box[6*i+5]);
+				}
+				accum += count[i];
+				if (accum == 0 || rightCount[b+1] == 0) continue;
+				double cost = accum * halfArea(hi0 - lo0, hi1 - lo1, hi2 - lo2) + rightCount[b+1] * rightArea[b+1];
+				if (cost < splitCost) {
+					splitCost = cost;
+					best = b;
+				}
+			}
+			return best;
+		}
+	}
+
+	/** Builds the subtree over prims[start, end). */
+	private class BuildTask extends RecursiveTask<BvhNode> {
+		private static final long serialVersionUID = 1L;
+		private final int start, end;
+
+		BuildTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected BvhNode compute() {
+			return createTree(start, end, new Bins());
+		}
+	}
+
+	/** Copies the bounds and centroids of input[start, end) into the flat arrays. */
+	private class PrimitiveTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int start, end;
+
+		PrimitiveTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > GRAIN) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new PrimitiveTask(start, mid), new PrimitiveTask(mid, end));
+				return;
+			}
+			for (int i = start; i < end; i++) {
+				input.getBounds(i, primBounds, 6*i);
+				input.getCentroid(i, centroids, 3*i);
+				prims[i] = i;
+			}
+		}
+	}
+
+	/** Parallel reduction computing the bounds of prims[start, end) as in computeBounds. */
+	private class BoundsTask extends RecursiveTask<double[]> {
+		private static final long serialVersionUID = 1L;
+		private final int start, end;
+
+		BoundsTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected double[] compute() {
+			if (end - start <= GRAIN)
+				return computeBounds(start, end);
+
+			int mid = (start + end) >>> 1;
+			BoundsTask left = new BoundsTask(start, mid);
+			left.fork();
+			double[] b = new BoundsTask(mid, end).compute();
+			double[] l = left.join();
+			for (int a = 0; a < 12; a++)
+				b[a] = (a % 6) < 3 ? Math.min(b[a], l[a]) : Math.max(b[a], l[a]);
+			return b;
+		}
+	}
+
+	/** Parallel reduction binning prims[start, end). */
+	private class BinTask extends RecursiveTask<Bins> {
+		private static final long serialVersionUID = 1L;
+		private final int start, end;
+		private final double[] cMin, scale;
+
+		BinTask(int start, int end, double[] cMin, double[] scale) {
+			this.start = start;
+			this.end = end;
+			this.cMin = cMin;
+			this.scale = scale;
+		}
+
+		@Override
+		protected Bins compute() {
+			if (end - start <= GRAIN) {
+				Bins b = new Bins();
+				b.clear();
+				b.add(start, end, cMin, scale);
+				return b;
+			}
+
+			int mid = (start + end) >>> 1;
+			BinTask left = new BinTask(start, mid, cMin, scale);
+			left.fork();
+			Bins b = new BinTask(mid, end, cMin, scale).compute();
+			b.merge(left.join());
+			return b;
+		}
+	}
+
+	/** Half of the surface area of a box, which is all the SAH needs. */
+	static double halfArea(double dx, double dy, double dz) {
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	static double halfArea(Vector3d minB, Vector3d maxB) {
+		return halfArea(maxB.x - minB.x, maxB.y - minB.y, maxB.z - minB.z);
+	}
+}
@@ -0,0 +1,67 @@
+package cs4620.ray2.accel;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.surface.Surface;
+import egl.math.Vector3d;
+
+/**
+ * The primitive set of an array of surfaces, where primitive i is surface i.
+ */
+public class SurfaceSet implements PrimitiveSet {
+
+	private Surface[] surfaces;
+
+	/**
+	 * @param surfaces The surfaces; the array itself is never modified.
+	 */
+	public SurfaceSet(Surface[] surfaces) {
+		this.surfaces = surfaces;
+	}
+
+	/** @return the surfaces in their current order */
+	public Surface[] getSurfaces() { return surfaces; }
+
+	@Override
+	public int size() {
+		return surfaces.length;
+	}
+
+	@Override
+	public void getBounds(int i, double[] out, int offset) {
+		Vector3d minB = surfaces[i].getMinBound();
+		Vector3d maxB = surfaces[i].getMaxBound();
+		out[offset] = minB.x;
+		out[offset+1] = minB.y;
+		out[offset+2] = minB.z;
+		out[offset+3] = maxB.x;
+		out[offset+4] = maxB.y;
+		out[offset+5] = maxB.z;
+	}
+
+	@Override
+	public void getCentroid(int i, double[] out, int offset) {
+		Vector3d avg = surfaces[i].getAveragePosition();
+		out[offset] = avg.x;
+		out[offset+1] = avg.y;
+		out[offset+2] = avg.z;
+	}
+
+	@Override
+	public boolean intersect(int i, IntersectionRecord outRecord, Ray ray) {
+		return surfaces[i].intersect(outRecord, ray);
+	}
+
+	@Override
+	public void reorder(int[] order) {
+		Surface[] reordered = new Surface[surfaces.length];
+		for (int i = 0; i < order.length; i++)
+			reordered[i] = surfaces[order[i]];
+		surfaces = reordered;
+	}
+
+	@Override
+	public PackedTriangles packTriangles() {
+		return null;
+	}
+}
@@ -0,0 +1,353 @@
+package cs4620.ray2.accel;
+
+import java.util.Arrays;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RayPacket;
+import cs4620.ray2.RenderContext;
+import cs4620.ray2.RenderCounters;
+import cs4620.ray2.surface.Surface;
+
+/**
+ * A bounding volume hierarchy with up to 4 or 8 children per node, made by
+ * collapsing the binary tree of a FlatBvh: each node takes the children of
+ * its largest interior children until it has width of them. The boxes of
+ * the children of a node are stored side by side, one float array per
+ * coordinate, so a ray is slab-tested against all of them in one loop of
+ * fixed length. The children it enters go on the stack sorted by distance,
+ * nearest on top, and are skipped when popped if the ray has been cut short
+ * of them by then. Leaves of triangles can be tested with PackedTriangles
+ * first, as in FlatBvh.
+ *
+ * This structure is experimental. The tree is shallower than a binary one,
+ * so fewer nodes are popped and fewer near/far decisions made, at the price
+ * of testing every child box of each node visited. Without vector
+ * instructions to test the boxes in one go the box loop is plain scalar code,
+ * and it does not pay: on the bunny a 4-wide tree traces about 15% and an
+ * 8-wide one about 30% fewer rays a second than FlatBvh. Testing the boxes in
+ * float instead of double gained only a few percent. Nothing uses it unless a
+ * scene asks for it. Packets are intersected one ray at a time.
+ *
+ * Select it from a scene file with &lt;accelStruct type="WideBvh"&gt; and a
+ * nested &lt;width&gt;8&lt;/width&gt; (4 by default); a mesh uses one over its
+ * triangles when given a &lt;treeWidth&gt;.
+ */
+public class WideBvh implements AccelStruct {
+
+	/** The widest node there can be */
+	public static final int MAX_WIDTH = 8;
+
+	/** Builds and holds the binary tree that is collapsed. */
+	protected FlatBvh binary = new FlatBvh();
+	public void setBuilder(SahBvh builder) { binary.setBuilder(builder); }
+	public void setLogBuilds(boolean logBuilds) { binary.setLogBuilds(logBuilds); }
+
+	/** Number of slots of every node; a node may use fewer near the leaves. */
+	protected int width = 4;
+	public void setWidth(int width) { this.width = Math.max(2, Math.min(MAX_WIDTH, width)); }
+	public int getWidth() { return width; }
+
+	/** Whether leaves of triangles are tested with PackedTriangles first, off by default as in FlatBvh. */
+	protected boolean packed = false;
+	public void setPacked(boolean packed) {
+		this.packed = packed;
+		triangles = packed && primitives != null ? primitives.packTriangles() : null;
+	}
+
+	/** The primitives in leaf order. */
+	private PrimitiveSet primitives;
+
+	/** The primitives packed for the leaf kernel, or null to test them one by one. */
+	private PackedTriangles triangles;
+
+	/**
+	 * Child boxes, indexed by node * width + slot. They are the float bounds of
+	 * the binary tree, rounded outwards; an empty slot has min +infinity and
+	 * max -infinity, which no ray enters.
+	 */
+	float[] minX, minY, minZ, maxX, maxY, maxZ;
+
+	/**
+	 * For each slot: the index of the child node if it is interior, or
+	 * -(first primitive + 1) if it is a leaf.
+	 */
+	int[] child;
+
+	/** For each slot: the number of primitives of a leaf, and 0 otherwise. */
+	int[] count;
+
+	/** For each node: the number of its slots in use, which come first. */
+	int[] arity;
+
+	/** Number of nodes. */
+	int nodeCount;
+
+	/** Number of nodes on the longest path from the root to a leaf. */
+	int maxDepth;
+
+	public WideBvh() { }
+
+	@Override
+	public void build(Surface[] surfaces) {
+		build(new SurfaceSet(surfaces));
+	}
+
+	/**
+	 * Build the tree over a set of primitives, which is reordered into leaf
+	 * order and kept for intersection.
+	 * @param primitives The primitives to build over.
+	 */
+	public void build(PrimitiveSet primitives) {
+		binary.build(primitives);
+		collapse(binary);
+	}
+
+	/**
+	 * Make this tree from a binary one, which is left as it is. Both refer to
+	 * the same primitives afterwards.
+	 * @param tree a built or loaded tree
+	 */
+	public void collapse(FlatBvh tree) {
+		primitives = tree.getPrimitives();
+		triangles = packed && primitives != null ? primitives.packTriangles() : null;
+
+		// A node always takes the place of at least one interior binary node
+		int capacity = width * Math.max(1, tree.nodeCount);
+		minX = new float[capacity]; minY = new float[capacity]; minZ = new float[capacity];
+		maxX = new float[capacity]; maxY = new float[capacity]; maxZ = new float[capacity];
+		Arrays.fill(minX, Float.POSITIVE_INFINITY);
+		Arrays.fill(minY, Float.POSITIVE_INFINITY);
+		Arrays.fill(minZ, Float.POSITIVE_INFINITY);
+		Arrays.fill(maxX, Float.NEGATIVE_INFINITY);
+		Arrays.fill(maxY, Float.NEGATIVE_INFINITY);
+		Arrays.fill(maxZ, Float.NEGATIVE_INFINITY);
+		child = new int[capacity];
+		count = new int[capacity];
+		arity = new int[capacity / width];
+		nodeCount = 0;
+		maxDepth = 0;
+		if (tree.nodeCount == 0)
+			return;
+		collapse(tree, 0, 1);
+
+		int size = width * nodeCount;
+		minX = Arrays.copyOf(minX, size); minY = Arrays.copyOf(minY, size); minZ = Arrays.copyOf(minZ, size);
+		maxX = Arrays.copyOf(maxX, size); maxY = Arrays.copyOf(maxY, size); maxZ = Arrays.copyOf(maxZ, size);
+		child = Arrays.copyOf(child, size);
+		count = Arrays.copyOf(count, size);
+		arity = Arrays.copyOf(arity, nodeCount);
+	}
+
+	/**
+	 * Make a tree with the nodes of this one over other primitives, which must
+	 * be the same ones in the same order, as with meshes sharing the triangles
+	 * of a file. The nodes are shared, not copied.
+	 * @param primitives the primitives the new tree refers to
+	 * @return the new tree
+	 */
+	public WideBvh share(PrimitiveSet primitives) {
+		WideBvh tree = new WideBvh();
+		tree.width = width;
+		tree.packed = packed;
+		tree.primitives = primitives;
+		tree.triangles = packed ? primitives.packTriangles() : null;
+		tree.minX = minX; tree.minY = minY; tree.minZ = minZ;
+		tree.maxX = maxX; tree.maxY = maxY; tree.maxZ = maxZ;
+		tree.child = child;
+		tree.count = count;
+		tree.arity = arity;
+		tree.nodeCount = nodeCount;
+		tree.maxDepth = maxDepth;
+		return tree;
+	}
+
+	/**
+	 * Make a node from a binary node and the nodes below it.
+	 * @return the index of the node
+	 */
+	private int collapse(FlatBvh tree, int binaryNode, int depth) {
+		int node = nodeCount++;
+		maxDepth = Math.max(maxDepth, depth);
+
+		int[] slots = new int[width];
+		int n;
+		if (tree.nodes[2*binaryNode+1] > 0) {
+			// The whole tree is one leaf
+			slots[0] = binaryNode;
+			n = 1;
+		} else {
+			slots[0] = binaryNode + 1;
+			slots[1] = tree.nodes[2*binaryNode];
+			n = 2;
+		}
+		while (n < width) {
+			// Open up the interior child with the largest box
+			int best = -1;
+			double bestArea = -1;
+			for (int k = 0; k < n; k++) {
+				if (tree.nodes[2*slots[k]+1] > 0)
+					continue;
+				double area = area(tree.bounds, 6 * slots[k]);
+				if (area > bestArea) {
+					best = k;
+					bestArea = area;
+				}
+			}
+			if (best < 0)
+				break;
+			int opened = slots[best];
+			slots[best] = opened + 1;
+			slots[n++] = tree.nodes[2*opened];
+		}
+
+		arity[node] = n;
+		for (int k = 0; k < n; k++) {
+			int b = slots[k], s = node * width + k;
+			minX[s] = tree.bounds[6*b];
+			minY[s] = tree.bounds[6*b+1];
+			minZ[s] = tree.bounds[6*b+2];
+			maxX[s] = tree.bounds[6*b+3];
+			maxY[s] = tree.bounds[6*b+4];
+			maxZ[s] = tree.bounds[6*b+5];
+			if (tree.nodes[2*b+1] > 0) {
+				child[s] = -tree.nodes[2*b] - 1;
+				count[s] = tree.nodes[2*b+1];
+			} else
+				child[s] = collapse(tree, b, depth + 1);
+		}
+		return node;
+	}
+
+	private static double area(float[] bounds, int b) {
+		double dx = bounds[b+3] - bounds[b], dy = bounds[b+4] - bounds[b+1], dz = bounds[b+5] - bounds[b+2];
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/**
+	 * Set outRecord to the first intersection of ray with the primitives and
+	 * return true if there was one; if anyIntersection is true, stop at any
+	 * intersection instead.
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @return true if and intersection is found.
+	 */
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		if (nodeCount == 0) return false;
+
+		RenderContext context = RenderContext.current();
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			traversal.ray.set(rayIn);
+			return intersect(outRecord, traversal, context.counters, anyIntersection);
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	/**
+	 * Single-ray traversal, working on the copy of the ray in traversal. Every
+	 * child box tested counts as a node visited.
+	 */
+	private boolean intersect(IntersectionRecord outRecord, RenderContext.Traversal traversal, RenderCounters counters,
+			boolean anyIntersection) {
+		Ray ray = traversal.ray;
+		IntersectionRecord tmp = traversal.record;
+		// Each node visited replaces itself on the stack by at most width children
+		int stackSize = maxDepth * (width - 1) + 1;
+		int[] codes = traversal.nodeStack(stackSize);
+		double[] distances = traversal.distanceStack(stackSize);
+
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double ix = 1 / ray.direction.x, iy = 1 / ray.direction.y, iz = 1 / ray.direction.z;
+		float fox = (float) ox, foy = (float) oy, foz = (float) oz;
+		float fdx = (float) ray.direction.x, fdy = (float) ray.direction.y, fdz = (float) ray.direction.z;
+
+		// The slab planes the ray enters and leaves by are the same for every box
+		float[] nearX = ix >= 0 ? minX : maxX, farX = ix >= 0 ? maxX : minX;
+		float[] nearY = iy >= 0 ? minY : maxY, farY = iy >= 0 ? maxY : minY;
+		float[] nearZ = iz >= 0 ? minZ : maxZ, farZ = iz >= 0 ? maxZ : minZ;
+
+		boolean ret = false;
+		int visited = 0, tests = 0;
+		int sp = 0;
+		codes[sp] = 0;
+		distances[sp++] = ray.start;
+		while (sp > 0) {
+			int code = codes[--sp];
+			if (distances[sp] > ray.end)
+				continue;
+
+			if (code >= 0) {
+				// Interior: test every child box. Comparisons are written so that the
+				// NaN of a zero direction component on a slab plane leaves the interval
+				// untouched, as in FlatBvh.
+				int first = code * width, last = first + arity[code];
+				int bottom = sp;
+				visited += last - first;
+				for (int s = first; s < last; s++) {
+					double tMin = ray.start, tMax = ray.end, t;
+					t = (nearX[s] - ox) * ix;
+					if (t > tMin) tMin = t;
+					t = (farX[s] - ox) * ix;
+					if (t < tMax) tMax = t;
+					t = (nearY[s] - oy) * iy;
+					if (t > tMin) tMin = t;
+					t = (farY[s] - oy) * iy;
+					if (t < tMax) tMax = t;
+					t = (nearZ[s] - oz) * iz;
+					if (t > tMin) tMin = t;
+					t = (farZ[s] - oz) * iz;
+					if (t < tMax) tMax = t;
+					if (tMin > tMax)
+						continue;
+
+					// Insert the child so the children of this node are popped nearest first
+					int j = sp++;
+					while (j > bottom && distances[j-1] < tMin) {
+						distances[j] = distances[j-1];
+						codes[j] = codes[j-1];
+						j--;
+					}
+					distances[j] = tMin;
+					codes[j] = count[s] > 0 ? -s - 1 : child[s];
+				}
+				continue;
+			}
+
+			// Leaf: test every primitive, pulling in the end of the ray on each hit
+			int slot = -code - 1;
+			int start = -child[slot] - 1, end = start + count[slot];
+			for (int block = start; block < end; block += PackedTriangles.BLOCK) {
+				int blockEnd = Math.min(end, block + PackedTriangles.BLOCK);
+				int candidates = triangles == null ? -1 : triangles.candidates(block, blockEnd - block,
+						fox, foy, foz, fdx, fdy, fdz, ray.start, ray.end);
+				for (int i = block; i < blockEnd; i++) {
+					tests++;
+					if ((candidates >>> (i - block) & 1) == 0)
+						continue;
+					if (primitives.intersect(i, tmp, ray) && tmp.t < ray.end) {
+						if (anyIntersection) {
+							counters.addTraversal(visited, tests);
+							return true;
+						}
+						ret = true;
+						ray.end = tmp.t;
+						if (outRecord != null)
+							outRecord.set(tmp);
+					}
+				}
+			}
+		}
+		counters.addTraversal(visited, tests);
+		return ret;
+	}
+
+	@Override
+	public void intersect(RayPacket packet, boolean anyIntersection) {
+		packet.intersectEach(this, anyIntersection);
+	}
+}
@@ -52,6 +52,12 @@ public abstract class Camera {
 	protected double viewHeight = 1.0;
 	public void setViewHeight(double viewHeight) { this.viewHeight = viewHeight; }
 	
+	/**
+	 * Compute the derived view values used for ray generation. This is called once
+	 * before rendering starts, since getRay may be called from many threads at once.
+	 */
+	public abstract void initView();
+
 	/**
 	 * Generate a ray that points out into the scene for the given (u,v) coordinate.
 	 * This coordinate corresponds to a point on the viewing window, where (0,0) is the
@@ -61,6 +67,36 @@ public abstract class Camera {
 	 * @param v The vertical coordinate (0 is bottom, 1 is top)
 	 */
 	public abstract void getRay(Ray outRay, double u, double v);
+
+	/**
+	 * Generate a ray as getRay does, along with its differentials: how its
+	 * origin and direction change from one pixel to the next. These are found
+	 * from the rays one pixel over in each direction, so every camera gets them.
+	 * @param outRay A space to return the output ray
+	 * @param u The horizontal coordinate (0 is left, 1 is right)
+	 * @param v The vertical coordinate (0 is bottom, 1 is top)
+	 * @param du The width of a pixel in u, or 0 for a ray without differentials
+	 * @param dv The height of a pixel in v
+	 */
+	public void getRay(Ray outRay, double u, double v, double du, double dv) {
+		if (du == 0 || dv == 0) {
+			getRay(outRay, u, v);
+			outRay.hasDifferentials = false;
+			return;
+		}
+		getRay(outRay, u + du, v);
+		outRay.dOdx.set(outRay.origin);
+		outRay.dDdx.set(outRay.direction);
+		getRay(outRay, u, v + dv);
+		outRay.dOdy.set(outRay.origin);
+		outRay.dDdy.set(outRay.direction);
+		getRay(outRay, u, v);
+		outRay.dOdx.sub(outRay.origin);
+		outRay.dDdx.sub(outRay.direction);
+		outRay.dOdy.sub(outRay.origin);
+		outRay.dDdy.sub(outRay.direction);
+		outRay.hasDifferentials = true;
+	}
 	
 	/**
 	 * Code for unit testing of cameras.
@@ -0,0 +1,211 @@
+package cs4620.ray2.service;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs4620.ray2.Image;
+import cs4620.ray2.RayTracer.ScenePath;
+import cs4620.ray2.RenderMonitor;
+import cs4620.ray2.RenderStats;
+
+/**
+ * A scene queued on a RenderService, and the state of its render. Jobs with a
+ * higher priority are started first, and jobs of equal priority in the order
+ * they were submitted.
+ *
+ * Finished blocks can be followed as they come (see subscribe). Each is sent
+ * as one record of little-endian values: the x and y of its lower left pixel,
+ * its width and height, and the progressive pass it belongs to, as five ints;
+ * then three floats (red, green, blue) per pixel, a row at a time from the top.
+ */
+public class RenderJob implements RenderMonitor, Comparable<RenderJob> {
+
+	public enum State { QUEUED, RUNNING, DONE, CANCELLED, FAILED }
+
+	/** Number of records held for a subscriber that falls behind before further ones are dropped. */
+	public static final int SUBSCRIBER_BACKLOG = 4096;
+
+	/** Sent to subscribers once the job is over. */
+	static final byte[] END = new byte[0];
+
+	protected final long id;
+	public long getId() { return id; }
+
+	/** Higher priorities are rendered first. */
+	protected final int priority;
+	public int getPriority() { return priority; }
+
+	/** Seconds the render may take, or 0 for no limit. */
+	protected final double timeBudget;
+	public double getTimeBudget() { return timeBudget; }
+
+	/** The scene file, or for XML sent with the job, where the files it names are looked for. */
+	protected final ScenePath scene;
+	public ScenePath getScene() { return scene; }
+
+	/** The scene XML, or null to read the scene file. */
+	protected final byte[] xml;
+
+	protected volatile State state = State.QUEUED;
+	public State getState() { return state; }
+
+	protected volatile boolean cancelled;
+
+	protected volatile String error;
+	public String getError() { return error; }
+
+	/** The image being rendered, once the scene is loaded. */
+	protected volatile Image image;
+	public Image getImage() { return image; }
+
+	/** How long each phase of the job took, and the rays it traced so far. */
+	protected final RenderStats stats;
+	public RenderStats getStats() { return stats; }
+
+	/** The final image as a PNG file, once the job is done. */
+	protected volatile byte[] png;
+	public byte[] getPng() { return png; }
+
+	protected final AtomicInteger blocks = new AtomicInteger();
+	protected volatile int passes;
+
+	/** System.currentTimeMillis() when the job was submitted, started and finished; 0 if it has not. */
+	protected final long submitted = System.currentTimeMillis();
+	protected volatile long started, finished;
+
+	private final List<BlockingQueue<byte[]>> subscribers = new CopyOnWriteArrayList<BlockingQueue<byte[]>>();
+
+	public RenderJob(long id, ScenePath scene, byte[] xml, int priority, double timeBudget) {
+		this.id = id;
+		this.scene = scene;
+		this.xml = xml;
+		this.priority = priority;
+		this.timeBudget = Math.max(0, timeBudget);
+		this.stats = new RenderStats(scene.getFile());
+	}
+
+	/**
+	 * Stop the job: if it is queued it will not be started, and if it is
+	 * rendering, no further blocks are started.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isOver() {
+		State s = state;
+		return s == State.DONE || s == State.CANCELLED || s == State.FAILED;
+	}
+
+	@Override
+	public void blockFinished(Image image, int x, int y, int width, int height, int pass) {
+		blocks.incrementAndGet();
+		passes = Math.max(passes, pass + 1);
+		if (subscribers.isEmpty())
+			return;
+
+		float[] colors = new float[3 * width * height];
+		image.getTile(x, y, width, height, colors, 0);
+		ByteBuffer record = ByteBuffer.allocate(4 * (5 + colors.length)).order(ByteOrder.LITTLE_ENDIAN);
+		record.putInt(x).putInt(y).putInt(width).putInt(height).putInt(pass);
+		record.asFloatBuffer().put(colors);
+		for (BlockingQueue<byte[]> subscriber : subscribers)
+			subscriber.offer(record.array());
+	}
+
+	/**
+	 * @return a queue that receives a record for every block finished from now
+	 * on, and END once the job is over
+	 */
+	public BlockingQueue<byte[]> subscribe() {
+		BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>(SUBSCRIBER_BACKLOG);
+		subscribers.add(queue);
+		if (isOver())
+			queue.offer(END);
+		return queue;
+	}
+
+	public void unsubscribe(BlockingQueue<byte[]> queue) {
+		subscribers.remove(queue);
+	}
+
+	void start() {
+		started = System.currentTimeMillis();
+		state = State.RUNNING;
+	}
+
+	/**
+	 * Drop the image and the encoded PNG of a job the service no longer
+	 * serves, along with any subscribers left.
+	 */
+	void release() {
+		image = null;
+		png = null;
+		subscribers.clear();
+	}
+
+	void finish(State state, String error) {
+		this.error = error;
+		this.finished = System.currentTimeMillis();
+		this.state = state;
+		for (BlockingQueue<byte[]> subscriber : subscribers) {
+			// Make room for the end marker, so a subscriber that fell behind still stops
+			while (!subscriber.offer(END))
+				subscriber.poll();
+		}
+	}
+
+	@Override
+	public int compareTo(RenderJob o) {
+		if (priority != o.priority)
+			return priority > o.priority ? -1 : 1;
+		return id < o.id ? -1 : id > o.id ? 1 : 0;
+	}
+
+	/**
+	 * @return the state of the job as a JSON object
+	 */
+	public String toJson() {
+		StringBuilder out = new StringBuilder();
+		out.append("{\"id\":").append(id);
+		out.append(",\"state\":\"").append(state.name().toLowerCase()).append('"');
+		out.append(",\"priority\":").append(priority);
+		out.append(",\"timeBudget\":").append(timeBudget);
+		out.append(",\"scene\":").append(quote(scene.getFile()));
+		out.append(",\"blocks\":").append(blocks.get());
+		out.append(",\"passes\":").append(passes);
+		if (image != null)
+			out.append(",\"width\":").append(image.getWidth()).append(",\"height\":").append(image.getHeight());
+		if (started != 0)
+			out.append(",\"queuedSeconds\":").append((started - submitted) / 1000.0);
+		if (started != 0)
+			out.append(",\"renderSeconds\":").append(((finished != 0 ? finished : System.currentTimeMillis()) - started) / 1000.0);
+		if (error != null)
+			out.append(",\"error\":").append(quote(error));
+		return out.append('}').toString();
+	}
+
+	static String quote(String s) {
+		StringBuilder out = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				out.append('\\').append(c);
+			else if (c < 0x20)
+				out.append(String.format("\\u%04x", (int) c));
+			else
+				out.append(c);
+		}
+		return out.append('"').toString();
+	}
+}
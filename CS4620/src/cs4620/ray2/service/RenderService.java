@@ -0,0 +1,540 @@
+package cs4620.ray2.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import cs4620.ray2.Image;
+import cs4620.ray2.Parser;
+import cs4620.ray2.PngEncoder;
+import cs4620.ray2.Progressive;
+import cs4620.ray2.RayTracer;
+import cs4620.ray2.RayTracer.ScenePath;
+import cs4620.ray2.RenderStats;
+import cs4620.ray2.ResourceCache;
+import cs4620.ray2.Scene;
+import cs4620.ray2.SceneContext;
+
+/**
+ * A long-running render server. Scenes are queued over a local HTTP interface
+ * and rendered one after another (or a few at a time) in the same JVM, so
+ * compiled code stays warm, and meshes with their trees, textures and cube
+ * maps are loaded only once for every job that uses them. No window is ever
+ * opened.
+ *
+ * The interface, on 127.0.0.1 only:
+ * <pre>
+ * POST   /jobs?path=scene.xml[&amp;priority=p][&amp;time=seconds]   queue a scene file
+ * POST   /jobs[?priority=p][&amp;time=seconds]  with scene XML as the body
+ * GET    /jobs                  the state of every job, as JSON
+ * GET    /jobs/{id}             the state of one job
+ * GET    /jobs/{id}/image.png   the image so far, or the final image once done
+ * GET    /jobs/{id}/image.exr   the image with its extra channels as OpenEXR
+ * GET    /jobs/{id}/tiles       every block as it is finished (see RenderJob)
+ * GET    /jobs/{id}/stats       phase timings and ray counts so far, as JSON (see RenderStats)
+ * DELETE /jobs/{id}             cancel a job and forget it
+ * </pre>
+ * Scene files, and files named by scenes sent as XML, are looked for under the
+ * root directory of the server. No scene may read a file outside the data
+ * directory, which is the root unless given separately: scenes in
+ * data/scenes/ray2 name meshes as ../../meshes/..., so serving them takes a
+ * root of data/scenes/ray2 and a data directory of data. A time budget renders
+ * the scene progressively for at most that long (the first pass always
+ * completes), stopping earlier at the sample count of the scene.
+ *
+ * Jobs that are over are kept, with their images, for a while so they can be
+ * fetched, and then forgotten: after a time (see setJobTtl), or oldest first
+ * once there are too many of them (see setMaxFinishedJobs).
+ */
+public class RenderService {
+
+	public static final int DEFAULT_PORT = 8620;
+
+	/** Directory scene files are looked for in */
+	protected final String root;
+
+	/** The data directory as given by SceneContext.canonical; scenes read no file outside it */
+	protected final Path dataPath;
+
+	/** Render threads per job; 0 for every available core */
+	protected final int threads;
+
+	/** Files loaded for one job and kept for the next */
+	protected final ResourceCache resources = new ResourceCache();
+
+	protected final PriorityBlockingQueue<RenderJob> queue = new PriorityBlockingQueue<RenderJob>();
+	protected final ConcurrentMap<Long, RenderJob> jobs = new ConcurrentHashMap<Long, RenderJob>();
+	private final AtomicLong nextId = new AtomicLong(1);
+
+	/** Milliseconds a job is kept once it is over */
+	protected long jobTtl = 60 * 60 * 1000;
+	public void setJobTtl(double seconds) { jobTtl = (long) (Math.max(0, seconds) * 1000); }
+
+	/** Number of jobs that are over kept at most */
+	protected int maxFinishedJobs = 256;
+	public void setMaxFinishedJobs(int maxFinishedJobs) { this.maxFinishedJobs = Math.max(0, maxFinishedJobs); }
+
+	private final ExecutorService workers;
+	private HttpServer server;
+
+	/**
+	 * @param root the directory scene files are looked for in, and the only one they may read from
+	 * @param threads render threads per job, or 0 for every available core
+	 * @param concurrentJobs the number of jobs rendered at the same time
+	 */
+	public RenderService(String root, int threads, int concurrentJobs) {
+		this(root, root, threads, concurrentJobs);
+	}
+
+	/**
+	 * @param root the directory scene files are looked for in
+	 * @param data the directory scenes and the files they name must be in
+	 * @param threads render threads per job, or 0 for every available core
+	 * @param concurrentJobs the number of jobs rendered at the same time
+	 */
+	public RenderService(String root, String data, int threads, int concurrentJobs) {
+		this.root = root;
+		this.dataPath = SceneContext.canonical(Paths.get(data));
+		this.threads = Math.max(0, threads);
+		workers = Executors.newFixedThreadPool(Math.max(1, concurrentJobs));
+		for (int i = 0; i < Math.max(1, concurrentJobs); i++) {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Start answering requests on a port of the loopback interface.
+	 */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/jobs", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					handleJobs(exchange);
+				}
+				catch (Throwable e) {
+					send(exchange, 500, "text/plain", String.valueOf(e).getBytes(StandardCharsets.UTF_8));
+				}
+				finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		System.out.println("Render service listening on http://127.0.0.1:" + server.getAddress().getPort() + "/jobs");
+	}
+
+	/**
+	 * Stop answering requests, cancel every job, and stop the workers.
+	 */
+	public void stop() {
+		if (server != null)
+			server.stop(0);
+		for (RenderJob job : jobs.values())
+			job.cancel();
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Queue a scene.
+	 *
+	 * @param scene the scene file, or for XML given here, its workspace
+	 * @param xml the scene XML, or null to read the file
+	 */
+	public RenderJob submit(ScenePath scene, byte[] xml, int priority, double timeBudget) {
+		evict();
+		RenderJob job = new RenderJob(nextId.getAndIncrement(), scene, xml, priority, timeBudget);
+		jobs.put(job.getId(), job);
+		queue.add(job);
+		return job;
+	}
+
+	public RenderJob getJob(long id) {
+		return jobs.get(id);
+	}
+
+	/**
+	 * Cancel a job, taking it off the queue if it has not started.
+	 */
+	public void cancel(RenderJob job) {
+		job.cancel();
+		if (queue.remove(job))
+			job.finish(RenderJob.State.CANCELLED, null);
+	}
+
+	/**
+	 * Cancel a job and forget it. Its image is dropped as soon as it is over.
+	 */
+	public void delete(RenderJob job) {
+		cancel(job);
+		jobs.remove(job.getId());
+		if (job.isOver())
+			job.release();
+	}
+
+	/**
+	 * Forget the jobs that have been over for longer than jobTtl, and then the
+	 * oldest of those left beyond maxFinishedJobs.
+	 */
+	protected void evict() {
+		long now = System.currentTimeMillis();
+		List<RenderJob> over = new ArrayList<RenderJob>();
+		for (RenderJob job : jobs.values()) {
+			if (!job.isOver())
+				continue;
+			if (now - job.finished > jobTtl)
+				forget(job);
+			else
+				over.add(job);
+		}
+		if (over.size() <= maxFinishedJobs)
+			return;
+		Collections.sort(over, new Comparator<RenderJob>() {
+			@Override
+			public int compare(RenderJob a, RenderJob b) {
+				return a.finished < b.finished ? -1 : a.finished > b.finished ? 1 : 0;
+			}
+		});
+		for (int i = 0; i < over.size() - maxFinishedJobs; i++)
+			forget(over.get(i));
+	}
+
+	private void forget(RenderJob job) {
+		if (jobs.remove(job.getId(), job))
+			job.release();
+	}
+
+	private void work() {
+		while (!Thread.currentThread().isInterrupted()) {
+			RenderJob job;
+			try {
+				job = queue.take();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			if (job.isCancelled()) {
+				job.finish(RenderJob.State.CANCELLED, null);
+				continue;
+			}
+			render(job);
+			// A job deleted while it rendered is not served any more
+			if (!jobs.containsKey(job.getId()))
+				job.release();
+			evict();
+		}
+	}
+
+	/**
+	 * Load, render and encode the scene of a job.
+	 */
+	protected void render(RenderJob job) {
+		job.start();
+		try {
+			Parser parser = new Parser(resources);
+			parser.setConfinement(dataPath);
+			InputStream in = job.xml == null ? null : new ByteArrayInputStream(job.xml);
+			long start = System.nanoTime();
+			Scene scene = (Scene) parser.parse(job.getScene(), in, Scene.class);
+			long parsed = System.nanoTime();
+			job.stats.addTime(RenderStats.PARSE, (parsed - start) / 1e9);
+			if (scene == null) {
+				job.finish(RenderJob.State.FAILED, "Could not parse the scene"
+						+ (parser.getError() != null ? ": " + parser.getError() : ""));
+				return;
+			}
+			scene.setTransform();
+			job.stats.addTime(RenderStats.TRANSFORM, (System.nanoTime() - parsed) / 1e9);
+			job.image = scene.getImage();
+
+			if (job.getTimeBudget() > 0) {
+				Progressive progressive = scene.getProgressive();
+				if (progressive == null) {
+					progressive = new Progressive();
+					progressive.setSamples(scene.getSamples() * scene.getSamples());
+					scene.setProgressive(progressive);
+				}
+				if (progressive.getTime() == 0 || progressive.getTime() > job.getTimeBudget())
+					progressive.setTime(job.getTimeBudget());
+			}
+
+			start = System.nanoTime();
+			RayTracer.build(scene);
+			job.stats.addTime(RenderStats.BUILD, (System.nanoTime() - start) / 1e9);
+			RayTracer tracer = new RayTracer();
+			tracer.setDisplay(false);
+			tracer.setThreads(threads);
+			tracer.setMonitor(job);
+			if (!job.isCancelled())
+				tracer.renderImage(scene, job.stats);
+
+			if (job.isCancelled()) {
+				job.finish(RenderJob.State.CANCELLED, null);
+				return;
+			}
+			start = System.nanoTime();
+			ByteArrayOutputStream png = new ByteArrayOutputStream();
+			PngEncoder.write(job.image, png, null);
+			job.png = png.toByteArray();
+			job.stats.addTime(RenderStats.WRITE, (System.nanoTime() - start) / 1e9);
+			job.stats.setComplete(true);
+			job.finish(RenderJob.State.DONE, null);
+		}
+		catch (Throwable e) {
+			e.printStackTrace();
+			job.finish(RenderJob.State.FAILED, String.valueOf(e));
+		}
+	}
+
+	private void handleJobs(HttpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		String[] path = exchange.getRequestURI().getPath().replaceAll("^/jobs/?", "").split("/");
+		Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+		if (path[0].isEmpty()) {
+			if (method.equals("POST")) {
+				RenderJob job;
+				try {
+					job = submit(exchange, query);
+				}
+				catch (NumberFormatException e) {
+					sendJson(exchange, 400, "{\"error\":" + RenderJob.quote("priority and time must be numbers: " + e.getMessage()) + "}");
+					return;
+				}
+				catch (SecurityException e) {
+					sendJson(exchange, 403, "{\"error\":" + RenderJob.quote(e.getMessage()) + "}");
+					return;
+				}
+				sendJson(exchange, job == null ? 400 : 201, job == null ? "{\"error\":\"no scene given\"}" : job.toJson());
+			}
+			else if (method.equals("GET")) {
+				StringBuilder out = new StringBuilder("[");
+				List<RenderJob> all = new ArrayList<RenderJob>(jobs.values());
+				for (int i = 0; i < all.size(); i++)
+					out.append(i > 0 ? "," : "").append(all.get(i).toJson());
+				sendJson(exchange, 200, out.append(']').toString());
+			}
+			else
+				send(exchange, 405, "text/plain", new byte[0]);
+			return;
+		}
+
+		RenderJob job = null;
+		try {
+			job = jobs.get(Long.parseLong(path[0]));
+		}
+		catch (NumberFormatException e) {
+			// No such job
+		}
+		if (job == null) {
+			sendJson(exchange, 404, "{\"error\":\"no such job\"}");
+			return;
+		}
+
+		String resource = path.length > 1 ? path[1] : "";
+		if (method.equals("DELETE") && resource.isEmpty()) {
+			delete(job);
+			sendJson(exchange, 200, job.toJson());
+		}
+		else if (!method.equals("GET"))
+			send(exchange, 405, "text/plain", new byte[0]);
+		else if (resource.isEmpty())
+			sendJson(exchange, 200, job.toJson());
+		else if (resource.equals("image.png"))
+			sendPng(exchange, job);
+		else if (resource.equals("image.exr"))
+			sendExr(exchange, job);
+		else if (resource.equals("tiles"))
+			sendTiles(exchange, job);
+		else if (resource.equals("stats"))
+			sendJson(exchange, 200, job.getStats().toJson());
+		else
+			sendJson(exchange, 404, "{\"error\":\"no such resource\"}");
+	}
+
+	private RenderJob submit(HttpExchange exchange, Map<String, String> query) throws IOException {
+		int priority = query.containsKey("priority") ? Integer.parseInt(query.get("priority")) : 0;
+		double time = query.containsKey("time") ? Double.parseDouble(query.get("time")) : 0;
+
+		if (query.containsKey("path")) {
+			ScenePath scene = new ScenePath(root, query.get("path"));
+			if (!SceneContext.canonical(scene.file).startsWith(dataPath))
+				throw new SecurityException("Scene outside of the data directory: " + query.get("path"));
+			return submit(scene, null, priority, time);
+		}
+
+		byte[] xml = readAll(exchange.getRequestBody());
+		if (xml.length == 0)
+			return null;
+		// The scene is not read from this file; files it names are looked for under the root
+		return submit(new ScenePath(root, "job-" + nextId.get() + ".xml"), xml, priority, time);
+	}
+
+	private static void sendPng(HttpExchange exchange, RenderJob job) throws IOException {
+		byte[] png = job.getPng();
+		if (png != null) {
+			send(exchange, 200, "image/png", png);
+			return;
+		}
+		Image image = job.getImage();
+		if (image == null) {
+			sendJson(exchange, 409, "{\"error\":\"not started\"}");
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", "image/png");
+		exchange.sendResponseHeaders(200, 0);
+		PngEncoder.write(image, exchange.getResponseBody(), null);
+	}
+
+	private static void sendExr(HttpExchange exchange, RenderJob job) throws IOException {
+		Image image = job.getImage();
+		if (image == null) {
+			sendJson(exchange, 409, "{\"error\":\"not started\"}");
+			return;
+		}
+		File file = File.createTempFile("job-" + job.getId(), ".exr");
+		try {
+			image.writeHDR(file.getPath());
+			if (file.length() == 0)
+				sendJson(exchange, 500, "{\"error\":\"could not write OpenEXR\"}");
+			else
+				send(exchange, 200, "image/x-exr", Files.readAllBytes(file.toPath()));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	private static void sendTiles(HttpExchange exchange, RenderJob job) throws IOException {
+		BlockingQueue<byte[]> tiles = job.subscribe();
+		try {
+			exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+			exchange.sendResponseHeaders(200, 0);
+			OutputStream out = exchange.getResponseBody();
+			while (true) {
+				byte[] record = tiles.take();
+				if (record == RenderJob.END)
+					break;
+				out.write(record);
+				if (tiles.isEmpty())
+					out.flush();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			job.unsubscribe(tiles);
+		}
+	}
+
+	private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+		send(exchange, status, "application/json", json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void send(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", type);
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		if (body.length > 0)
+			exchange.getResponseBody().write(body);
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1 << 16];
+		for (int n; (n = in.read(buffer)) > 0; )
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		Map<String, String> out = new HashMap<String, String>();
+		if (query == null)
+			return out;
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				out.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return out;
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+
+		String root = ".", data = null;
+		int port = DEFAULT_PORT, threads = 0, concurrentJobs = 1, maxFinishedJobs = -1;
+		double jobTtl = -1;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i].toLowerCase()) {
+			case "-p":
+				root = args[i + 1];
+				break;
+			case "-data":
+				data = args[i + 1];
+				break;
+			case "-port":
+				port = Integer.parseInt(args[i + 1]);
+				break;
+			case "-t":
+				threads = Integer.parseInt(args[i + 1]);
+				break;
+			case "-jobs":
+				concurrentJobs = Integer.parseInt(args[i + 1]);
+				break;
+			case "-keep":
+				jobTtl = Double.parseDouble(args[i + 1]);
+				break;
+			case "-maxjobs":
+				maxFinishedJobs = Integer.parseInt(args[i + 1]);
+				break;
+			default:
+				System.out.println("Usage: java RenderService [-p root] [-data directory scenes may read] [-port port] [-t threads per job] [-jobs concurrent jobs]"
+						+ " [-keep seconds finished jobs are kept] [-maxjobs finished jobs kept]");
+				return;
+			}
+		}
+
+		RenderService service = new RenderService(root, data != null ? data : root, threads, concurrentJobs);
+		if (jobTtl >= 0)
+			service.setJobTtl(jobTtl);
+		if (maxFinishedJobs >= 0)
+			service.setMaxFinishedJobs(maxFinishedJobs);
+		service.start(port);
+	}
+}
@@ -3,6 +3,7 @@ package cs4620.ray2.shader;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Light;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Color;
 import egl.math.Colord;
@@ -40,6 +41,7 @@ public class CookTorrance extends Shader {
 	/**
 	 * Evaluate the intensity for a given intersection using the CookTorrance shading model.
 	 *
+	 * @param context Scratch space of the rendering thread.
 	 * @param outIntensity The color returned towards the source of the incoming ray.
 	 * @param scene The scene in which the surface exists.
 	 * @param ray The ray which intersected the surface.
@@ -47,7 +49,7 @@ public class CookTorrance extends Shader {
 	 * @param depth The recursion depth.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(RenderContext context, Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
 		// TODO#A7 Fill in this function.
 		// 1) Loop through each light in the scene.
 		// 2) If the intersection point is shadowed, skip the calculation for the light.
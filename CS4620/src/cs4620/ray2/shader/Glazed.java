@@ -4,6 +4,7 @@ import cs4620.ray2.shader.Shader;
 import cs4620.ray2.RayTracer;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Colord;
 import egl.math.Vector3d;
@@ -42,6 +43,7 @@ public class Glazed extends Shader {
 	/**
 	 * Evaluate the intensity for a given intersection using the Glass shading model.
 	 *
+	 * @param context Scratch space of the rendering thread.
 	 * @param outIntensity The color returned towards the source of the incoming ray.
 	 * @param scene The scene in which the surface exists.
 	 * @param ray The ray which intersected the surface.
@@ -49,7 +51,7 @@ public class Glazed extends Shader {
 	 * @param depth The recursion depth.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(RenderContext context, Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
 		// TODO#A7: fill in this function.
 		
 
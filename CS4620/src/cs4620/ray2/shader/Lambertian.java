@@ -1,8 +1,11 @@
 package cs4620.ray2.shader;
 
+import java.util.List;
+
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Light;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Color;
 import egl.math.Colord;
@@ -32,6 +35,7 @@ public class Lambertian extends Shader {
 	/**
 	 * Evaluate the intensity for a given intersection using the Lambert shading model.
 	 * 
+	 * @param context Scratch space of the rendering thread.
 	 * @param outIntensity The color returned towards the source of the incoming ray.
 	 * @param scene The scene in which the surface exists.
 	 * @param ray The ray which intersected the surface.
@@ -39,16 +43,27 @@ public class Lambertian extends Shader {
 	 * @param depth The recursion depth.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(RenderContext context, Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
 			
-		Vector3d incoming = new Vector3d();
-		Colord color = new Colord();
-		Ray shadowRay = new Ray();
+		RenderContext.Frame frame = context.frame(depth);
+		Vector3d incoming = frame.incoming;
+		Vector3d outgoing = frame.outgoing;
+		outgoing.set(ray.origin).sub(record.location).normalize();
+		Colord color = frame.color;
+		Colord surfaceColor = diffuseColor;
+		if (texture != null) {
+			texture.getTexColor(record.texCoords, record.getTexFootprint(), frame.texColor);
+			surfaceColor = frame.texColor;
+		}
+		boolean[] shadowed = findShadowedLights(context, scene, record);
+		List<Light> lights = scene.getLights();
 		
 		outIntensity.setZero();
-		for(Light light : scene.getLights()) {
-			if(!isShadowed(scene, light, record, shadowRay)) {
-				incoming.set(light.getDirection(record.location)).normalize();
+		for(int l = 0; l < lights.size(); l++) {
+			Light light = lights.get(l);
+			if(!shadowed[l]) {
+				light.getDirection(record.location, incoming);
+				incoming.normalize();
 								
 				double dotProd = record.normal.dot(incoming);
 				if (dotProd <= 0)
@@ -56,8 +71,7 @@ public class Lambertian extends Shader {
 				else {
 					double rSq= light.getRSq(record.location);
 					
-					color.set((texture == null) ? diffuseColor :
-						texture.getTexColor(record.texCoords))
+					color.set(surfaceColor)
 						 .mul(dotProd)
 						 .mul(light.intensity)
 						 .div(rSq);		
@@ -66,6 +80,12 @@ public class Lambertian extends Shader {
 				}
 			}
 		}
+		addEnvironmentLight(context, outIntensity, scene, record, outgoing, surfaceColor, depth);
+	}
+
+	@Override
+	protected void reflectance(IntersectionRecord record, Vector3d incoming, Vector3d outgoing, Colord surfaceColor, Colord outValue) {
+		outValue.set(surfaceColor).mul(Math.max(0, record.normal.dot(incoming)) / Math.PI);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+package cs4620.ray2.shader;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * An image decoded once into RGB floats, together with its mip pyramid: each
+ * level is half the size of the one before (rounding down, but never below
+ * one pixel), down to a single pixel, and each of its pixels is the average of
+ * the block of the level before that it covers.
+ *
+ * Values are the 8-bit image values scaled to [0, 1], the same numbers
+ * Color.fromIntRGB gives, so shading is unchanged for unfiltered lookups.
+ * Nothing here is changed after construction, so one MipMap can be shared by
+ * every texture and thread.
+ */
+public class MipMap {
+
+	/** The levels, each RGB by pixel, row by row from the top. */
+	private final float[][] levels;
+	private final int[] widths, heights;
+
+	public MipMap(BufferedImage image) {
+		int width = image.getWidth(), height = image.getHeight();
+		int count = 1;
+		for (int size = Math.max(width, height); size > 1; size /= 2)
+			count++;
+		levels = new float[count][];
+		widths = new int[count];
+		heights = new int[count];
+
+		int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+		float[] base = new float[3 * argb.length];
+		for (int i = 0; i < argb.length; i++) {
+			int rgb = argb[i];
+			base[3 * i] = ((rgb >> 16) & 0xFF) / 255f;
+			base[3 * i + 1] = ((rgb >> 8) & 0xFF) / 255f;
+			base[3 * i + 2] = (rgb & 0xFF) / 255f;
+		}
+		levels[0] = base;
+		widths[0] = width;
+		heights[0] = height;
+		for (int k = 1; k < count; k++)
+			downsample(k);
+	}
+
+	/**
+	 * Fill level k from level k - 1. A level of odd size gives its last row or
+	 * column to the last pixel of the next, so each of those averages up to
+	 * three rows or columns and every pixel counts.
+	 */
+	private void downsample(int k) {
+		int inWidth = widths[k - 1], inHeight = heights[k - 1];
+		int width = Math.max(1, inWidth / 2), height = Math.max(1, inHeight / 2);
+		float[] in = levels[k - 1], out = new float[3 * width * height];
+		for (int y = 0; y < height; y++) {
+			int y0 = Math.min(2 * y, inHeight - 1);
+			int y1 = y == height - 1 ? inHeight : Math.min(2 * y + 2, inHeight);
+			for (int x = 0; x < width; x++) {
+				int x0 = Math.min(2 * x, inWidth - 1);
+				int x1 = x == width - 1 ? inWidth : Math.min(2 * x + 2, inWidth);
+				float r = 0, g = 0, b = 0;
+				for (int j = y0; j < y1; j++) {
+					for (int i = x0; i < x1; i++) {
+						int p = 3 * (j * inWidth + i);
+						r += in[p];
+						g += in[p + 1];
+						b += in[p + 2];
+					}
+				}
+				float scale = 1f / ((x1 - x0) * (y1 - y0));
+				int p = 3 * (y * width + x);
+				out[p] = r * scale;
+				out[p + 1] = g * scale;
+				out[p + 2] = b * scale;
+			}
+		}
+		levels[k] = out;
+		widths[k] = width;
+		heights[k] = height;
+	}
+
+	/** @return the number of levels, the full-size image being level 0 */
+	public int getLevels() { return levels.length; }
+	public int getWidth(int level) { return widths[level]; }
+	public int getHeight(int level) { return heights[level]; }
+
+	/**
+	 * @return the pixels of a level, RGB by pixel, row by row from the top.
+	 * The array is shared and must not be changed.
+	 */
+	public float[] getLevel(int level) { return levels[level]; }
+}
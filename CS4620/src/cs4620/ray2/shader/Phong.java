@@ -1,8 +1,11 @@
 package cs4620.ray2.shader;
 
+import java.util.List;
+
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Light;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Color;
 import egl.math.Colord;
@@ -39,6 +42,7 @@ public class Phong extends Shader {
 	/**
 	 * Evaluate the intensity for a given intersection using the Phong shading model.
 	 *
+	 * @param context Scratch space of the rendering thread.
 	 * @param outIntensity The color returned towards the source of the incoming ray.
 	 * @param scene The scene in which the surface exists.
 	 * @param ray The ray which intersected the surface.
@@ -46,33 +50,41 @@ public class Phong extends Shader {
 	 * @param depth The recursion depth.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(RenderContext context, Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
 		
-		Vector3d incoming = new Vector3d();
-		Vector3d outgoing = new Vector3d();
+		RenderContext.Frame frame = context.frame(depth);
+		Vector3d incoming = frame.incoming;
+		Vector3d outgoing = frame.outgoing;
+		Vector3d halfVec = frame.direction;
 		outgoing.set(ray.origin).sub(record.location).normalize();
 
-		Colord color = new Colord();
-		Ray shadowRay = new Ray();
+		Colord color = frame.color;
+		Colord surfaceColor = diffuseColor;
+		if (texture != null) {
+			texture.getTexColor(record.texCoords, record.getTexFootprint(), frame.texColor);
+			surfaceColor = frame.texColor;
+		}
+		boolean[] shadowed = findShadowedLights(context, scene, record);
+		List<Light> lights = scene.getLights();
 		
 		outIntensity.setZero();
-		for(Light light : scene.getLights()) {
-			if(!isShadowed(scene, light, record, shadowRay)) {
-				incoming.set(light.getDirection(record.location)).normalize();
+		for(int l = 0; l < lights.size(); l++) {
+			Light light = lights.get(l);
+			if(!shadowed[l]) {
+				light.getDirection(record.location, incoming);
+				incoming.normalize();
 				
 				double dotProd = record.normal.dot(incoming);
 				if (dotProd <= 0)
 					continue;
 				else {
-					Vector3d halfVec = new Vector3d();
 					halfVec.set(incoming).add(outgoing).normalize();
 					
 					double halfDotNormal = Math.max(0.0, halfVec.dot(record.normal));
 					double factor = Math.pow(halfDotNormal, exponent);
 					double rSq = light.getRSq(record.location);
 					
-					color.set((texture == null) ? diffuseColor :
-						texture.getTexColor(record.texCoords))
+					color.set(surfaceColor)
 						 .mul(dotProd)
 						 .addMultiple(factor, specularColor)
 						 .mul(light.intensity)
@@ -82,6 +94,75 @@ public class Phong extends Shader {
 				}
 			}
 		}
+		addEnvironmentLight(context, outIntensity, scene, record, outgoing, surfaceColor, depth);
+	}
+
+	/**
+	 * The shading of shade per unit of incoming radiance, which treats light
+	 * intensity as irradiance times pi.
+	 */
+	@Override
+	protected void reflectance(IntersectionRecord record, Vector3d incoming, Vector3d outgoing, Colord surfaceColor, Colord outValue) {
+		double dotProd = record.normal.dot(incoming);
+		if (dotProd <= 0) {
+			outValue.setZero();
+			return;
+		}
+		double hx = incoming.x + outgoing.x, hy = incoming.y + outgoing.y, hz = incoming.z + outgoing.z;
+		double hLen = Math.sqrt(hx * hx + hy * hy + hz * hz);
+		double halfDotNormal = hLen == 0 ? 0 : Math.max(0.0, (hx * record.normal.x + hy * record.normal.y + hz * record.normal.z) / hLen);
+		outValue.set(surfaceColor)
+				.mul(dotProd)
+				.addMultiple(Math.pow(halfDotNormal, exponent), specularColor)
+				.mul(1 / Math.PI);
+	}
+
+	/**
+	 * Picks either a cosine-distributed direction or, in proportion to the
+	 * brightness of the specular color, the mirror of outgoing about a half
+	 * vector drawn from the highlight lobe.
+	 */
+	@Override
+	protected double sampleReflectance(IntersectionRecord record, Vector3d outgoing, Colord surfaceColor,
+			double u1, double u2, Vector3d outIncoming) {
+		double specular = specularWeight(surfaceColor);
+		if (u1 < specular) {
+			u1 /= specular;
+			double cosTheta = Math.pow(u1, 1 / (exponent + 1));
+			double sinTheta = Math.sqrt(Math.max(0, 1 - cosTheta * cosTheta));
+			double phi = 2 * Math.PI * u2;
+			setInFrame(record.normal, sinTheta * Math.cos(phi), sinTheta * Math.sin(phi), cosTheta, outIncoming);
+			double outDotHalf = outgoing.dot(outIncoming);
+			outIncoming.mul(2 * outDotHalf).sub(outgoing);
+		}
+		else
+			sampleCosine(record.normal, (u1 - specular) / (1 - specular), u2, outIncoming);
+		return reflectancePdf(record, outgoing, surfaceColor, outIncoming);
+	}
+
+	@Override
+	protected double reflectancePdf(IntersectionRecord record, Vector3d outgoing, Colord surfaceColor, Vector3d incoming) {
+		double specular = specularWeight(surfaceColor);
+		double cosine = Math.max(0, record.normal.dot(incoming)) / Math.PI;
+		if (specular == 0)
+			return cosine;
+		double hx = incoming.x + outgoing.x, hy = incoming.y + outgoing.y, hz = incoming.z + outgoing.z;
+		double hLen = Math.sqrt(hx * hx + hy * hy + hz * hz);
+		double lobe = 0;
+		if (hLen > 0) {
+			double cosHalf = (hx * record.normal.x + hy * record.normal.y + hz * record.normal.z) / hLen;
+			double outDotHalf = (hx * outgoing.x + hy * outgoing.y + hz * outgoing.z) / hLen;
+			if (cosHalf > 0 && outDotHalf > 0)
+				lobe = (exponent + 1) / (2 * Math.PI) * Math.pow(cosHalf, exponent) / (4 * outDotHalf);
+		}
+		return specular * lobe + (1 - specular) * cosine;
+	}
+
+	/** @return the share of samples drawn from the highlight lobe */
+	private double specularWeight(Colord surfaceColor) {
+		double specular = specularColor.x + specularColor.y + specularColor.z;
+		double diffuse = surfaceColor.x + surfaceColor.y + surfaceColor.z;
+		return specular + diffuse > 0 ? specular / (specular + diffuse) : 0;
 	}
 
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package cs4620.ray2.shader;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Colord;
 
@@ -19,12 +20,13 @@ public class RGBNormals extends Shader {
 	/**
 	 * XYZ component to RGB encoding of the normal vector at the intersection point.
 	 * 
+	 * @param context Scratch space of the rendering thread.
 	 * @param outIntensity The color returned towards the source of the incoming ray.
 	 * @param scene The scene in which the surface exists.
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 */
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(RenderContext context, Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
 		outIntensity.x = (record.normal.x + 1) / 2;
 		outIntensity.y = (record.normal.y + 1) / 2;
 		outIntensity.z = (record.normal.z + 1) / 2;
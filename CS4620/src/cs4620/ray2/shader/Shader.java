@@ -1,10 +1,16 @@
 package cs4620.ray2.shader;
 
+import java.util.List;
+
+import cs4620.ray2.Cubemap;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Light;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RayPacket;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Colord;
+import egl.math.Vector2d;
 import egl.math.Vector3d;
 
 /**
@@ -25,15 +31,17 @@ public abstract class Shader {
 	
 	/**	
 	 * Calculate the intensity (color) for this material at the intersection described in
-	 * the record contained in workspace.
+	 * the record contained in workspace. Temporaries should come from the frame of
+	 * context at this depth rather than be allocated, since this runs once per hit.
 	 * 	 
+	 * @param context Scratch space of the rendering thread.
 	 * @param outIntensity The color returned towards the source of the incoming ray.
 	 * @param scene The scene in which the surface exists.
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
 	 */
-	public abstract void shade(Colord outIntensity, Scene scene, Ray ray, 
+	public abstract void shade(RenderContext context, Colord outIntensity, Scene scene, Ray ray, 
 			IntersectionRecord record, int depth);
 	
 	/**
@@ -50,19 +58,208 @@ public abstract class Shader {
 	 * false otherwise.
 	 */
 	protected boolean isShadowed(Scene scene, Light light, IntersectionRecord record, Ray shadowRay) {		
+		setShadowRay(light, record, shadowRay);
+		return scene.getAnyIntersection(shadowRay);
+	}
+
+	/**
+	 * Find which lights are blocked from the given intersection point. The shadow rays
+	 * towards all lights share an origin, so they are intersected as packets.
+	 *
+	 * @param context Scratch space of the rendering thread.
+	 * @param scene The scene in which the surface exists.
+	 * @param record The intersection point on a surface.
+	 * @return entry i is true if there is a surface between the point and light i of
+	 * the scene. The array belongs to the calling thread and is only valid until its
+	 * next call to this method.
+	 */
+	protected boolean[] findShadowedLights(RenderContext context, Scene scene, IntersectionRecord record) {
+		List<Light> lights = scene.getLights();
+		boolean[] shadowed = context.shadowedLights(lights.size());
+		RayPacket packet = context.shadowPacket;
+
+		for (int first = 0; first < lights.size(); first += RayPacket.MAX_SIZE) {
+			int last = Math.min(lights.size(), first + RayPacket.MAX_SIZE);
+			packet.clear();
+			for (int i = first; i < last; i++) {
+				setShadowRay(lights.get(i), record, context.shadowRay);
+				packet.add(context.shadowRay);
+			}
+			scene.getAnyIntersection(packet);
+			for (int i = first; i < last; i++)
+				shadowed[i] = packet.hit[i - first];
+		}
+		return shadowed;
+	}
+
+	/**
+	 * Set shadowRay to start at the intersection point and end at the light.
+	 */
+	private void setShadowRay(Light light, IntersectionRecord record, Ray shadowRay) {
 		// Setup the shadow ray to start at surface and end at light
 		shadowRay.origin.set(record.location);
-		shadowRay.direction.set(light.getDirection(record.location));
+		light.getDirection(record.location, shadowRay.direction);
 
 		double end = light.getShadowRayEnd(record.location);//shadowRay.direction.len();
 		shadowRay.direction.normalize();
 		
 		// Set the ray to end at the light
 		shadowRay.makeOffsetSegment(end);
-		
-		return scene.getAnyIntersection(shadowRay);
 	}
 	
+	/**
+	 * Set outValue to the light reflected towards outgoing per unit radiance
+	 * arriving from incoming: the BRDF times the cosine of the angle of
+	 * incidence. This is what the environment lights the surface through; the
+	 * default reflects nothing, so a shader that does not override it is lit by
+	 * the scene's lights only.
+	 *
+	 * @param record The intersection point on a surface.
+	 * @param incoming Unit direction towards the light.
+	 * @param outgoing Unit direction towards the viewer.
+	 * @param surfaceColor The diffuse color at the point, after texturing.
+	 * @param outValue Set to the reflected light.
+	 */
+	protected void reflectance(IntersectionRecord record, Vector3d incoming, Vector3d outgoing, Colord surfaceColor, Colord outValue) {
+		outValue.setZero();
+	}
+
+	/**
+	 * Pick a direction to gather light from, ideally in proportion to
+	 * reflectance. The default picks directions about the normal with density
+	 * proportional to the cosine, which suits diffuse surfaces.
+	 *
+	 * @param u1, u2 Random numbers in [0, 1).
+	 * @param outIncoming Set to the unit direction picked.
+	 * @return The probability density per unit solid angle of the direction.
+	 */
+	protected double sampleReflectance(IntersectionRecord record, Vector3d outgoing, Colord surfaceColor,
+			double u1, double u2, Vector3d outIncoming) {
+		sampleCosine(record.normal, u1, u2, outIncoming);
+		return reflectancePdf(record, outgoing, surfaceColor, outIncoming);
+	}
+
+	/**
+	 * @return The probability density per unit solid angle with which
+	 * sampleReflectance picks incoming.
+	 */
+	protected double reflectancePdf(IntersectionRecord record, Vector3d outgoing, Colord surfaceColor, Vector3d incoming) {
+		return Math.max(0, record.normal.dot(incoming)) / Math.PI;
+	}
+
+	/**
+	 * Set outDirection to a direction about a unit axis with density cos / pi
+	 * per unit solid angle.
+	 */
+	protected static void sampleCosine(Vector3d axis, double u1, double u2, Vector3d outDirection) {
+		double r = Math.sqrt(u1), phi = 2 * Math.PI * u2;
+		double x = r * Math.cos(phi), y = r * Math.sin(phi), z = Math.sqrt(Math.max(0, 1 - u1));
+		setInFrame(axis, x, y, z, outDirection);
+	}
+
+	/**
+	 * Set outDirection to (x, y, z) in an orthonormal frame whose third axis is
+	 * the unit vector axis (Duff et al., "Building an Orthonormal Basis, Revisited").
+	 */
+	protected static void setInFrame(Vector3d axis, double x, double y, double z, Vector3d outDirection) {
+		double sign = Math.copySign(1.0, axis.z);
+		double a = -1 / (sign + axis.z);
+		double b = axis.x * axis.y * a;
+		outDirection.set(
+				x * (1 + sign * axis.x * axis.x * a) + y * b + z * axis.x,
+				x * sign * b + y * (sign + axis.y * axis.y * a) + z * axis.y,
+				-x * sign * axis.x - y * axis.y + z * axis.z);
+	}
+
+	/**
+	 * Add the light of the scene's environment map to outIntensity, if the map
+	 * is set to light surfaces. Each sample takes one direction from the map,
+	 * by its brightness, and one from the material through sampleReflectance,
+	 * and weights the two by the power heuristic (Veach's multiple importance
+	 * sampling): the map handles small bright areas, the material glossy
+	 * highlights. The shadow rays of all samples are intersected as packets.
+	 *
+	 * @param context Scratch space of the rendering thread.
+	 * @param outIntensity The color to add to.
+	 * @param scene The scene in which the surface exists.
+	 * @param record The intersection point on a surface.
+	 * @param outgoing Unit direction towards the viewer.
+	 * @param surfaceColor The diffuse color at the point, after texturing.
+	 * @param depth The depth of the ray that hit the point, which the random
+	 * numbers of the samples are derived from.
+	 */
+	protected void addEnvironmentLight(RenderContext context, Colord outIntensity, Scene scene, IntersectionRecord record,
+			Vector3d outgoing, Colord surfaceColor, int depth) {
+		Cubemap environment = scene.getCubemap();
+		if (environment == null || environment.getLightSamples() == 0)
+			return;
+
+		int samples = environment.getLightSamples();
+		Vector3d direction = context.sampleDirection;
+		Vector2d seed = context.sampleSeed;
+		RayPacket packet = context.shadowPacket;
+		double[] colors = context.sampleColors;
+
+		for (int first = 0; first < samples; first += RayPacket.MAX_SIZE / 2) {
+			int last = Math.min(samples, first + RayPacket.MAX_SIZE / 2);
+			packet.clear();
+			for (int i = first; i < last; i++) {
+				seed.set(context.random(depth, 4*i), context.random(depth, 4*i+1));
+				environment.generate(seed, direction);
+				double lightPdf = environment.pdf(direction);
+				addEnvironmentSample(context, environment, record, outgoing, surfaceColor, lightPdf,
+						reflectancePdf(record, outgoing, surfaceColor, direction));
+
+				double materialPdf = sampleReflectance(record, outgoing, surfaceColor,
+						context.random(depth, 4*i+2), context.random(depth, 4*i+3), direction);
+				addEnvironmentSample(context, environment, record, outgoing, surfaceColor, materialPdf,
+						environment.pdf(direction));
+			}
+			scene.getAnyIntersection(packet);
+			for (int k = 0; k < packet.size; k++) {
+				if (!packet.hit[k])
+					outIntensity.add(colors[3*k] / samples, colors[3*k+1] / samples, colors[3*k+2] / samples);
+			}
+		}
+	}
+
+	/**
+	 * Queue the shadow ray of one environment light sample in the direction
+	 * context.sampleDirection, unless it contributes nothing.
+	 *
+	 * @param pdf The density the direction was picked with.
+	 * @param otherPdf The density the other strategy would have picked it with.
+	 */
+	private void addEnvironmentSample(RenderContext context, Cubemap environment, IntersectionRecord record,
+			Vector3d outgoing, Colord surfaceColor, double pdf, double otherPdf) {
+		Vector3d direction = context.sampleDirection;
+		if (!(pdf > 0) || record.normal.dot(direction) <= 0)
+			return;
+
+		Colord reflected = context.sampleReflectance;
+		reflectance(record, direction, outgoing, surfaceColor, reflected);
+		if (reflected.x <= 0 && reflected.y <= 0 && reflected.z <= 0)
+			return;
+		Colord radiance = context.sampleRadiance;
+		radiance.setZero();
+		environment.evaluate(direction, radiance);
+		if (radiance.x <= 0 && radiance.y <= 0 && radiance.z <= 0)
+			return;
+
+		double weight = pdf / (pdf * pdf + otherPdf * otherPdf);
+		RayPacket packet = context.shadowPacket;
+		double[] colors = context.sampleColors;
+		int k = packet.size;
+		colors[3*k] = reflected.x * radiance.x * weight;
+		colors[3*k+1] = reflected.y * radiance.y * weight;
+		colors[3*k+2] = reflected.z * radiance.z * weight;
+
+		Ray shadowRay = context.shadowRay;
+		shadowRay.set(record.location, direction);
+		shadowRay.makeOffsetRay();
+		packet.add(shadowRay);
+	}
+
 	protected double fresnel(Vector3d normal, Vector3d outgoing, double refractiveIndex) {
 		//TODO#A7 compute the fresnel term using the equation in the lecture
 
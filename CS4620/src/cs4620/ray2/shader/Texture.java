@@ -2,10 +2,13 @@ package cs4620.ray2.shader;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 
 import javax.imageio.ImageIO;
 
-import cs4620.ray2.RayTracer;
+import cs4620.ray2.ResourceCache;
+import cs4620.ray2.SceneContext;
+import cs4620.ray2.SceneResource;
 import egl.math.Colord;
 import egl.math.Vector2d;
 
@@ -16,31 +19,158 @@ import egl.math.Vector2d;
  * @author eschweickart
  *
  */
-public abstract class Texture {
+public abstract class Texture implements SceneResource {
+	/** Lookups take the nearest pixel of the full-size image. */
+	public static final String NEAREST = "nearest";
+	/** Lookups blend the four nearest pixels of the full-size image. */
+	public static final String BILINEAR = "bilinear";
+	/**
+	 * Lookups blend the four nearest pixels on the two mip levels whose pixels
+	 * are closest in size to the footprint of the lookup.
+	 */
+	public static final String TRILINEAR = "trilinear";
+
 	/** The image used when looking up UV coordinates. */
 	protected BufferedImage image;
+	/** The image decoded to floats, with its mip levels. */
+	protected MipMap mipmap;
+	/** Size of the image in pixels. */
+	protected int width, height;
+	/** How lookups are filtered: NEAREST, BILINEAR or TRILINEAR. */
+	protected String filter = NEAREST;
+	/** Where the scene this texture belongs to was loaded from, or null if it was made in code. */
+	protected SceneContext context;
+	@Override
+	public void setSceneContext(SceneContext context) { this.context = context; }
+
 	/** Return the BufferedImage used for lookup. */
 	public BufferedImage getImage() { return image; }
-	/** Set the BufferedImage from a given file on disk. */
+	/** Return the decoded image and its mip levels. */
+	public MipMap getMipMap() { return mipmap; }
+	/**
+	 * Set the BufferedImage from a given file on disk. Every texture of a
+	 * resource cache that names the same file shares the image and its mip levels.
+	 * @throws IllegalArgumentException if the file cannot be read
+	 */
 	public void setImage(String filename) {
-		System.out.println("Loading: " + RayTracer.sceneWorkspace.resolve(filename));
+		SceneContext scene = context != null ? context : SceneContext.local();
 		try {
-			File f = new File(RayTracer.sceneWorkspace.resolve(filename));
-			image = ImageIO.read(f);
-		} catch (Exception e) {
-			System.err.println("Error loading texture: " + e);
-			System.exit(1);
+			Pixels loaded = scene.getResources().get("texture", scene.resolve(filename), Pixels.class,
+					new ResourceCache.Loader<Pixels>() {
+				@Override
+				public Pixels load(String path) throws IOException {
+					System.out.println("Loading: " + path);
+					BufferedImage image = ImageIO.read(new File(path));
+					if (image == null)
+						throw new IOException("Unsupported image format: " + path);
+					Pixels loaded = new Pixels();
+					loaded.image = image;
+					loaded.mipmap = new MipMap(image);
+					return loaded;
+				}
+			});
+			image = loaded.image;
+			width = image.getWidth();
+			height = image.getHeight();
+			mipmap = loaded.mipmap;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Error loading texture: " + e, e);
 		}
 	}
-	
+
+	/** An image file as loaded, shared by the textures using it. */
+	private static class Pixels {
+		BufferedImage image;
+		MipMap mipmap;
+	}
+
+	public String getFilter() { return filter; }
+	/** Set how lookups are filtered: nearest (the default), bilinear or trilinear. */
+	public void setFilter(String filter) {
+		String name = filter.trim().toLowerCase();
+		if (!name.equals(NEAREST) && !name.equals(BILINEAR) && !name.equals(TRILINEAR))
+			throw new IllegalArgumentException("Unknown texture filter: " + filter);
+		this.filter = name.equals(NEAREST) ? NEAREST : name.equals(BILINEAR) ? BILINEAR : TRILINEAR;
+	}
+
 	/** Default constructor. Creates an empty Texture object. */
 	public Texture() {	}
-	
+
+	/**
+	 * Get the texture color at a given UV coordinate, as seen from close up:
+	 * trilinear lookups read the full-size image.
+	 *
+	 * @param texCoord The UV texture coordinates.
+	 * @param outColor Set to the color at the given point.
+	 */
+	public void getTexColor(Vector2d texCoord, Colord outColor) {
+		getTexColor(texCoord, 0, outColor);
+	}
+
 	/**
-	 * Get the texture color at a given UV coordinate.
-	 * 
+	 * Get the texture color at a given UV coordinate, filtered over a footprint.
+	 *
 	 * @param texCoord The UV texture coordinates.
-	 * @return The color at the given point.
+	 * @param footprint The width in UV units of the area the lookup stands for,
+	 * which picks the mip level of trilinear lookups; 0 for a point.
+	 * @param outColor Set to the color at the given point.
+	 */
+	public void getTexColor(Vector2d texCoord, double footprint, Colord outColor) {
+		if (mipmap == null) {
+			System.err.println("Warning: Texture uninitialized!");
+			outColor.setZero();
+			return;
+		}
+
+		double u = texCoord.x, v = 1.0 - texCoord.y;
+		if (filter == NEAREST) {
+			int x = wrap((int) (u * width + 0.5), width);
+			int y = wrap((int) (v * height + 0.5), height);
+			float[] pixels = mipmap.getLevel(0);
+			int p = 3 * (y * width + x);
+			outColor.set(pixels[p], pixels[p + 1], pixels[p + 2]);
+			return;
+		}
+
+		// Level at which one pixel is as wide as the footprint
+		double level = 0;
+		if (filter == TRILINEAR && footprint > 0)
+			level = Math.min(mipmap.getLevels() - 1, Math.max(0, Math.log(footprint * Math.max(width, height)) / Math.log(2)));
+		int lower = (int) level;
+		double t = level - lower;
+		bilinear(lower, u, v, outColor);
+		if (t > 0) {
+			double r = outColor.x, g = outColor.y, b = outColor.z;
+			bilinear(lower + 1, u, v, outColor);
+			outColor.set(r + t * (outColor.x - r), g + t * (outColor.y - g), b + t * (outColor.z - b));
+		}
+	}
+
+	/**
+	 * Set outColor to the blend of the four pixels of a mip level around a
+	 * point, with (0, 0) the top left corner of the image and (1, 1) the bottom right.
+	 */
+	private void bilinear(int level, double u, double v, Colord outColor) {
+		int w = mipmap.getWidth(level), h = mipmap.getHeight(level);
+		float[] pixels = mipmap.getLevel(level);
+		double fx = u * w - 0.5, fy = v * h - 0.5;
+		int x = (int) Math.floor(fx), y = (int) Math.floor(fy);
+		double sx = fx - x, sy = fy - y;
+		int x0 = wrap(x, w), x1 = wrap(x + 1, w);
+		int row0 = wrap(y, h) * w, row1 = wrap(y + 1, h) * w;
+		int p00 = 3 * (row0 + x0), p10 = 3 * (row0 + x1), p01 = 3 * (row1 + x0), p11 = 3 * (row1 + x1);
+		double w00 = (1 - sx) * (1 - sy), w10 = sx * (1 - sy), w01 = (1 - sx) * sy, w11 = sx * sy;
+		outColor.set(
+				w00 * pixels[p00] + w10 * pixels[p10] + w01 * pixels[p01] + w11 * pixels[p11],
+				w00 * pixels[p00 + 1] + w10 * pixels[p10 + 1] + w01 * pixels[p01 + 1] + w11 * pixels[p11 + 1],
+				w00 * pixels[p00 + 2] + w10 * pixels[p10 + 2] + w01 * pixels[p01 + 2] + w11 * pixels[p11 + 2]);
+	}
+
+	/**
+	 * Map a pixel index that may lie outside the image to one inside it.
+	 *
+	 * @param i The index, in pixels.
+	 * @param size The number of pixels across the image in that direction.
 	 */
-	public abstract Colord getTexColor(Vector2d texCoord); 
+	protected abstract int wrap(int i, int size);
 }
@@ -8,6 +8,13 @@ import cs4620.ray2.Ray;
 import egl.math.Matrix4d;
 import egl.math.Vector3d;
 
+/**
+ * A transformed collection of surfaces. The surfaces under a group are not
+ * copied into the scene; instead the group appends one Instance per surface,
+ * which carries the combined transformation of the group and its parents.
+ * A surface or group referenced from several groups is therefore shared by
+ * all of its instances.
+ */
 public class Group extends Surface {
 
   /** List of objects under this group. */
@@ -31,14 +38,22 @@ public class Group extends Surface {
    * @param pMatTInv The inverse of the transpose of pMat.
    */
   public void setTransformation(Matrix4d pMat, Matrix4d pMatInv, Matrix4d pMatTInv) {
-    // TODO#A7: Compute tMat, tMatInv, tMatTInv using transformMat.
-    // Hint: We apply the transformation from bottom up the tree. 
-    // i.e. The child's transformation will be applied to objects before its parent's.
-	    
-    
-    // TODO#A7: Call setTransformation(tMat, tMatInv, tMatTInv) on each of the children.
+    // The child's transformation is applied to objects before its parent's
+    tMat = new Matrix4d(pMat).mulBefore(transformMat);
+    tMatInv = new Matrix4d(tMat).invert();
+    tMatTInv = new Matrix4d(tMatInv).transpose();
+
+    // Child groups combine their transformations with this one. Other surfaces
+    // stay in object space, since they are only reached through an Instance.
+    Matrix4d id = new Matrix4d();
+    for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();) {
+      Surface s = iter.next();
+      if (s instanceof Group)
+        s.setTransformation(tMat, tMatInv, tMatTInv);
+      else
+        s.setTransformation(id, id, id);
+    }
 
-	
 	  computeBoundingBox();
   }
   
@@ -69,8 +84,36 @@ public class Group extends Surface {
   public boolean intersect(IntersectionRecord outRecord, Ray ray) { return false; }
   public void computeBoundingBox() {  }
 
+  /**
+   * Append one Instance for every renderable surface under this group.
+   */
   public void appendRenderableSurfaces (ArrayList<Surface> in) {
-    for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();)
-      iter.next().appendRenderableSurfaces(in);
+    appendInstances(in, tMat != null ? tMat : transformMat);
+  }
+
+  /**
+   * Append instances of the surfaces under this group, placed in the world by
+   * toWorld. The transformation is passed down rather than read from tMat so
+   * that a group referenced from several parents gets the right one each time.
+   * @param toWorld The object-to-world matrix of this group, including its own transformation.
+   */
+  private void appendInstances(ArrayList<Surface> in, Matrix4d toWorld) {
+    ArrayList<Surface> objects = new ArrayList<Surface>();
+    for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();) {
+      Surface s = iter.next();
+      if (s instanceof Group) {
+        Group g = (Group) s;
+        g.appendInstances(in, new Matrix4d(toWorld).mulBefore(g.transformMat));
+      }
+      else
+        s.appendRenderableSurfaces(objects);
+    }
+    if (objects.isEmpty())
+      return;
+
+    Matrix4d inv = new Matrix4d(toWorld).invert();
+    Matrix4d tInv = new Matrix4d(inv).transpose();
+    for (Iterator<Surface> iter = objects.iterator(); iter.hasNext();)
+      in.add(new Instance(iter.next(), toWorld, inv, tInv));
   }
 }
\ No newline at end of file
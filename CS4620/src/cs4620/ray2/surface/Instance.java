@@ -0,0 +1,98 @@
+package cs4620.ray2.surface;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
+
+/**
+ * A transformed reference to a surface. Group creates one for every surface
+ * under it, carrying the transformation of the group, so the scene's
+ * acceleration structure is built over instances and forms the top level of a
+ * two-level hierarchy. Rays are moved into object space before they reach the
+ * surface, which is why one surface, such as a Mesh with its own BVH, can be
+ * shared by any number of instances: memory grows with the unique geometry,
+ * not with the number of instances.
+ */
+public class Instance extends Surface {
+
+	/** The instanced surface, in its own object space. */
+	protected final Surface object;
+
+	/**
+	 * @param object The surface to instance.
+	 * @param tMat The object-to-world transformation.
+	 * @param tMatInv The inverse of tMat.
+	 * @param tMatTInv The inverse of the transpose of tMat.
+	 */
+	public Instance(Surface object, Matrix4d tMat, Matrix4d tMatInv, Matrix4d tMatTInv) {
+		this.object = object;
+		this.shader = object.getShader();
+		setTransformation(tMat, tMatInv, tMatTInv);
+	}
+
+	public Surface getObject() { return object; }
+
+	/**
+	 * Intersect the surface with the ray in object space, and move the hit
+	 * point, its differentials and the normal back to world space. The ray
+	 * direction is not renormalized, so t is the same in both spaces; texture
+	 * coordinate differentials need no change either, since an affine map
+	 * keeps the tangent plane hits of the neighbouring rays where they were.
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		RenderContext context = RenderContext.current();
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			Ray ray = traversal.ray;
+			untransformRay(rayIn, ray);
+			if (!object.intersect(outRecord, ray))
+				return false;
+
+			if (outRecord != null) {
+				tMat.mulPos(outRecord.location);
+				tMatTInv.mulDir(outRecord.normal).normalize();
+				tMat.mulDir(outRecord.dPdx);
+				tMat.mulDir(outRecord.dPdy);
+			}
+			return true;
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	/**
+	 * Transform the corners of the bounding box of the surface to world space
+	 * and bound those.
+	 */
+	public void computeBoundingBox() {
+		Vector3d objMin = object.getMinBound(), objMax = object.getMaxBound();
+		if (objMin == null || objMax == null)
+			return;
+
+		minBound = new Vector3d(Double.POSITIVE_INFINITY);
+		maxBound = new Vector3d(Double.NEGATIVE_INFINITY);
+		Vector3d corner = new Vector3d();
+		for (int i = 0; i < 8; i++) {
+			corner.set((i & 1) == 0 ? objMin.x : objMax.x,
+					(i & 2) == 0 ? objMin.y : objMax.y,
+					(i & 4) == 0 ? objMin.z : objMax.z);
+			tMat.mulPos(corner);
+			minBound.set(Math.min(minBound.x, corner.x), Math.min(minBound.y, corner.y), Math.min(minBound.z, corner.z));
+			maxBound.set(Math.max(maxBound.x, corner.x), Math.max(maxBound.y, corner.y), Math.max(maxBound.z, corner.z));
+		}
+
+		Vector3d objAverage = object.getAveragePosition();
+		averagePosition = objAverage != null ? new Vector3d(objAverage) : new Vector3d(objMin).add(objMax).mul(0.5);
+		tMat.mulPos(averagePosition);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "Instance of " + object;
+	}
+}
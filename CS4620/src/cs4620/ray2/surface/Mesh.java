@@ -1,114 +1,559 @@
 package cs4620.ray2.surface;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 
+import cs4620.mesh.MeshCache;
 import cs4620.mesh.MeshData;
-import cs4620.mesh.OBJParser;
+import cs4620.mesh.OBJReader;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
-import cs4620.ray2.RayTracer;
+import cs4620.ray2.ResourceCache;
+import cs4620.ray2.SceneContext;
+import cs4620.ray2.SceneResource;
+import cs4620.ray2.accel.AccelStruct;
+import cs4620.ray2.accel.FlatBvh;
+import cs4620.ray2.accel.PackedTriangles;
+import cs4620.ray2.accel.PrimitiveSet;
+import cs4620.ray2.accel.WideBvh;
 import egl.math.Vector2d;
 import egl.math.Vector3d;
-import egl.math.Vector3i;
 
 /**
- * An interface between a MeshData and the ray tracer. When the Scene calls
- * appendRenderableSurfaces on this object, it appends all Triangles on the
- * mesh onto the given ArrayList. This way, the Scene has direct access to
- * all intersectable Surfaces in the scene.
- * 
+ * An interface between a MeshData and the ray tracer. The vertex and index
+ * data is copied into flat primitive arrays, and the triangles are only ever
+ * referred to by index: the mesh is a PrimitiveSet with a FlatBvh of its own,
+ * and it is appended to the Scene as a single renderable Surface. This needs
+ * a few dozen bytes per triangle instead of a Triangle object with its
+ * vectors and matrices.
+ *
  * @author eschweic
  *
  */
-public class Mesh extends Surface {
+public class Mesh extends Surface implements PrimitiveSet, SceneResource {
+
+	/** Vertex positions, three floats per vertex. */
+	private float[] positions;
+
+	/** Vertex normals, three floats per vertex, or null if the mesh has none. */
+	private float[] normals;
+
+	/** Vertex texture coordinates, two floats per vertex, or null if the mesh has none. */
+	private float[] uvs;
+
+	/** Vertex indices, three per triangle. */
+	private int[] indices;
+
+	/** The triangles packed for the leaf kernel of the tree, made when first asked for. */
+	private PackedTriangles packed;
+
+	/** The tree over the triangles of this mesh, loaded with the data or built by appendRenderableSurfaces. */
+	private FlatBvh accel;
+
+	/**
+	 * Number of children of the nodes of the tree the mesh is intersected with:
+	 * 2 to use accel itself, or 4 or 8 for a WideBvh collapsed from it. The
+	 * wide trees are experimental and slower than accel, so 2 is the default.
+	 */
+	private int treeWidth = 2;
+	public void setTreeWidth(int treeWidth) { this.treeWidth = treeWidth; }
+
+	/** Whether the tree tests leaves with PackedTriangles first; off by default, see FlatBvh.setPacked. */
+	private boolean packedLeaves = false;
+	public void setPacked(boolean packedLeaves) { this.packedLeaves = packedLeaves; }
+
+	/** The tree the mesh is intersected with, set by appendRenderableSurfaces. */
+	private AccelStruct tree;
+
+	/** Where the scene this mesh belongs to was loaded from, or null if it was made in code. */
+	private SceneContext context;
+
+	/**
+	 * The triangles of a mesh file in the leaf order of the tree over them, and
+	 * that tree as stored by FlatBvh.save. Every mesh using the file shares one
+	 * of these through the resource cache; none of it changes once loaded.
+	 */
+	private static class Geometry {
+		float[] positions, normals, uvs;
+		int[] indices;
+		ByteBuffer tree;
+
+		/** The triangles packed for leaf kernels, made when a tree first asks for them */
+		PackedTriangles packed;
+
+		/** Trees collapsed from the stored one, by width, made when first asked for */
+		final WideBvh[] wide = new WideBvh[WideBvh.MAX_WIDTH + 1];
+	}
 
-	/** The underlying data of this Mesh. */
-	private MeshData mesh = null;
+	/** The file data this mesh shares with others, or null if it has its own. */
+	private Geometry geometry;
 
 	/**
 	 * Default constructor; creates an empty mesh.
 	 */
 	public Mesh() { }
 
+	@Override
+	public void setSceneContext(SceneContext context) {
+		this.context = context;
+	}
+
 	/**
 	 * Construct a Mesh from an existing MeshData.
 	 * @param newMesh an existing MeshData.
 	 */
 	public Mesh(MeshData newMesh) {
-		mesh = newMesh;
+		setMeshData(newMesh);
 	}
-	
+
 	/**
-	 * Set the data in this mesh to the data of a mesh on disk.
+	 * Set the data in this mesh to the data of a mesh on disk. The file is
+	 * loaded once per resource cache, and meshes of any scene using the same
+	 * cache share its triangles and tree.
 	 * @param fileName the name of a .obj file on disk.
+	 * @throws IllegalArgumentException if the file cannot be read
 	 */
 	public void setData(String fileName) {
-		System.out.println("Loading " + RayTracer.sceneWorkspace.resolve(fileName));
-		mesh = (OBJParser.parse(RayTracer.sceneWorkspace.resolve(fileName))).flatten();
+		SceneContext scene = context != null ? context : SceneContext.local();
+		String file = scene.resolve(fileName);
+
+		Geometry geometry = null;
+		try {
+			geometry = scene.getResources().get("mesh", file, Geometry.class, new ResourceCache.Loader<Geometry>() {
+				@Override
+				public Geometry load(String path) throws IOException {
+					return loadGeometry(path);
+				}
+			});
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Error loading mesh: " + e, e);
+		}
+
+		positions = geometry.positions;
+		normals = geometry.normals;
+		uvs = geometry.uvs;
+		indices = geometry.indices;
+		packed = null;
+		tree = null;
+		this.geometry = geometry;
+		accel = new FlatBvh();
+		if (!accel.load(geometry.tree.duplicate().order(ByteOrder.LITTLE_ENDIAN), this)) {
+			// A tree built afresh is this mesh's own, not the file's
+			accel = null;
+			this.geometry = null;
+		}
+	}
+
+	/**
+	 * Read a mesh file and the tree over it. A binary cache next to the file is
+	 * used when it is up to date, together with the tree stored in it;
+	 * otherwise the .obj file is read, the tree is built, and the cache is
+	 * written.
+	 */
+	private static Geometry loadGeometry(String file) throws IOException {
+		Mesh mesh = new Mesh();
+		ByteBuffer tree = null;
+
+		MeshCache cache = null;
+		try {
+			cache = MeshCache.open(file);
+		} catch (IOException e) {
+			System.err.println("Ignoring mesh cache: " + e);
+		}
+		if (cache != null) {
+			System.out.println("Loading " + MeshCache.cacheFile(file));
+			mesh.setMeshData(cache.getMeshData());
+			tree = cache.getExtra();
+			mesh.accel = new FlatBvh();
+			if (tree == null || !mesh.accel.load(tree.duplicate().order(ByteOrder.LITTLE_ENDIAN), mesh)) {
+				mesh.accel.build(mesh);
+				tree = null;
+			}
+		}
+		else {
+			System.out.println("Loading " + file);
+			mesh.setMeshData(OBJReader.read(file));
+			mesh.accel = new FlatBvh();
+			mesh.accel.build(mesh);
+		}
+
+		if (tree == null) {
+			tree = ByteBuffer.allocate(mesh.accel.savedSize()).order(ByteOrder.LITTLE_ENDIAN);
+			mesh.accel.save(tree);
+			tree.flip();
+			if (cache == null)
+				mesh.writeCache(file, tree);
+		}
+
+		Geometry geometry = new Geometry();
+		geometry.positions = mesh.positions;
+		geometry.normals = mesh.normals;
+		geometry.uvs = mesh.uvs;
+		geometry.indices = mesh.indices;
+		geometry.tree = tree;
+		return geometry;
+	}
+
+	/**
+	 * Write the binary cache of the file this mesh was read from, with the tree
+	 * over its triangles (which are in the tree's leaf order by now).
+	 */
+	private void writeCache(String file, ByteBuffer tree) {
+		MeshData data = new MeshData();
+		data.vertexCount = positions.length / 3;
+		data.indexCount = indices.length;
+		data.positions = FloatBuffer.wrap(positions);
+		data.normals = normals == null ? null : FloatBuffer.wrap(normals);
+		data.uvs = uvs == null ? null : FloatBuffer.wrap(uvs);
+		data.indices = IntBuffer.wrap(indices);
+		try {
+			MeshCache.write(file, data, tree);
+		} catch (IOException e) {
+			System.err.println("Could not write mesh cache: " + e);
+		}
+	}
+
+	/**
+	 * Copy the vertex and index data out of a MeshData. The MeshData is not
+	 * referenced afterwards.
+	 */
+	private void setMeshData(MeshData mesh) {
+		positions = new float[3 * mesh.vertexCount];
+		copy(mesh.positions, positions);
+
+		normals = null;
+		if (mesh.hasNormals()) {
+			normals = new float[3 * mesh.vertexCount];
+			copy(mesh.normals, normals);
+		}
+
+		uvs = null;
+		if (mesh.hasUVs()) {
+			uvs = new float[2 * mesh.vertexCount];
+			copy(mesh.uvs, uvs);
+		}
+
+		indices = new int[mesh.indexCount - mesh.indexCount % 3];
+		copy(mesh.indices, indices);
+
+		packed = null;
+		accel = null;
+		tree = null;
+		geometry = null;
+	}
+
+	/**
+	 * Fill out from the start of a buffer, whatever its position.
+	 */
+	private static void copy(FloatBuffer buffer, float[] out) {
+		FloatBuffer source = buffer.duplicate();
+		source.clear();
+		source.get(out);
+	}
+
+	private static void copy(IntBuffer buffer, int[] out) {
+		IntBuffer source = buffer.duplicate();
+		source.clear();
+		source.get(out);
+	}
+
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		AccelStruct t = tree != null ? tree : accel;
+		return t != null && t.intersect(outRecord, rayIn, false);
+	}
+
+	public void computeBoundingBox() {
+		if (indices == null || indices.length == 0)
+			return;
+
+		double[] b = new double[6];
+		minBound = new Vector3d(Double.POSITIVE_INFINITY);
+		maxBound = new Vector3d(Double.NEGATIVE_INFINITY);
+		for (int i = 0; i < size(); i++) {
+			getBounds(i, b, 0);
+			minBound.x = Math.min(minBound.x, b[0]);
+			minBound.y = Math.min(minBound.y, b[1]);
+			minBound.z = Math.min(minBound.z, b[2]);
+			maxBound.x = Math.max(maxBound.x, b[3]);
+			maxBound.y = Math.max(maxBound.y, b[4]);
+			maxBound.z = Math.max(maxBound.z, b[5]);
+		}
+		averagePosition = new Vector3d(minBound).add(maxBound).mul(0.5);
 	}
-	
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {	return false; }
-	public void computeBoundingBox() {	}
 
+	/**
+	 * Build the tree over the triangles, collapsing it to a wide one if asked
+	 * to, and append this mesh as one surface.
+	 */
 	public void appendRenderableSurfaces (ArrayList<Surface> in) {
-		for (int i=0; i<mesh.indexCount/3; i++) {
-			Vector3i triVec = new Vector3i(mesh.indices.get(3*i),
-										   mesh.indices.get(3*i+1),
-										   mesh.indices.get(3*i+2));
-			Triangle t = new Triangle(this, new Vector3i(triVec), shader);
-			
-			t.setShader(this.shader);
-			t.setTransformation(this.tMat, this.tMatInv, this.tMatTInv);
-			
-			t.computeBoundingBox();
-			in.add(t);
+		if (indices == null)
+			return;
+		if (accel == null) {
+			accel = new FlatBvh();
+			accel.build(this);
+		}
+		if (treeWidth > 2) {
+			WideBvh wide = wideTree();
+			wide.setPacked(packedLeaves);
+			tree = wide;
+		} else {
+			accel.setPacked(packedLeaves);
+			tree = accel;
+		}
+		computeBoundingBox();
+		in.add(this);
+	}
+
+	/**
+	 * @return a WideBvh of treeWidth collapsed from accel, which meshes of the
+	 * same file collapse only once
+	 */
+	private WideBvh wideTree() {
+		int width = Math.max(2, Math.min(WideBvh.MAX_WIDTH, treeWidth));
+		if (geometry == null) {
+			WideBvh wide = new WideBvh();
+			wide.setWidth(width);
+			wide.collapse(accel);
+			return wide;
+		}
+		synchronized (geometry) {
+			if (geometry.wide[width] == null) {
+				WideBvh wide = new WideBvh();
+				wide.setWidth(width);
+				wide.collapse(accel);
+				geometry.wide[width] = wide;
+			}
+			return geometry.wide[width].share(this);
+		}
+	}
+
+	/**
+	 * @return the number of triangles
+	 */
+	@Override
+	public int size() {
+		return indices == null ? 0 : indices.length / 3;
+	}
+
+	@Override
+	public void getBounds(int i, double[] out, int offset) {
+		int p0 = 3 * indices[3*i], p1 = 3 * indices[3*i+1], p2 = 3 * indices[3*i+2];
+		for (int a = 0; a < 3; a++) {
+			out[offset+a] = Math.min(positions[p0+a], Math.min(positions[p1+a], positions[p2+a]));
+			out[offset+3+a] = Math.max(positions[p0+a], Math.max(positions[p1+a], positions[p2+a]));
 		}
 	}
-	
+
+	@Override
+	public void getCentroid(int i, double[] out, int offset) {
+		int p0 = 3 * indices[3*i], p1 = 3 * indices[3*i+1], p2 = 3 * indices[3*i+2];
+		for (int a = 0; a < 3; a++)
+			out[offset+a] = ((double) positions[p0+a] + positions[p1+a] + positions[p2+a]) / 3;
+	}
+
+	/**
+	 * Tests triangle i for intersection with ray. If an intersection is found
+	 * record is filled out with the information about the intersection and the
+	 * method returns true. It returns false otherwise and the information in
+	 * outRecord is not modified.
+	 *
+	 * @param tri the triangle index
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @return true if the triangle intersects the ray
+	 */
+	@Override
+	public boolean intersect(int tri, IntersectionRecord outRecord, Ray rayIn) {
+		// The ray is already in object space; an Instance takes care of transformations
+		Ray ray = rayIn;
+
+		int i0 = indices[3*tri], i1 = indices[3*tri+1], i2 = indices[3*tri+2];
+		double v0x = positions[3*i0], v0y = positions[3*i0+1], v0z = positions[3*i0+2];
+		double a = v0x - positions[3*i1];
+		double b = v0y - positions[3*i1+1];
+		double c = v0z - positions[3*i1+2];
+		double d = v0x - positions[3*i2];
+		double e = v0y - positions[3*i2+1];
+		double f = v0z - positions[3*i2+2];
+
+		double g = ray.direction.x;
+		double h = ray.direction.y;
+		double i = ray.direction.z;
+		double j = v0x - ray.origin.x;
+		double k = v0y - ray.origin.y;
+		double l = v0z - ray.origin.z;
+
+		double ei_hf = e * i - h * f;
+		double gf_di = g * f - d * i;
+		double dh_eg = d * h - e * g;
+		double M = a * ei_hf + b * gf_di + c * dh_eg;
+
+		double ak_jb = a * k - j * b;
+		double jc_al = j * c - a * l;
+		double bl_kc = b * l - k * c;
+
+		double t = -(f * (ak_jb) + e * (jc_al) + d * (bl_kc)) / M;
+		if (t > ray.end || t < ray.start)
+			return false;
+
+		double beta = (j * (ei_hf) + k * (gf_di) + l * (dh_eg)) / M;
+		if (beta < 0 || beta > 1)
+			return false;
+
+		double gamma = (i * (ak_jb) + h * (jc_al) + g * (bl_kc)) / M;
+		if (gamma < 0 || gamma + beta > 1)
+			return false;
+
+		// There was an intersection, fill out the intersection record
+		if (outRecord != null) {
+			outRecord.t = t;
+			ray.evaluate(outRecord.location, t);
+			outRecord.surface = this;
+
+			double alpha = 1 - beta - gamma;
+			if (normals == null) {
+				// Face normal: (v1 - v0) x (v2 - v0)
+				outRecord.normal.set(b * f - c * e, c * d - a * f, a * e - b * d);
+			} else {
+				outRecord.normal.set(
+						alpha * normals[3*i0] + beta * normals[3*i1] + gamma * normals[3*i2],
+						alpha * normals[3*i0+1] + beta * normals[3*i1+1] + gamma * normals[3*i2+1],
+						alpha * normals[3*i0+2] + beta * normals[3*i1+2] + gamma * normals[3*i2+2]);
+			}
+			outRecord.normal.normalize();
+
+			if (uvs != null) {
+				outRecord.texCoords.set(
+						alpha * uvs[2*i0] + beta * uvs[2*i1] + gamma * uvs[2*i2],
+						alpha * uvs[2*i0+1] + beta * uvs[2*i1+1] + gamma * uvs[2*i2+1]);
+			}
+			setDifferentials(i0, i1, i2, outRecord, ray);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Fill in the location and texture coordinate differentials of a hit on
+	 * the triangle with vertices i0, i1 and i2, from the differentials of the
+	 * ray. The neighbouring rays are followed to the plane of the triangle, and
+	 * their offsets from the hit written in terms of the two edges from i0,
+	 * which gives the change in the barycentric coordinates and so in UV.
+	 */
+	void setDifferentials(int i0, int i1, int i2, IntersectionRecord outRecord, Ray ray) {
+		double e1x = positions[3*i1] - positions[3*i0];
+		double e1y = positions[3*i1+1] - positions[3*i0+1];
+		double e1z = positions[3*i1+2] - positions[3*i0+2];
+		double e2x = positions[3*i2] - positions[3*i0];
+		double e2y = positions[3*i2+1] - positions[3*i0+1];
+		double e2z = positions[3*i2+2] - positions[3*i0+2];
+		if (!ray.offsetsOnPlane(outRecord.location, e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z, e1x * e2y - e1y * e2x,
+				outRecord.dPdx, outRecord.dPdy) || uvs == null) {
+			outRecord.dTexdx.setZero();
+			outRecord.dTexdy.setZero();
+			return;
+		}
+
+		// Least squares solution of dP = dBeta e1 + dGamma e2
+		double g11 = e1x * e1x + e1y * e1y + e1z * e1z;
+		double g12 = e1x * e2x + e1y * e2y + e1z * e2z;
+		double g22 = e2x * e2x + e2y * e2y + e2z * e2z;
+		double invDet = 1 / (g11 * g22 - g12 * g12);
+		double du1 = uvs[2*i1] - uvs[2*i0], dv1 = uvs[2*i1+1] - uvs[2*i0+1];
+		double du2 = uvs[2*i2] - uvs[2*i0], dv2 = uvs[2*i2+1] - uvs[2*i0+1];
+
+		Vector3d dP = outRecord.dPdx;
+		double r1 = e1x * dP.x + e1y * dP.y + e1z * dP.z, r2 = e2x * dP.x + e2y * dP.y + e2z * dP.z;
+		double dBeta = (g22 * r1 - g12 * r2) * invDet, dGamma = (g11 * r2 - g12 * r1) * invDet;
+		outRecord.dTexdx.set(dBeta * du1 + dGamma * du2, dBeta * dv1 + dGamma * dv2);
+
+		dP = outRecord.dPdy;
+		r1 = e1x * dP.x + e1y * dP.y + e1z * dP.z;
+		r2 = e2x * dP.x + e2y * dP.y + e2z * dP.z;
+		dBeta = (g22 * r1 - g12 * r2) * invDet;
+		dGamma = (g11 * r2 - g12 * r1) * invDet;
+		outRecord.dTexdy.set(dBeta * du1 + dGamma * du2, dBeta * dv1 + dGamma * dv2);
+	}
+
+	@Override
+	public void reorder(int[] order) {
+		int[] reordered = new int[indices.length];
+		for (int i = 0; i < order.length; i++) {
+			reordered[3*i] = indices[3*order[i]];
+			reordered[3*i+1] = indices[3*order[i]+1];
+			reordered[3*i+2] = indices[3*order[i]+2];
+		}
+		indices = reordered;
+		packed = null;
+		// The triangles are no longer in the order of the file's
+		geometry = null;
+	}
+
+	@Override
+	public PackedTriangles packTriangles() {
+		if (packed == null && indices != null) {
+			if (geometry == null)
+				packed = new PackedTriangles(positions, indices);
+			else {
+				// Meshes of the same file pack its triangles once
+				synchronized (geometry) {
+					if (geometry.packed == null)
+						geometry.packed = new PackedTriangles(positions, indices);
+					packed = geometry.packed;
+				}
+			}
+		}
+		return packed;
+	}
+
 	/**
 	 * @return True if the mesh has per-vertex normals specified.
 	 */
 	public boolean hasNormals() {
-		return mesh.hasNormals();
+		return normals != null;
 	}
-	
+
 	/**
 	 * @return True if the mesh has per-vertex UV coordinates.
 	 */
 	public boolean hasUVs() {
-		return mesh.hasUVs();
+		return uvs != null;
 	}
-	
+
 	/**
 	 * Get the position of a vertex.
 	 * @param index The vertex index.
 	 * @return The position of the specified vertex.
 	 */
 	public Vector3d getPosition(int index) {
-		return new Vector3d(mesh.positions.get(3*index),
-							mesh.positions.get(3*index+1),
-							mesh.positions.get(3*index+2));
+		return new Vector3d(positions[3*index],
+							positions[3*index+1],
+							positions[3*index+2]);
 	}
-	
+
 	/**
 	 * Get the UV-coordinates of a vertex, assuming the coordinates exist.
 	 * @param index The vertex index.
 	 * @return The UV-coordinates of the specified vertex.
 	 */
 	public Vector2d getUV(int index) {
-		return new Vector2d(mesh.uvs.get(2*index),
-							mesh.uvs.get(2*index+1));
+		return new Vector2d(uvs[2*index],
+							uvs[2*index+1]);
 	}
-	
+
 	/**
 	 * Get the normal of a vertex, assuming it exists.
 	 * @param index The vertex index.
 	 * @return The normal at the specified vertex.
 	 */
 	public Vector3d getNormal(int index) {
-		return new Vector3d(mesh.normals.get(3*index),
-							mesh.normals.get(3*index+1),
-							mesh.normals.get(3*index+2));
+		return new Vector3d(normals[3*index],
+							normals[3*index+1],
+							normals[3*index+2]);
 	}
-	
+
 }
@@ -97,12 +97,36 @@ public class Sphere extends Surface {
 			double u = (phi + Math.PI) / (2 * Math.PI);
 			double v = (theta - Math.PI / 2) / Math.PI;
 			outRecord.texCoords.set(u, v);
+			setDifferentials(outRecord, ray);
 			
 			}
 
 		return true;
 	}
 
+	/**
+	 * Fill in the location and texture coordinate differentials of a hit from
+	 * the differentials of the ray, by differentiating the mapping from the
+	 * normal to (u, v) used in intersect.
+	 */
+	private void setDifferentials(IntersectionRecord outRecord, Ray ray) {
+		Vector3d n = outRecord.normal;
+		if (!ray.offsetsOnPlane(outRecord.location, n.x, n.y, n.z, outRecord.dPdx, outRecord.dPdy)) {
+			outRecord.dTexdx.setZero();
+			outRecord.dTexdy.setZero();
+			return;
+		}
+		// du = d(atan2(nx, nz)) / 2pi, dv = d(asin(ny)) / pi, with dn = dP / radius;
+		// both blow up at the poles, where texture lookups fall back to the coarsest level
+		double horizontal = Math.max(n.x * n.x + n.z * n.z, 1e-12);
+		double uScale = 1 / (2 * Math.PI * radius * horizontal);
+		double vScale = 1 / (Math.PI * radius * Math.sqrt(horizontal));
+		Vector3d dP = outRecord.dPdx;
+		outRecord.dTexdx.set((n.z * dP.x - n.x * dP.z) * uScale, dP.y * vScale);
+		dP = outRecord.dPdy;
+		outRecord.dTexdy.set((n.z * dP.x - n.x * dP.z) * uScale, dP.y * vScale);
+	}
+
 	public void computeBoundingBox() {
 		// TODO#A7: Compute the bounding box and store the result in
 		// averagePosition, minBound, and maxBound.
@@ -53,14 +53,28 @@ public abstract class Surface {
 	 * @return tMatInv * rayIn
 	 */
 	public Ray untransformRay(Ray rayIn) {
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
-
-		tMatInv.mulDir(ray.direction);
-		tMatInv.mulPos(ray.origin);
+		Ray ray = new Ray();
+		untransformRay(rayIn, ray);
 		return ray;
 	}
+
+	/**
+	 * Un-transform rayIn, and its differentials, using tMatInv, without allocating a new ray
+	 * @param rayIn Input ray
+	 * @param outRay Set to tMatInv * rayIn; may not be rayIn
+	 */
+	public void untransformRay(Ray rayIn, Ray outRay) {
+		outRay.set(rayIn);
+
+		tMatInv.mulDir(outRay.direction);
+		tMatInv.mulPos(outRay.origin);
+		if (outRay.hasDifferentials) {
+			tMatInv.mulDir(outRay.dOdx);
+			tMatInv.mulDir(outRay.dOdy);
+			tMatInv.mulDir(outRay.dDdx);
+			tMatInv.mulDir(outRay.dDdy);
+		}
+	}
 	
 	public void setTransformation(Matrix4d a, Matrix4d aInv, Matrix4d aTInv) {
 		tMat = a;
@@ -124,6 +124,7 @@ public class Triangle extends Surface {
 						.addMultiple(beta, owner.getUV(index.y))
 						.addMultiple(gamma, owner.getUV(index.z));
 			}
+			owner.setDifferentials(index.x, index.y, index.z, outRecord, ray);
 		}
 
 		return true;
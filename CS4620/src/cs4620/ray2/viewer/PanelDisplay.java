@@ -9,7 +9,6 @@ import java.io.File;
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
-import egl.math.Colord;
 import cs4620.ray2.Image;
 
 
@@ -51,7 +50,7 @@ public class PanelDisplay extends JPanel {
 	/**
 	 * @see java.awt.Component#getPreferredSize()
 	 */
-	public Dimension getPreferredSize() {
+	public synchronized Dimension getPreferredSize() {
 		
 		return new Dimension(bufferedImage.getWidth(), bufferedImage.getHeight());
 	}
@@ -70,7 +69,9 @@ public class PanelDisplay extends JPanel {
 	}
 	
 	/**
-	 * Set the currently displayed image
+	 * Set the currently displayed image. Safe to call from any render thread;
+	 * the copy into the display buffer is synchronized and painting happens
+	 * on the event dispatching thread.
 	 *
 	 * @param inImage the new image to display
 	 */
@@ -108,17 +109,17 @@ public class PanelDisplay extends JPanel {
 			bufferedImage = new BufferedImage(image.getWidth(), image.getHeight(), BUFFER_TYPE);
 		}
 		
-		//int w = image.getWidth();
-		int h = image.getHeight();
-		Colord pixelColor = new Colord();
-		for (int y = h-yh; y < h-yl; y++) {
-			for (int x = xl; x < xh; x++) {
-				image.getPixelColor(pixelColor,x,h-y-1);
-				pixelColor.gammaCorrect(2.2);
-				int rgb = pixelColor.toColor().toIntRGB();
-				bufferedImage.setRGB(x,y,rgb);
-			}
-		}
+		if (xh <= xl || yh <= yl)
+			return;
+		
+		// Copy the whole rectangle at once; its rows come top first, as on screen
+		int w = xh - xl, h = yh - yl;
+		float[] colors = new float[3 * w * h];
+		int[] rgb = new int[w * h];
+		image.getTile(xl, yl, w, h, colors, 0);
+		for (int i = 0; i < rgb.length; i++)
+			rgb[i] = Image.toIntRGB(colors[3*i], colors[3*i+1], colors[3*i+2]);
+		bufferedImage.setRGB(xl, image.getHeight() - yh, w, h, rgb, 0, w);
 	}
 	
 }
\ No newline at end of file
@@ -38,7 +38,8 @@ public class QuickViewer extends JFrame {
 	}
 	
 	/**
-	 * Sets the currently viewable image
+	 * Sets the currently viewable image. May be called concurrently by the
+	 * render workers as they finish blocks.
 	 * @param inImage
 	 */
 	public void setImage(Image inImage) {	